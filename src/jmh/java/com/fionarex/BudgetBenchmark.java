@@ -0,0 +1,35 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code (fib 20)} with the JIT turned off, without an {@link ExecutionBudget} and under one whose
+ * limits are never reached, to show what checking them costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BudgetBenchmark {
+    @Param({"none", "budget"})
+    public String limits;
+
+    private Engine evaluator;
+    private SEXP fib;
+
+    @Setup
+    public void setUp() {
+        evaluator = Programs.engine("compiled");
+        Programs.run(evaluator, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))");
+        if (limits.equals("budget")) {
+            evaluator.setLimits(new ExecutionBudget(1_000_000_000L, 60_000, 10_000));
+        }
+        fib = Programs.parse("(fib 20)").get(0);
+    }
+
+    @Benchmark
+    public Object fib() {
+        return evaluator.eval(fib);
+    }
+}
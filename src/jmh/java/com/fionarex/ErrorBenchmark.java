@@ -0,0 +1,48 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Forms that fail, as validation runs evaluate by the million: a type error at top level, and
+ * one 20 calls deep, whose {@link EvalError} collects a frame per call on its way out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ErrorBenchmark {
+    @Param({"reference", "compiled"})
+    public String engine;
+
+    private Engine evaluator;
+    private SEXP typeError;
+    private SEXP nestedError;
+
+    @Setup
+    public void setUp() {
+        evaluator = Programs.engine(engine);
+        Programs.run(evaluator, "(define (dive n) (if (> n 0) (+ 1 (dive (- n 1))) (car n)))");
+        typeError = Programs.parse("(+ 1 \"one\")").get(0);
+        nestedError = Programs.parse("(dive 20)").get(0);
+    }
+
+    @Benchmark
+    public String typeError() {
+        return fail(typeError);
+    }
+
+    @Benchmark
+    public String nestedError() {
+        return fail(nestedError);
+    }
+
+    private String fail(SEXP form) {
+        try {
+            evaluator.eval(form);
+        } catch (EvalError e) {
+            return e.getMessage();
+        }
+        throw new IllegalStateException("Expected " + form + " to fail");
+    }
+}
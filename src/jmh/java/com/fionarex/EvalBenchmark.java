@@ -0,0 +1,71 @@
+package com.fionarex;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Evaluation hot paths on each engine: {@code reference} is the tree-walking {@link Eval},
+ * {@code cek} the {@link Machine} on the same environments, {@code compiled} the node tree with
+ * the JIT turned off, and {@code jit} the default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvalBenchmark {
+    @Param({"reference", "cek", "compiled", "jit"})
+    public String engine;
+
+    private Engine evaluator;
+    private SEXP arithmetic;
+    private SEXP fib;
+    private SEXP ackermann;
+    private SEXP closure;
+    private UserFunction fibFunction;
+    private List<Object> fibArguments;
+
+    @Setup
+    public void setUp() {
+        evaluator = Programs.engine(engine);
+        Programs.run(evaluator, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))"
+                + "(define (ack m n) (if (< m 1) (+ n 1) (if (< n 1) (ack (- m 1) 1) (ack (- m 1) (ack m (- n 1))))))"
+                // Each level returns a closure over the parameters of all enclosing levels.
+                + "(define (level1 a) (define (level2 b) (define (level3 c) (define (level4 d)"
+                + "  (+ a b c d (* a b) (* c d) (- a d) (- b c))))))"
+                + "(define deep (((level1 1) 2) 3))");
+        arithmetic = Programs.parse("(+ (* 3 4 5) (- 100 (/ 144 12)) (* (+ 1 2) (+ 3 4)) (- 7))").get(0);
+        fib = Programs.parse("(fib 20)").get(0);
+        ackermann = Programs.parse("(ack 2 9)").get(0);
+        closure = Programs.parse("(deep 4)").get(0);
+        fibFunction = (UserFunction) Programs.run(evaluator, "fib");
+        fibArguments = List.of((Object) 15L);
+    }
+
+    @Benchmark
+    public Object arithmetic() {
+        return evaluator.eval(arithmetic);
+    }
+
+    @Benchmark
+    public Object fib() {
+        return evaluator.eval(fib);
+    }
+
+    @Benchmark
+    public Object ackermann() {
+        return evaluator.eval(ackermann);
+    }
+
+    /** Reads variables of three enclosing functions on every call. */
+    @Benchmark
+    public Object nestedClosure() {
+        return evaluator.eval(closure);
+    }
+
+    /** Calls straight into {@link UserFunction#apply}, without evaluating a call form. */
+    @Benchmark
+    public Object applyFib() {
+        return fibFunction.apply(fibArguments);
+    }
+}
@@ -0,0 +1,45 @@
+package com.fionarex;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Tokenizing synthetic files of different sizes, into token objects and into a TokenBuffer. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LexerBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int forms;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = Programs.synthetic(forms);
+    }
+
+    @Benchmark
+    public List<Token> lex() {
+        return new Lexer(source).lex();
+    }
+
+    @Benchmark
+    public TokenBuffer lexCompact() {
+        return new Lexer(source).lexCompact();
+    }
+
+    /** Pulls tokens one at a time from a Reader, as file mode does. */
+    @Benchmark
+    public void lexStreaming(Blackhole bh) {
+        Lexer lexer = new Lexer(new StringReader(source));
+        Token token;
+        do {
+            token = lexer.nextToken();
+            bh.consume(token);
+        } while (token.type != Token.Type.EOF);
+    }
+}
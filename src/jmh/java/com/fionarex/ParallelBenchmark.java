@@ -0,0 +1,48 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code (fib 20)} of 64 numbers with {@code pmap}, against a recursive map over the same list,
+ * on the default engine. Run it on a machine with several cores: with one, {@code pmap} can only
+ * show its overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParallelBenchmark {
+    @Param({"1", "16"})
+    public int cutoff;
+
+    private Engine evaluator;
+    private SEXP sequential;
+    private SEXP parallel;
+
+    @Setup
+    public void setUp() {
+        Parallel.setCutoff(cutoff);
+        evaluator = new Engine();
+        Programs.run(evaluator, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))"
+                + "(define (map f xs) (if (null? xs) xs (cons (f (car xs)) (map f (cdr xs)))))"
+                + "(define xs (vector->list (make-vector 64 20)))");
+        sequential = Programs.parse("(map fib xs)").get(0);
+        parallel = Programs.parse("(pmap fib xs)").get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Parallel.setCutoff(Parallel.DEFAULT_CUTOFF);
+    }
+
+    @Benchmark
+    public Object sequential() {
+        return evaluator.eval(sequential);
+    }
+
+    @Benchmark
+    public Object pmap() {
+        return evaluator.eval(parallel);
+    }
+}
@@ -0,0 +1,63 @@
+package com.fionarex;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building the AST of synthetic files of different sizes from each kind of token source. The
+ * {@code parse} benchmarks reuse tokens lexed in setup, and {@link Token}s already hold their
+ * lexeme strings and number values, which a {@link TokenBuffer} leaves to the parser. So compare
+ * the {@code lexAndParse} benchmarks, which start from the source text, before choosing a path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int forms;
+
+    private String source;
+    private List<Token> tokens;
+    private TokenBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        source = Programs.synthetic(forms);
+        tokens = new Lexer(source).lex();
+        buffer = new Lexer(source).lexCompact();
+    }
+
+    @Benchmark
+    public List<SEXP> parseTokens() {
+        return new Parser(tokens).parseAll();
+    }
+
+    @Benchmark
+    public List<SEXP> parseCompact() {
+        return new Parser(buffer).parseAll();
+    }
+
+    @Benchmark
+    public List<SEXP> lexAndParseTokens() {
+        return new Parser(new Lexer(source).lex()).parseAll();
+    }
+
+    @Benchmark
+    public List<SEXP> lexAndParseCompact() {
+        return new Parser(new Lexer(source).lexCompact()).parseAll();
+    }
+
+    /** Lexes and parses one form at a time from a Reader, as file mode does. */
+    @Benchmark
+    public void parseStreaming(Blackhole bh) {
+        Parser parser = new Parser(new Lexer(new StringReader(source)));
+        SEXP expr;
+        while ((expr = parser.next()) != null) {
+            bh.consume(expr);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.fionarex;
+
+import java.util.List;
+
+/** Synthetic programs and helpers shared by the benchmarks. */
+final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * A file of {@code forms} top-level forms that mixes function definitions, nested arithmetic,
+     * comparisons, calls, negative and big number literals and strings, roughly like our
+     * generated batch scripts.
+     */
+    static String synthetic(int forms) {
+        StringBuilder sb = new StringBuilder(forms * 40);
+        for (int i = 0; i < forms; i++) {
+            switch (i % 5) {
+                case 0:
+                    sb.append("(define (f").append(i).append(" x y) (if (> x y) (* x (- y 1)) (+ x y ").append(i).append(")))\n");
+                    break;
+                case 1:
+                    sb.append("(+ (* ").append(i).append(" 60 60 24) (- ").append(i).append(" -17) (/ 1000 ").append(i + 1).append("))\n");
+                    break;
+                case 2:
+                    sb.append("(f").append(i - 2).append(" ").append(i).append(" 92233720368547758070)\n");
+                    break;
+                case 3:
+                    sb.append("(define name").append(i).append(" \"value ").append(i).append("\")\n");
+                    break;
+                default:
+                    sb.append("(if (< ").append(i).append(" 5000) (+ 1 2 3 4 5 6 7 8) (* 2.5 4))\n");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A prelude of {@code functions} function definitions, each calling the one before it, plus
+     * a constant per function and one closure.
+     */
+    static String prelude(int functions) {
+        StringBuilder sb = new StringBuilder(functions * 100);
+        for (int i = 0; i < functions; i++) {
+            sb.append("(define (f").append(i).append(" x y) (if (> x y) (* x (- y ").append(i)
+                    .append(")) (+ (f").append(Math.max(i - 1, 0)).append(" y x) ").append(i).append(")))\n");
+            sb.append("(define c").append(i).append(" (* ").append(i).append(" 3))\n");
+        }
+        sb.append("(define (make-adder n) (define (add x) (+ x n)) add)\n");
+        sb.append("(define add5 (make-adder 5))\n");
+        return sb.toString();
+    }
+
+    static List<SEXP> parse(String source) {
+        return new Parser(new Lexer(source).lexCompact()).parseAll();
+    }
+
+    static Engine engine(String mode) {
+        switch (mode) {
+            case "reference":
+                return new Engine(true);
+            case "compiled":
+                Engine engine = new Engine(false);
+                engine.getJit().setThreshold(0);
+                return engine;
+            case "cek":
+                Engine machine = new Engine(true);
+                machine.useMachine(Machine.DEFAULT_MAX_FRAMES);
+                return machine;
+            case "jit":
+                return new Engine(false);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + mode);
+        }
+    }
+
+    /** Evaluates every form of {@code source} and returns the value of the last one. */
+    static Object run(Engine engine, String source) {
+        Object result = Eval.NIL;
+        for (SEXP expr : parse(source)) {
+            result = engine.eval(expr);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A small rule script run through {@code javax.script} as an embedder would: evaluated from its
+ * source each time, evaluated from a {@link CompiledScript}, and by calling the function it
+ * defines with {@link Invocable#invokeFunction}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScriptBenchmark {
+    private static final String SCRIPT = String.join("\n",
+            "(define (clamp v lo hi) (if (< v lo) lo (if (> v hi) hi v)))",
+            "(define (discount qty) (if (> qty 100) 15 (if (> qty 10) 5 0)))",
+            "(define (price qty unit) (clamp (- (* qty unit) (/ (* qty unit (discount qty)) 100)) 1 1000000))",
+            "(price quantity unit)");
+
+    private ScriptEngine engine;
+    private CompiledScript compiled;
+    private Bindings bindings;
+
+    @Setup
+    public void setUp() throws ScriptException {
+        engine = new CalcScriptEngineFactory().getScriptEngine();
+        compiled = ((Compilable) engine).compile(SCRIPT);
+        bindings = engine.createBindings();
+        bindings.put("quantity", 12);
+        bindings.put("unit", 250);
+        engine.put("quantity", 1);
+        engine.put("unit", 1);
+        engine.eval(SCRIPT);
+    }
+
+    @Benchmark
+    public Object evalSource() throws ScriptException {
+        return engine.eval(SCRIPT, bindings);
+    }
+
+    @Benchmark
+    public Object evalCompiled() throws ScriptException {
+        return compiled.eval(bindings);
+    }
+
+    @Benchmark
+    public Object invokeFunction() throws ScriptException, NoSuchMethodException {
+        return ((Invocable) engine).invokeFunction("price", 12, 250);
+    }
+}
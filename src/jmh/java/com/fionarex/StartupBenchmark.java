@@ -0,0 +1,54 @@
+package com.fionarex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Getting a fresh engine ready to run a program on top of a large prelude: {@code cold}
+ * evaluates the prelude's source, {@code snapshot} restores a {@link Snapshot} of it. Both then
+ * make one call into the prelude, so restoring pays for decoding and compiling what it uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartupBenchmark {
+    @Param({"100", "10000"})
+    public int functions;
+
+    private String prelude;
+    private Path snapshot;
+    private SEXP call;
+
+    @Setup
+    public void setUp() throws IOException {
+        prelude = Programs.prelude(functions);
+        Engine engine = new Engine();
+        Programs.run(engine, prelude);
+        snapshot = Files.createTempFile("prelude", ".snapshot");
+        Snapshot.save(engine, snapshot);
+        call = Programs.parse("(+ (f10 1 2) (add5 c10))").get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public Object cold() {
+        Engine engine = new Engine();
+        Programs.run(engine, prelude);
+        return engine.eval(call);
+    }
+
+    @Benchmark
+    public Object snapshot() throws IOException {
+        Engine engine = new Engine();
+        Snapshot.load(snapshot, engine);
+        return engine.eval(call);
+    }
+}
@@ -0,0 +1,70 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Vector builtins against the same computation written as recursive functions over a list, on
+ * 1,000 integers with the default engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VectorBenchmark {
+    private Engine evaluator;
+    private SEXP vectorSum;
+    private SEXP vectorDot;
+    private SEXP vectorAdd;
+    private SEXP recursiveSum;
+    private SEXP recursiveDot;
+    private SEXP recursiveAdd;
+
+    @Setup
+    public void setUp() {
+        evaluator = new Engine();
+        Programs.run(evaluator, "(define v (vector-range 1000))"
+                + "(define w (vector-map - 1000 v))"
+                + "(define xs (vector->list v))"
+                + "(define ys (vector->list w))"
+                + "(define (sum xs) (if (null? xs) 0 (+ (car xs) (sum (cdr xs)))))"
+                + "(define (dot xs ys) (if (null? xs) 0 (+ (* (car xs) (car ys)) (dot (cdr xs) (cdr ys)))))"
+                + "(define (add xs ys) (if (null? xs) xs (cons (+ (car xs) (car ys)) (add (cdr xs) (cdr ys)))))");
+        vectorSum = Programs.parse("(vector-sum v)").get(0);
+        vectorDot = Programs.parse("(vector-dot v w)").get(0);
+        vectorAdd = Programs.parse("(vector-add v w)").get(0);
+        recursiveSum = Programs.parse("(sum xs)").get(0);
+        recursiveDot = Programs.parse("(dot xs ys)").get(0);
+        recursiveAdd = Programs.parse("(add xs ys)").get(0);
+    }
+
+    @Benchmark
+    public Object vectorSum() {
+        return evaluator.eval(vectorSum);
+    }
+
+    @Benchmark
+    public Object recursiveSum() {
+        return evaluator.eval(recursiveSum);
+    }
+
+    @Benchmark
+    public Object vectorDot() {
+        return evaluator.eval(vectorDot);
+    }
+
+    @Benchmark
+    public Object recursiveDot() {
+        return evaluator.eval(recursiveDot);
+    }
+
+    @Benchmark
+    public Object vectorAdd() {
+        return evaluator.eval(vectorAdd);
+    }
+
+    @Benchmark
+    public Object recursiveAdd() {
+        return evaluator.eval(recursiveAdd);
+    }
+}
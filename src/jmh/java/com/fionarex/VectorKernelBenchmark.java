@@ -0,0 +1,58 @@
+package com.fionarex;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The bulk loops behind the vector builtins, {@code scalar} against {@code simd}, on 100,000
+ * elements that fit in an int so that products use the vector multiply too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VectorKernelBenchmark {
+    private static final int SIZE = 100_000;
+
+    @Param({"scalar", "simd"})
+    public String kernels;
+
+    private VectorKernels selected;
+    private long[] a;
+    private long[] b;
+    private long[] out;
+
+    @Setup
+    public void setUp() {
+        selected = kernels.equals("simd") ? new SimdKernels() : new ScalarKernels();
+        a = new long[SIZE];
+        b = new long[SIZE];
+        out = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            a[i] = i;
+            b[i] = SIZE - i;
+        }
+    }
+
+    @Benchmark
+    public long[] add() {
+        selected.apply('+', a, b, true, out);
+        return out;
+    }
+
+    @Benchmark
+    public long[] multiplyScalar() {
+        selected.apply('*', a, 3, true, out);
+        return out;
+    }
+
+    @Benchmark
+    public long sum() {
+        return selected.sum(a);
+    }
+
+    @Benchmark
+    public long dot() {
+        return selected.dot(a, b, true);
+    }
+}
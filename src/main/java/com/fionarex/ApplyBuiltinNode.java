@@ -0,0 +1,29 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/** Applies a builtin other than arithmetic or a comparison to its evaluated operands. */
+class ApplyBuiltinNode extends Node {
+    private final Builtin builtin;
+    private final Node[] operands;
+    private final int position;
+
+    public ApplyBuiltinNode(Builtin builtin, Node[] operands, int position) {
+        this.builtin = builtin;
+        this.operands = operands;
+        this.position = position;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object[] args = new Object[operands.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = operands[i].execute(frame);
+        }
+        try {
+            return builtin.apply(args);
+        } catch (EvalError e) {
+            throw e.at(position);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Folds {@code + - * /} over its operands on primitive longs. Overflow and non-long operands
+ * switch to {@link Num} for the rest of the operands, so each operand is still evaluated once.
+ */
+class ArithmeticNode extends Node {
+    private final char operator;
+    private final Node[] operands;
+    private final int position;
+
+    public ArithmeticNode(char operator, Node[] operands, int position) {
+        this.operator = operator;
+        this.operands = operands;
+        this.position = position;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        try {
+            return executeLong(frame);
+        } catch (UnexpectedResultException e) {
+            return e.value;
+        }
+    }
+
+    @Override
+    public long executeLong(Frame frame) throws UnexpectedResultException {
+        long result;
+        try {
+            result = operands[0].executeLong(frame);
+        } catch (UnexpectedResultException e) {
+            return boxed(frame, 1, checkNumber(e.value));
+        }
+
+        for (int i = 1; i < operands.length; i++) {
+            long next;
+            try {
+                next = operands[i].executeLong(frame);
+            } catch (UnexpectedResultException e) {
+                return boxed(frame, i + 1, apply(result, e.value));
+            }
+
+            long r;
+            switch (operator) {
+                case '+':
+                    r = result + next;
+                    if (((result ^ r) & (next ^ r)) < 0) return boxed(frame, i + 1, apply(result, next));
+                    break;
+                case '-':
+                    r = result - next;
+                    if (((result ^ next) & (result ^ r)) < 0) return boxed(frame, i + 1, apply(result, next));
+                    break;
+                case '*':
+                    r = result * next;
+                    if (Math.multiplyHigh(result, next) != (r >> 63)) return boxed(frame, i + 1, apply(result, next));
+                    break;
+                default:
+                    if (next == 0) throw new EvalError("Division by zero").at(position);
+                    if (result == Long.MIN_VALUE && next == -1) return boxed(frame, i + 1, apply(result, next));
+                    r = result / next;
+            }
+            result = r;
+        }
+        return result;
+    }
+
+    /** Finishes the fold from operand {@code from} in the boxed numeric tower. */
+    private long boxed(Frame frame, int from, Object result) throws UnexpectedResultException {
+        for (int i = from; i < operands.length; i++) {
+            result = apply(result, operands[i].execute(frame));
+        }
+        if (result instanceof Long) {
+            return (Long) result;
+        }
+        throw new UnexpectedResultException(result);
+    }
+
+    // Errors of the boxed tower are only caught off the primitive path, which keeps its size.
+    private Object checkNumber(Object value) {
+        try {
+            return Num.checkNumber(value);
+        } catch (EvalError e) {
+            throw e.at(position);
+        }
+    }
+
+    private Object apply(Object left, Object right) {
+        try {
+            return Num.apply(operator, left, right);
+        } catch (EvalError e) {
+            throw e.at(position);
+        }
+    }
+}
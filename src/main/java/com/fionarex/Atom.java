@@ -0,0 +1,35 @@
+package com.fionarex;
+
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.*;
+
+abstract class Atom extends SEXP {
+    /** The atom as written: a symbol's name, a string's contents or a number's digits. */
+    public abstract String getValue();
+
+    @Override
+    public boolean isAtom() {
+        return true;
+    }
+
+    @Override
+    public boolean isList() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return getValue();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (obj == null || obj.getClass() != getClass()) return false;
+        return Objects.equals(getValue(), ((Atom) obj).getValue());
+    }
+
+    @Override
+    public int hashCode() {
+        return getValue().hashCode();
+    }
+}
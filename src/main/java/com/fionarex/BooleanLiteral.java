@@ -0,0 +1,26 @@
+package com.fionarex;
+
+/** {@code true} or {@code false}. There is no syntax for these; the {@link Optimizer} produces them. */
+final class BooleanLiteral extends Atom {
+    static final BooleanLiteral TRUE = new BooleanLiteral(true);
+    static final BooleanLiteral FALSE = new BooleanLiteral(false);
+
+    private final boolean value;
+
+    private BooleanLiteral(boolean value) {
+        this.value = value;
+    }
+
+    static BooleanLiteral of(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    boolean getBoolean() {
+        return value;
+    }
+
+    @Override
+    public String getValue() {
+        return Boolean.toString(value);
+    }
+}
@@ -0,0 +1,233 @@
+package com.fionarex;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * A builtin operator as a value. An unbound name of a builtin evaluates to it, so builtins can be
+ * passed to functions and stored in variables like {@link UserFunction}s, and a {@code define}
+ * of the same name shadows it. {@code define} and {@code if} are special forms, not builtins.
+ *
+ * <p>Besides arithmetic and comparisons there are the list operations {@code cons}, {@code car},
+ * {@code cdr}, {@code list} and {@code null?}, which work on {@link Pair}s, and the operations
+ * on {@link CalcVector}s, whose names start with {@code vector}. {@code pmap} and {@code preduce}
+ * run a function over a list or vector on several threads; see {@link Parallel}.
+ */
+public final class Builtin {
+    // Variadic builtins have an arity of -1.
+    public static final Builtin ADD = new Builtin("+", -1);
+    public static final Builtin SUBTRACT = new Builtin("-", -1);
+    public static final Builtin MULTIPLY = new Builtin("*", -1);
+    public static final Builtin DIVIDE = new Builtin("/", -1);
+    public static final Builtin GREATER = new Builtin(">", 2);
+    public static final Builtin LESS = new Builtin("<", 2);
+    public static final Builtin CONS = new Builtin("cons", 2);
+    public static final Builtin CAR = new Builtin("car", 1);
+    public static final Builtin CDR = new Builtin("cdr", 1);
+    public static final Builtin LIST = new Builtin("list", -1);
+    public static final Builtin IS_NULL = new Builtin("null?", 1);
+    public static final Builtin VECTOR = new Builtin("vector", -1);
+    public static final Builtin MAKE_VECTOR = new Builtin("make-vector", 2);
+    public static final Builtin VECTOR_RANGE = new Builtin("vector-range", 1);
+    public static final Builtin VECTOR_LENGTH = new Builtin("vector-length", 1);
+    public static final Builtin VECTOR_REF = new Builtin("vector-ref", 2);
+    public static final Builtin VECTOR_ADD = new Builtin("vector-add", 2);
+    public static final Builtin VECTOR_SUM = new Builtin("vector-sum", 1);
+    public static final Builtin VECTOR_DOT = new Builtin("vector-dot", 2);
+    public static final Builtin VECTOR_MAP = new Builtin("vector-map", -1);
+    public static final Builtin LIST_TO_VECTOR = new Builtin("list->vector", 1);
+    public static final Builtin VECTOR_TO_LIST = new Builtin("vector->list", 1);
+    public static final Builtin PMAP = new Builtin("pmap", 2);
+    public static final Builtin PREDUCE = new Builtin("preduce", 3);
+
+    private static final Map<String, Builtin> BY_NAME = List.of(ADD, SUBTRACT, MULTIPLY, DIVIDE, GREATER, LESS,
+                    CONS, CAR, CDR, LIST, IS_NULL, VECTOR, MAKE_VECTOR, VECTOR_RANGE, VECTOR_LENGTH, VECTOR_REF,
+                    VECTOR_ADD, VECTOR_SUM, VECTOR_DOT, VECTOR_MAP, LIST_TO_VECTOR, VECTOR_TO_LIST, PMAP, PREDUCE)
+            .stream().collect(Collectors.toUnmodifiableMap(Builtin::getName, Function.identity()));
+
+    private final String name;
+    private final int arity;
+
+    private Builtin(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    /** The builtin called {@code name}, or {@code null} if there is none. */
+    public static @Nullable Builtin of(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /** What {@code name} evaluates to while it is unbound: its builtin, or else the name itself. */
+    static Object unbound(String name) {
+        Builtin builtin = BY_NAME.get(name);
+        return builtin != null ? builtin : name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    boolean isArithmetic() {
+        return this == ADD || this == SUBTRACT || this == MULTIPLY || this == DIVIDE;
+    }
+
+    boolean isComparison() {
+        return this == GREATER || this == LESS;
+    }
+
+    /** The arithmetic operator character, for {@link Num#apply}. */
+    char operator() {
+        return name.charAt(0);
+    }
+
+    /** Applies the builtin to already evaluated arguments. */
+    public Object apply(Object[] args) {
+        if (isComparison()) {
+            if (args.length != 2) {
+                throw new EvalError("Comparison operators require exactly two operands");
+            }
+            int comparison = Num.compare(args[0], args[1]);
+            return this == GREATER ? comparison > 0 : comparison < 0;
+        }
+        if (isArithmetic()) {
+            if (args.length == 0) {
+                throw new EvalError("Operator requires at least one operand");
+            }
+            Object result = Num.checkNumber(args[0]);
+            for (int i = 1; i < args.length; i++) {
+                result = Num.apply(operator(), result, args[i]);
+            }
+            return result;
+        }
+        if (arity >= 0 && args.length != arity) {
+            throw new EvalError(arityMessage());
+        }
+        if (this == CONS) {
+            return new Pair(args[0], args[1]);
+        } else if (this == CAR) {
+            return pair(args[0]).getCar();
+        } else if (this == CDR) {
+            return pair(args[0]).getCdr();
+        } else if (this == IS_NULL) {
+            return args[0] == Eval.NIL;
+        } else if (this == LIST) {
+            return Pair.list(args);
+        } else if (this == VECTOR) {
+            long[] elements = new long[args.length];
+            for (int i = 0; i < args.length; i++) {
+                elements[i] = integer(args[i]);
+            }
+            return new CalcVector(elements);
+        } else if (this == MAKE_VECTOR) {
+            long[] elements = new long[length(args[0])];
+            Arrays.fill(elements, integer(args[1]));
+            return new CalcVector(elements);
+        } else if (this == VECTOR_RANGE) {
+            return CalcVector.range(length(args[0]));
+        } else if (this == VECTOR_LENGTH) {
+            return (long) vector(args[0]).length();
+        } else if (this == VECTOR_REF) {
+            return vector(args[0]).get(index(args[1], vector(args[0])));
+        } else if (this == VECTOR_ADD) {
+            return vector(args[0]).map(ADD, vector(args[1]));
+        } else if (this == VECTOR_SUM) {
+            return vector(args[0]).sum();
+        } else if (this == VECTOR_DOT) {
+            return vector(args[0]).dot(vector(args[1]));
+        } else if (this == VECTOR_MAP) {
+            if (args.length < 2) {
+                throw new EvalError("vector-map expects a function and at least one argument");
+            }
+            return CalcVector.map(args[0], Arrays.copyOfRange(args, 1, args.length));
+        } else if (this == LIST_TO_VECTOR) {
+            return CalcVector.of(args[0]);
+        } else if (this == PMAP) {
+            return Parallel.map(args[0], args[1]);
+        } else if (this == PREDUCE) {
+            return Parallel.reduce(args[0], args[1], args[2]);
+        }
+        return vector(args[0]).toList();
+    }
+
+    /** Calls {@code function}, a builtin or a user function, for the builtin {@code operation}. */
+    static Object call(Object function, Object[] args, String operation) {
+        if (function instanceof Builtin) {
+            return ((Builtin) function).apply(args);
+        } else if (function instanceof UserFunction) {
+            return ((UserFunction) function).invoke(args);
+        }
+        throw new EvalError(operation + " expects a function but got " + function);
+    }
+
+    private Pair pair(Object value) {
+        if (value instanceof Pair) {
+            return (Pair) value;
+        }
+        throw new EvalError(name + " expects a pair but got " + value);
+    }
+
+    private CalcVector vector(Object value) {
+        if (value instanceof CalcVector) {
+            return (CalcVector) value;
+        }
+        throw new EvalError(name + " expects a vector but got " + value);
+    }
+
+    private long integer(Object value) {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        throw new EvalError(name + " expects an integer but got " + value);
+    }
+
+    private int length(Object value) {
+        long length = integer(value);
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new EvalError(name + " got an invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private int index(Object value, CalcVector vector) {
+        long index = integer(value);
+        if (index < 0 || index >= vector.length()) {
+            throw new EvalError(name + ": index " + index + " out of range for length " + vector.length());
+        }
+        return (int) index;
+    }
+
+    private String arityMessage() {
+        return name + " expects " + arity + (arity == 1 ? " argument" : " arguments");
+    }
+
+    /** Builds the node that applies this builtin to compiled operands, for the call at {@code position}. */
+    Node node(Node[] args, int position) {
+        if (isComparison()) {
+            if (args.length != 2) {
+                return new ErrorNode("Comparison operators require exactly two operands", position);
+            }
+            return new ComparisonNode(this == GREATER, args[0], args[1], position);
+        }
+        if (isArithmetic()) {
+            if (args.length == 0) {
+                return new ErrorNode("Operator requires at least one operand", position);
+            }
+            return new ArithmeticNode(operator(), args, position);
+        }
+        if (arity >= 0 && args.length != arity) {
+            return new ErrorNode(arityMessage(), position);
+        }
+        return new ApplyBuiltinNode(this, args, position);
+    }
+
+    @Override
+    public String toString() {
+        return "[builtin " + name + "]";
+    }
+}
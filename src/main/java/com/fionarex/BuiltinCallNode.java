@@ -0,0 +1,37 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * A call of a builtin by its global name, such as {@code (+ a b)}. The builtin's own node runs
+ * while the global is unbound or still holds the builtin; once the name is defined as something
+ * else, the call is made like any other.
+ */
+class BuiltinCallNode extends Node {
+    private final GlobalEnv.Cell cell;
+    private final Builtin builtin;
+    private final Node direct;
+    private final Node call;
+
+    public BuiltinCallNode(GlobalEnv.Cell cell, Builtin builtin, Node direct, Node call) {
+        this.cell = cell;
+        this.builtin = builtin;
+        this.direct = direct;
+        this.call = call;
+    }
+
+    private boolean isBuiltin() {
+        Object value = cell.get();
+        return value == null || value == builtin;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        return isBuiltin() ? direct.execute(frame) : call.execute(frame);
+    }
+
+    @Override
+    public long executeLong(Frame frame) throws UnexpectedResultException {
+        return isBuiltin() ? direct.executeLong(frame) : super.executeLong(frame);
+    }
+}
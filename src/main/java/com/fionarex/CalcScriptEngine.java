@@ -0,0 +1,370 @@
+package com.fionarex;
+
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Runs calc through {@code javax.script}. {@link #compile} lexes and parses a script once into a
+ * {@link CompiledScript}, which can then be evaluated any number of times, against any context;
+ * {@code eval} does both at once. The result is the value of the last form. Forms are optimized
+ * when they are evaluated, against the globals they are evaluated with.
+ *
+ * <p>The globals of an evaluation are the engine-scope bindings of its context. Bindings from
+ * {@link #createBindings()}, which the engine's own context starts with, are the globals of an
+ * {@link Engine} themselves: {@code put} defines a global, {@code remove} unbinds it, what the
+ * script defines can be read with {@code get}, and its functions can be called with
+ * {@link #invokeFunction} without evaluating the script again. Any other bindings get an engine
+ * of their own, kept for as long as they are reachable: before each evaluation the globals that
+ * differ from the bindings are defined or unbound, and afterwards the globals the evaluation
+ * changed are copied back. Names the engine scope leaves unbound are taken from the global scope.
+ *
+ * <p>Java ints, shorts and bytes become longs, floats become doubles, {@code long[]}s become
+ * vectors, {@link List}s become lists and {@code null} becomes the empty list, both in bindings
+ * and in the arguments of {@code invokeFunction}. Errors are {@link ScriptException}s with the
+ * line and column of the innermost form that failed; the {@link EvalError} is their cause.
+ */
+public final class CalcScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final CalcScriptEngineFactory factory;
+    // The engine of every other kind of Bindings used so far, by identity, while it is reachable.
+    private final Map<BindingsKey, Engine> engines = new HashMap<>();
+    private final ReferenceQueue<Bindings> collected = new ReferenceQueue<>();
+
+    CalcScriptEngine(CalcScriptEngineFactory factory) {
+        this.factory = factory;
+        setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+    }
+
+    /** Bindings that are the globals of {@link #engine}. */
+    static final class EngineBindings extends AbstractMap<String, Object> implements Bindings {
+        final Engine engine;
+
+        EngineBindings(Engine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public @Nullable Object get(@Nullable Object key) {
+            return key instanceof String ? engine.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(@Nullable Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public @Nullable Object put(String name, @Nullable Object value) {
+            Object previous = engine.get(name);
+            engine.define(name, toCalc(value));
+            return previous;
+        }
+
+        @Override
+        public @Nullable Object remove(@Nullable Object key) {
+            return key instanceof String ? engine.undefine((String) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            for (String name : engine.bindings().keySet()) {
+                engine.undefine(name);
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableMap(engine.bindings()).entrySet();
+        }
+    }
+
+    /** A weak key that compares {@link Bindings} by identity, as they compare by contents. */
+    private static final class BindingsKey extends WeakReference<Bindings> {
+        private final int hash;
+
+        BindingsKey(Bindings bindings, ReferenceQueue<Bindings> queue) {
+            super(bindings, queue);
+            this.hash = System.identityHashCode(bindings);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            Bindings bindings = get();
+            return bindings != null && obj instanceof BindingsKey && ((BindingsKey) obj).get() == bindings;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** The parsed forms of a script. */
+    private final class Script extends CompiledScript {
+        private final List<SEXP> forms;
+
+        Script(List<SEXP> forms) {
+            this.forms = forms;
+        }
+
+        @Override
+        public @Nullable Object eval(ScriptContext context) throws ScriptException {
+            return run(forms, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return CalcScriptEngine.this;
+        }
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new EngineBindings(new Engine());
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public @Nullable Object eval(String script, ScriptContext context) throws ScriptException {
+        return run(parse(new Lexer(script).lexCompact(), context), context);
+    }
+
+    @Override
+    public @Nullable Object eval(Reader script, ScriptContext context) throws ScriptException {
+        return run(parse(new Lexer(script), context), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        return new Script(parse(new Lexer(script).lexCompact(), context));
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return new Script(parse(new Lexer(script), context));
+    }
+
+    /** Calls the function or builtin {@code name} of the engine's own context. */
+    @Override
+    public @Nullable Object invokeFunction(String name, @Nullable Object... args)
+            throws ScriptException, NoSuchMethodException {
+        Object function = function(name);
+        if (function == null) {
+            throw new NoSuchMethodException("No function named " + name);
+        }
+        Object[] arguments = new Object[args != null ? args.length : 0];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = toCalc(args[i]);
+        }
+        try {
+            return Builtin.call(function, arguments, name);
+        } catch (EvalError e) {
+            throw scriptException(e, context);
+        }
+    }
+
+    /** Not supported: calc values have no methods. */
+    @Override
+    public @Nullable Object invokeMethod(Object thiz, String name, @Nullable Object... args) {
+        throw new IllegalArgumentException("Calc values have no methods to invoke");
+    }
+
+    /**
+     * Implements {@code type} by calling the function of the same name for each of its abstract
+     * methods, or returns {@code null} if one of them has no function.
+     */
+    @Override
+    public <T> @Nullable T getInterface(Class<T> type) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        for (Method method : type.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers()) && function(method.getName()) == null) {
+                return null;
+            }
+        }
+        Object implementation = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (method.isDefault()) {
+                        return InvocationHandler.invokeDefault(proxy, method, args);
+                    } else if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return type.getName() + " implemented by calc";
+                        }
+                    }
+                    return invokeFunction(method.getName(), args);
+                });
+        return type.cast(implementation);
+    }
+
+    /** Not supported: calc values have no methods. */
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        throw new IllegalArgumentException("Calc values have no methods to implement an interface with");
+    }
+
+    private static List<SEXP> parse(Lexer lexer, ScriptContext context) throws ScriptException {
+        return parse(new Parser(lexer), context);
+    }
+
+    private static List<SEXP> parse(TokenBuffer tokens, ScriptContext context) throws ScriptException {
+        return parse(new Parser(tokens), context);
+    }
+
+    private static List<SEXP> parse(Parser parser, ScriptContext context) throws ScriptException {
+        try {
+            return parser.readAll();
+        } catch (EvalError e) {
+            throw scriptException(e, context);
+        } catch (UncheckedIOException e) {
+            throw new ScriptException(e.getCause());
+        }
+    }
+
+    private @Nullable Object run(List<SEXP> forms, ScriptContext context) throws ScriptException {
+        Bindings scope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        Bindings globalScope = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+        Engine engine;
+        // For bindings with an engine of their own, the globals the engine starts the evaluation with.
+        Map<String, Object> values = null;
+        if (scope instanceof EngineBindings) {
+            engine = ((EngineBindings) scope).engine;
+            if (globalScope != null) {
+                for (Map.Entry<String, Object> binding : globalScope.entrySet()) {
+                    if (!engine.isBound(binding.getKey())) {
+                        engine.define(binding.getKey(), toCalc(binding.getValue()));
+                    }
+                }
+            }
+        } else {
+            engine = scope != null ? engineOf(scope) : new Engine();
+            values = new HashMap<>();
+            for (Bindings bindings : new Bindings[] {globalScope, scope}) {
+                if (bindings != null) {
+                    for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+                        values.put(binding.getKey(), toCalc(binding.getValue()));
+                    }
+                }
+            }
+            synchronize(engine, values);
+        }
+
+        Optimizer optimizer = new Optimizer(Optimizer.DEFAULT_LEVEL, engine::isBound);
+        Object result = null;
+        try {
+            for (SEXP form : forms) {
+                result = engine.eval(optimizer.optimize(form));
+            }
+            return result;
+        } catch (EvalError e) {
+            throw scriptException(e, context);
+        } finally {
+            if (scope != null && values != null) {
+                for (Map.Entry<String, Object> global : engine.bindings().entrySet()) {
+                    if (!global.getValue().equals(values.get(global.getKey()))) {
+                        scope.put(global.getKey(), global.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /** The engine of {@code bindings}, which aren't {@link EngineBindings}. */
+    private synchronized Engine engineOf(Bindings bindings) {
+        for (Reference<? extends Bindings> key; (key = collected.poll()) != null; ) {
+            engines.remove(key);
+        }
+        return engines.computeIfAbsent(new BindingsKey(bindings, collected), key -> new Engine());
+    }
+
+    /** Makes the globals of {@code engine} those in {@code values}, only redefining those that differ. */
+    private static void synchronize(Engine engine, Map<String, Object> values) {
+        for (String name : engine.bindings().keySet()) {
+            if (!values.containsKey(name)) {
+                engine.undefine(name);
+            }
+        }
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            if (!value.getValue().equals(engine.get(value.getKey()))) {
+                engine.define(value.getKey(), value.getValue());
+            }
+        }
+    }
+
+    /** The function or builtin the engine's own context binds to {@code name}, or {@code null}. */
+    private @Nullable Object function(String name) {
+        Object value = context.getAttribute(name);
+        if (value == null) {
+            value = Builtin.of(name);
+        }
+        return value instanceof UserFunction || value instanceof Builtin ? value : null;
+    }
+
+    /** The calc value of the Java {@code value}; see the class comment. */
+    static Object toCalc(@Nullable Object value) {
+        if (value == null) {
+            return Eval.NIL;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        } else if (value instanceof long[]) {
+            return new CalcVector(((long[]) value).clone());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            Object[] elements = new Object[list.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = toCalc(list.get(i));
+            }
+            return Pair.list(elements);
+        }
+        return value;
+    }
+
+    private static ScriptException scriptException(EvalError e, ScriptContext context) {
+        Object fileName = context.getAttribute(ScriptEngine.FILENAME);
+        int position = e.getPosition();
+        ScriptException exception = new ScriptException(e.getMessage(),
+                fileName != null ? fileName.toString() : null,
+                position != Position.UNKNOWN ? Position.line(position) : -1,
+                position != Position.UNKNOWN ? Position.column(position) : -1);
+        exception.initCause(e);
+        return exception;
+    }
+}
@@ -0,0 +1,99 @@
+package com.fionarex;
+
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Makes {@link CalcScriptEngine}s for {@code javax.script}. It is registered as a service, so
+ * {@code new ScriptEngineManager().getEngineByName("calc")} finds it.
+ */
+public final class CalcScriptEngineFactory implements ScriptEngineFactory {
+    private static final String VERSION = "1.0";
+    private static final List<String> NAMES = List.of("calc", "Calc");
+    private static final List<String> EXTENSIONS = List.of("calc");
+
+    @Override
+    public String getEngineName() {
+        return "CheckerCalc";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "calc";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public @Nullable Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.NAME:
+                return NAMES.get(0);
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            case "THREADING":
+                // Globals can be read and defined from several threads at once; see GlobalEnv.
+                return "MULTITHREADED";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        StringBuilder sb = new StringBuilder("(").append(m).append(' ').append(obj);
+        for (String arg : args) {
+            sb.append(' ').append(arg);
+        }
+        return sb.append(')').toString();
+    }
+
+    /** Calc has no output; a string literal evaluates to itself, which the caller gets back. */
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return '"' + toDisplay + '"';
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return String.join("\n", statements);
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new CalcScriptEngine(this);
+    }
+}
@@ -0,0 +1,226 @@
+package com.fionarex;
+
+import java.util.Arrays;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * A fixed-length vector of integers, kept unboxed in a {@code long[]}. Vectors are immutable; the
+ * vector builtins make new ones. Element-wise arithmetic, sums and dot products run in the loops
+ * of {@link VectorKernels}, which use SIMD instructions when the JVM has the incubating vector
+ * API. Results that overflow a long are an error for a new vector, and make sums and dot products
+ * fall back to the boxed numeric tower.
+ */
+public final class CalcVector {
+    private final long[] elements;
+    // Whether every element fits in an int, so products of two elements fit in a long:
+    // 0 while not yet known, then 1 or 2. Computing it twice on a race is harmless.
+    private byte small;
+
+    /** Takes {@code elements} over; the caller must not change the array afterwards. */
+    CalcVector(long[] elements) {
+        this.elements = elements;
+    }
+
+    /** The vector {@code 0, 1, ..., length - 1}. */
+    static CalcVector range(int length) {
+        long[] elements = new long[length];
+        for (int i = 0; i < length; i++) {
+            elements[i] = i;
+        }
+        return new CalcVector(elements);
+    }
+
+    /** The vector of the elements of {@code list}, which must all be integers. */
+    static CalcVector of(Object list) {
+        int length = 0;
+        for (Object rest = list; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+            length++;
+        }
+        long[] elements = new long[length];
+        Object rest = list;
+        for (int i = 0; i < length; i++) {
+            elements[i] = element(((Pair) rest).getCar(), "list->vector");
+            rest = ((Pair) rest).getCdr();
+        }
+        if (rest != Eval.NIL) {
+            throw new EvalError("list->vector expects a list but got " + list);
+        }
+        return new CalcVector(elements);
+    }
+
+    public int length() {
+        return elements.length;
+    }
+
+    public long get(int index) {
+        return elements[index];
+    }
+
+    /** The elements themselves, which must not be changed. */
+    long[] elements() {
+        return elements;
+    }
+
+    boolean isSmall() {
+        byte known = small;
+        if (known == 0) {
+            known = 1;
+            for (long element : elements) {
+                if (element != (int) element) {
+                    known = 2;
+                    break;
+                }
+            }
+            small = known;
+        }
+        return known == 1;
+    }
+
+    Object toList() {
+        Object list = Eval.NIL;
+        for (int i = elements.length - 1; i >= 0; i--) {
+            list = new Pair(elements[i], list);
+        }
+        return list;
+    }
+
+    /** The sum of the elements, promoted to a BigInteger if it doesn't fit in a long. */
+    Object sum() {
+        try {
+            return VectorKernels.INSTANCE.sum(elements);
+        } catch (ArithmeticException e) {
+            Object sum = 0L;
+            for (long element : elements) {
+                sum = Num.apply('+', sum, element);
+            }
+            return sum;
+        }
+    }
+
+    /** The dot product with {@code other}, promoted to a BigInteger if it doesn't fit in a long. */
+    Object dot(CalcVector other) {
+        checkLength(other);
+        try {
+            return VectorKernels.INSTANCE.dot(elements, other.elements, isSmall() && other.isSmall());
+        } catch (ArithmeticException e) {
+            Object sum = 0L;
+            for (int i = 0; i < elements.length; i++) {
+                sum = Num.apply('+', sum, Num.apply('*', elements[i], other.elements[i]));
+            }
+            return sum;
+        }
+    }
+
+    /** Applies an arithmetic builtin to the elements of this vector and {@code other} pairwise. */
+    CalcVector map(Builtin operator, CalcVector other) {
+        checkLength(other);
+        long[] result = new long[elements.length];
+        try {
+            VectorKernels.INSTANCE.apply(operator.operator(), elements, other.elements,
+                    isSmall() && other.isSmall(), result);
+        } catch (ArithmeticException e) {
+            throw overflow();
+        }
+        return new CalcVector(result);
+    }
+
+    /** Applies an arithmetic builtin to every element of this vector and {@code scalar}. */
+    CalcVector map(Builtin operator, long scalar) {
+        long[] result = new long[elements.length];
+        try {
+            VectorKernels.INSTANCE.apply(operator.operator(), elements, scalar,
+                    isSmall() && scalar == (int) scalar, result);
+        } catch (ArithmeticException e) {
+            throw overflow();
+        }
+        return new CalcVector(result);
+    }
+
+    /**
+     * Implements {@code vector-map}: applies {@code function} to the elements at each index of
+     * the vectors among {@code args}, passing integers among them as they are. Arithmetic builtins
+     * of a vector and a vector or an integer use the bulk kernels; anything else is called once
+     * per element and must return an integer.
+     */
+    static CalcVector map(Object function, Object[] args) {
+        int length = -1;
+        for (Object arg : args) {
+            if (arg instanceof CalcVector) {
+                int argLength = ((CalcVector) arg).length();
+                if (length >= 0 && argLength != length) {
+                    throw new EvalError("Vectors have different lengths: " + length + " and " + argLength);
+                }
+                length = argLength;
+            } else {
+                element(arg, "vector-map");
+            }
+        }
+        if (length < 0) {
+            throw new EvalError("vector-map expects at least one vector");
+        }
+
+        if (function instanceof Builtin && ((Builtin) function).isArithmetic() && args.length == 2
+                && args[0] instanceof CalcVector) {
+            Builtin operator = (Builtin) function;
+            CalcVector vector = (CalcVector) args[0];
+            return args[1] instanceof CalcVector
+                    ? vector.map(operator, (CalcVector) args[1])
+                    : vector.map(operator, (Long) args[1]);
+        }
+        long[] result = new long[length];
+        for (int i = 0; i < length; i++) {
+            ExecutionBudget.checkpoint();
+            Object[] elementArgs = new Object[args.length];
+            for (int j = 0; j < args.length; j++) {
+                elementArgs[j] = args[j] instanceof CalcVector ? (Object) ((CalcVector) args[j]).elements[i] : args[j];
+            }
+            Object value = Builtin.call(function, elementArgs, "vector-map");
+            if (!(value instanceof Long)) {
+                throw new EvalError("vector-map expects integer results but got " + value);
+            }
+            result[i] = (Long) value;
+        }
+        return new CalcVector(result);
+    }
+
+    private static long element(Object value, String operation) {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        throw new EvalError(operation + " expects integers but got " + value);
+    }
+
+    private void checkLength(CalcVector other) {
+        if (other.elements.length != elements.length) {
+            throw new EvalError("Vectors have different lengths: " + elements.length + " and "
+                    + other.elements.length);
+        }
+    }
+
+    private static EvalError overflow() {
+        return new EvalError("Vector element overflows a 64-bit integer");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("#(");
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(elements[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        return obj instanceof CalcVector && Arrays.equals(elements, ((CalcVector) obj).elements);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(elements);
+    }
+}
@@ -0,0 +1,69 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Applies a function. In tail position the call is not made here but returned as a
+ * {@link UserFunction.TailCall} for the enclosing {@link UserFunction#invoke} to run, so loops
+ * written as recursion use constant stack space.
+ */
+class CallNode extends Node {
+    private final Node head;
+    private final Node[] arguments;
+    private final boolean tail;
+    private final int position;
+    // The builtin last applied here, e.g. one passed in as a parameter, and its node.
+    private @Nullable BuiltinTarget builtin;
+
+    private static final class BuiltinTarget {
+        final Builtin builtin;
+        final Node node;
+
+        BuiltinTarget(Builtin builtin, Node node) {
+            this.builtin = builtin;
+            this.node = node;
+        }
+    }
+
+    public CallNode(Node head, Node[] arguments, boolean tail, int position) {
+        this.head = head;
+        this.arguments = arguments;
+        this.tail = tail;
+        this.position = position;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object op = head.execute(frame);
+
+        if (op instanceof UserFunction fn) {
+            Object[] evaluatedArgs = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                evaluatedArgs[i] = arguments[i].execute(frame);
+            }
+            if (tail) {
+                return new UserFunction.TailCall(fn, evaluatedArgs, position);
+            }
+            try {
+                return fn.invoke(evaluatedArgs);
+            } catch (EvalError e) {
+                throw e.at(position);
+            }
+        }
+
+        if (op instanceof Builtin called) {
+            BuiltinTarget target = builtin;
+            if (target == null || target.builtin != called) {
+                target = new BuiltinTarget(called, called.node(arguments, position));
+                builtin = target;
+            }
+            return target.node.execute(frame);
+        }
+
+        if (op instanceof String) {
+            throw new EvalError("Unknown operator: ", op).at(position);
+        }
+
+        throw new EvalError("Cannot apply operator of type: " + op.getClass().getName()).at(position);
+    }
+}
@@ -0,0 +1,270 @@
+package com.fionarex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for {@link Jit}. It emits version 49 class files, which the
+ * JVM verifies by type inference, so no stack map frames have to be computed.
+ */
+final class ClassAssembler {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassAssembler(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String internalName) {
+        int utf = utf8(internalName);
+        return constant("C" + internalName, 7, 1, out -> out.writeShort(utf));
+    }
+
+    int intConstant(int value) {
+        return constant("I" + value, 3, 1, out -> out.writeInt(value));
+    }
+
+    int longConstant(long value) {
+        // long constants take up two pool entries
+        return constant("J" + value, 5, 2, out -> out.writeLong(value));
+    }
+
+    int fieldRef(String owner, String field, String descriptor) {
+        return memberRef(9, owner, field, descriptor);
+    }
+
+    int methodRef(String owner, String method, String descriptor) {
+        return memberRef(10, owner, method, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String member, String descriptor) {
+        int owningClass = classRef(owner);
+        int nameUtf = utf8(member);
+        int descriptorUtf = utf8(descriptor);
+        int nameAndType = constant("N" + member + ":" + descriptor, 12, 1, out -> {
+            out.writeShort(nameUtf);
+            out.writeShort(descriptorUtf);
+        });
+        return constant(tag + owner + "." + member + ":" + descriptor, tag, 1, out -> {
+            out.writeShort(owningClass);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, int slots, Writer writer) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            pool.writeByte(tag);
+            writer.write(pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int index = poolCount;
+        poolCount += slots;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void field(int access, String field, String descriptor) {
+        int nameUtf = utf8(field);
+        int descriptorUtf = utf8(descriptor);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeShort(access);
+            out.writeShort(nameUtf);
+            out.writeShort(descriptorUtf);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String method, String descriptor, int maxLocals) {
+        Code code = new Code(access, utf8(method), utf8(descriptor), maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray(String superName, String... interfaces) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int[] interfaceRefs = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(interfaces[i]);
+        }
+        int codeUtf = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (int ref : interfaceRefs) {
+                out.writeShort(ref);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                method.writeTo(out, codeUtf);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** A branch target. Jumps emitted before it is placed are patched when it is. */
+    static final class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    /** The body of one method. Callers pass each instruction's effect on the operand stack. */
+    static final class Code {
+        private final int access;
+        private final int nameUtf;
+        private final int descriptorUtf;
+        private final int maxLocals;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack;
+        private int maxStack;
+
+        private Code(int access, int nameUtf, int descriptorUtf, int maxLocals) {
+            this.access = access;
+            this.nameUtf = nameUtf;
+            this.descriptorUtf = descriptorUtf;
+            this.maxLocals = maxLocals;
+        }
+
+        private void adjust(int stackDelta) {
+            stack += stackDelta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void op(int opcode, int stackDelta) {
+            bytes.write(opcode);
+            adjust(stackDelta);
+        }
+
+        void opByte(int opcode, int operand, int stackDelta) {
+            bytes.write(opcode);
+            bytes.write(operand);
+            adjust(stackDelta);
+        }
+
+        void opShort(int opcode, int operand, int stackDelta) {
+            bytes.write(opcode);
+            bytes.write(operand >> 8);
+            bytes.write(operand);
+            adjust(stackDelta);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                opByte(0x10, value, 1); // bipush
+            } else {
+                opShort(0x11, value, 1); // sipush
+            }
+        }
+
+        void jump(int opcode, Label target, int stackDelta) {
+            target.jumps.add(bytes.size());
+            if (!labels.contains(target)) {
+                labels.add(target);
+            }
+            opShort(opcode, 0, stackDelta);
+        }
+
+        void place(Label label) {
+            label.position = bytes.size();
+            if (!labels.contains(label)) {
+                labels.add(label);
+            }
+        }
+
+        /** Resets the tracked stack depth, e.g. after an unconditional jump. */
+        void stackDepth(int depth) {
+            stack = depth;
+        }
+
+        int stackDepth() {
+            return stack;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        private void writeTo(DataOutputStream out, int codeUtf) throws IOException {
+            byte[] patched = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    patched[jump + 1] = (byte) (offset >> 8);
+                    patched[jump + 2] = (byte) offset;
+                }
+            }
+            out.writeShort(access);
+            out.writeShort(nameUtf);
+            out.writeShort(descriptorUtf);
+            out.writeShort(1);
+            out.writeShort(codeUtf);
+            out.writeInt(12 + patched.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(patched.length);
+            out.write(patched);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+class ComparisonNode extends Node {
+    private final boolean greater;
+    private final Node left;
+    private final Node right;
+    private final int position;
+
+    public ComparisonNode(boolean greater, Node left, Node right, int position) {
+        this.greater = greater;
+        this.left = left;
+        this.right = right;
+        this.position = position;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        long a;
+        try {
+            a = left.executeLong(frame);
+        } catch (UnexpectedResultException e) {
+            return test(e.value, right.execute(frame));
+        }
+        long b;
+        try {
+            b = right.executeLong(frame);
+        } catch (UnexpectedResultException e) {
+            return test(a, e.value);
+        }
+        return greater ? a > b : a < b;
+    }
+
+    private boolean test(Object left, Object right) {
+        int comparison;
+        try {
+            comparison = Num.compare(left, right);
+        } catch (EvalError e) {
+            throw e.at(position);
+        }
+        return greater ? comparison > 0 : comparison < 0;
+    }
+}
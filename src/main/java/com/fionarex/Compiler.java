@@ -0,0 +1,251 @@
+package com.fionarex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Turns a parsed {@link SEXP} into a {@link Node} tree. Special forms and builtin operators are
+ * recognised here once, instead of on every evaluation, and every variable reference is resolved
+ * either to a (depth, slot) address in an enclosing function's {@link Frame} or to a global cell.
+ */
+public class Compiler {
+    private final GlobalEnv globals;
+    private final @Nullable Jit jit;
+    private final MemoCache memo;
+
+    public Compiler(GlobalEnv globals) {
+        this(globals, null, new MemoCache());
+    }
+
+    public Compiler(GlobalEnv globals, @Nullable Jit jit, MemoCache memo) {
+        this.globals = globals;
+        this.jit = jit;
+        this.memo = memo;
+    }
+
+    /**
+     * The variables of one function body: its parameters followed by its local defines. A frame
+     * made for the body has one slot per name, in the same order.
+     */
+    static final class Scope {
+        final List<String> names;
+        final @Nullable Scope parent;
+
+        Scope(List<String> names, @Nullable Scope parent) {
+            this.names = names;
+            this.parent = parent;
+        }
+    }
+
+    public @NonNull Node compile(SEXP expr) {
+        return compile(expr, null, false);
+    }
+
+    private @NonNull Node compile(SEXP expr, @Nullable Scope scope) {
+        return compile(expr, scope, false);
+    }
+
+    /**
+     * @param tail whether {@code expr} is in tail position of a function body, in which case a
+     *             call compiles to a node that hands the call back to the caller's trampoline
+     */
+    private @NonNull Node compile(SEXP expr, @Nullable Scope scope, boolean tail) {
+        if (expr instanceof Atom) {
+            return compileAtom((Atom) expr, scope);
+        } else if (expr instanceof SEXPList) {
+            return compileList((SEXPList) expr, scope, tail);
+        }
+        return new ErrorNode("Unknown SEXP type: " + expr.getClass(), Position.UNKNOWN);
+    }
+
+    private @NonNull Node compileAtom(Atom atom, @Nullable Scope scope) {
+        if (atom instanceof NumberLiteral) {
+            return new LiteralNode(((NumberLiteral) atom).getNumber());
+        } else if (atom instanceof StringLiteral) {
+            return new LiteralNode(atom.getValue());
+        } else if (atom instanceof BooleanLiteral) {
+            return new LiteralNode(((BooleanLiteral) atom).getBoolean());
+        }
+        return resolve(atom.getValue(), scope, 0);
+    }
+
+    private @NonNull Node resolve(String name, @Nullable Scope scope, int depth) {
+        if (scope == null) {
+            return new GlobalNode(globals.cell(name));
+        }
+        int slot = scope.names.lastIndexOf(name);
+        if (slot < 0) {
+            return resolve(name, scope.parent, depth + 1);
+        }
+        return new LocalNode(depth, slot, resolve(name, scope.parent, depth + 1));
+    }
+
+    private @NonNull Node compileList(SEXPList list, @Nullable Scope scope, boolean tail) {
+        int position = list.getPosition();
+        if (list.isEmpty()) {
+            return new ErrorNode("Cannot evaluate empty list", position);
+        }
+
+        List<SEXP> elements = list.getElements();
+        SEXP head = elements.get(0);
+        List<SEXP> args = elements.subList(1, elements.size());
+
+        if (head == Symbol.DEFINE) {
+            return compileDefine(args, position, scope, false);
+        }
+        if (head == Symbol.DEFINE_MEMO) {
+            return compileDefine(args, position, scope, true);
+        }
+        if (head == Symbol.IF) {
+            return compileIf(args, position, scope, tail);
+        }
+        if (head instanceof Symbol) {
+            Builtin builtin = Builtin.of(((Symbol) head).getValue());
+            if (builtin != null) {
+                return compileBuiltinCall(builtin, args, position, scope, tail);
+            }
+        }
+
+        return new CallNode(compile(head, scope), compileAll(args, scope), tail, position);
+    }
+
+    /**
+     * Compiles a call whose head names a builtin. Unless an enclosing function binds the name, the
+     * builtin's node runs directly for as long as the global of that name is unbound or still
+     * holds the builtin.
+     */
+    private @NonNull Node compileBuiltinCall(Builtin builtin, List<SEXP> args, int position, @Nullable Scope scope,
+                                             boolean tail) {
+        Node[] operands = compileAll(args, scope);
+        Node head = resolve(builtin.getName(), scope, 0);
+        CallNode call = new CallNode(head, operands, tail, position);
+        if (!(head instanceof GlobalNode)) {
+            return call;
+        }
+        return new BuiltinCallNode(((GlobalNode) head).cell, builtin, builtin.node(operands, position), call);
+    }
+
+    private Node[] compileAll(List<SEXP> exprs, @Nullable Scope scope) {
+        Node[] nodes = new Node[exprs.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(exprs.get(i), scope);
+        }
+        return nodes;
+    }
+
+    private @NonNull Node compileIf(List<SEXP> args, int position, @Nullable Scope scope, boolean tail) {
+        if (args.size() < 2 || args.size() > 3) {
+            return new ErrorNode("if expects 2 or 3 arguments", position);
+        }
+        Node alternative = args.size() == 3 ? compile(args.get(2), scope, tail) : null;
+        return new IfNode(compile(args.get(0), scope), compile(args.get(1), scope, tail), alternative);
+    }
+
+    /** @param memoize whether this is a {@code define-memo}, whose calls go through the memo cache */
+    private @NonNull Node compileDefine(List<SEXP> args, int position, @Nullable Scope scope, boolean memoize) {
+        if (args.size() < 2) {
+            return new ErrorNode("Invalid define syntax", position);
+        }
+
+        SEXP nameForm = args.get(0);
+
+        if (nameForm instanceof Symbol) {
+            if (memoize) {
+                return new ErrorNode("define-memo expects a function definition", position);
+            }
+            return define(((Atom) nameForm).getValue(), compile(args.get(1), scope), scope);
+        }
+
+        if (nameForm instanceof SEXPList) {
+            SEXPList sig = (SEXPList) nameForm;
+            if (sig.isEmpty() || !(sig.get(0) instanceof Symbol)) {
+                return new ErrorNode("Invalid function definition", position);
+            }
+
+            String funcName = ((Atom) sig.get(0)).getValue();
+            List<String> params = new ArrayList<>();
+            for (int i = 1; i < sig.size(); i++) {
+                if (!(sig.get(i) instanceof Symbol)) {
+                    return new ErrorNode("Function parameters must be atoms", position);
+                }
+                params.add(((Atom) sig.get(i)).getValue());
+            }
+
+            SEXP body = args.get(1);
+            List<String> names = new ArrayList<>(params);
+            collectDefines(body, names);
+            Scope bodyScope = new Scope(names, scope);
+            // Only top-level functions are JIT candidates; others read their enclosing frames.
+            // Memoized ones are left to the interpreter so recursive calls still hit the cache.
+            Node lambda = new LambdaNode(funcName, params, body, compile(body, bodyScope, true), names.size(), scope,
+                    scope == null && !memoize ? jit : null, memoize ? memo : null);
+            return define(funcName, lambda, scope);
+        }
+
+        return new ErrorNode("Malformed define expression", position);
+    }
+
+    /**
+     * Creates a function as if it had been defined in {@code scope}, closed over
+     * {@code closureFrame}, whose slots (and those of its parents) must be laid out as
+     * {@code scope} says. {@code names} are the function's own variables, as found for a
+     * define. The body is only compiled when the function is first called. Used to restore the
+     * functions of a {@link Snapshot}.
+     */
+    UserFunction function(String name, List<String> params, Supplier<SEXP> body, List<String> names,
+                          boolean memoize, @Nullable Scope scope, Frame closureFrame) {
+        Scope bodyScope = new Scope(names, scope);
+        Node compiledBody = new DeferredNode(() -> compile(body.get(), bodyScope, true));
+        return new UserFunction(name, params, body, compiledBody, names.size(), closureFrame, scope,
+                scope == null && !memoize ? jit : null, memoize ? memo : null);
+    }
+
+    private @NonNull Node define(String name, Node value, @Nullable Scope scope) {
+        if (scope == null) {
+            return new DefineGlobalNode(globals.cell(name), value);
+        }
+        return new DefineLocalNode(scope.names.lastIndexOf(name), value);
+    }
+
+    /**
+     * Adds every name bound by a {@code define} in {@code expr} to {@code names}, so that each
+     * local gets a slot in the function's frame. Nested function bodies are their own scope and
+     * are not searched.
+     */
+    static void collectDefines(SEXP expr, List<String> names) {
+        if (!(expr instanceof SEXPList) || ((SEXPList) expr).isEmpty()) {
+            return;
+        }
+        List<SEXP> elements = ((SEXPList) expr).getElements();
+        SEXP head = elements.get(0);
+
+        if ((head == Symbol.DEFINE || head == Symbol.DEFINE_MEMO) && elements.size() >= 3) {
+            SEXP nameForm = elements.get(1);
+            if (nameForm instanceof SEXPList) {
+                SEXPList sig = (SEXPList) nameForm;
+                if (!sig.isEmpty() && sig.get(0) instanceof Symbol) {
+                    addName(((Atom) sig.get(0)).getValue(), names);
+                }
+                return;
+            }
+            if (nameForm instanceof Symbol) {
+                addName(((Atom) nameForm).getValue(), names);
+            }
+            collectDefines(elements.get(2), names);
+            return;
+        }
+
+        for (SEXP element : elements) {
+            collectDefines(element, names);
+        }
+    }
+
+    private static void addName(String name, List<String> names) {
+        if (!names.contains(name)) {
+            names.add(name);
+        }
+    }
+}
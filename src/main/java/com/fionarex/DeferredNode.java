@@ -0,0 +1,28 @@
+package com.fionarex;
+
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * The body of a function restored from a {@link Snapshot}, which is only compiled when the
+ * function first runs. Compiling it twice on a race is harmless.
+ */
+class DeferredNode extends Node {
+    private final Supplier<Node> compile;
+    private volatile @Nullable Node node;
+
+    public DeferredNode(Supplier<Node> compile) {
+        this.compile = compile;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Node compiled = node;
+        if (compiled == null) {
+            compiled = compile.get();
+            node = compiled;
+        }
+        return compiled.execute(frame);
+    }
+}
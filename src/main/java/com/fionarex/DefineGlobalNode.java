@@ -0,0 +1,20 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+class DefineGlobalNode extends Node {
+    private final GlobalEnv.Cell cell;
+    private final Node value;
+
+    public DefineGlobalNode(GlobalEnv.Cell cell, Node value) {
+        this.cell = cell;
+        this.value = value;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object result = value.execute(frame);
+        cell.set(result);
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/** A {@code define} inside a function body, which binds in that call's own frame. */
+class DefineLocalNode extends Node {
+    private final int slot;
+    private final Node value;
+
+    public DefineLocalNode(int slot, Node value) {
+        this.slot = slot;
+        this.value = value;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object result = value.execute(frame);
+        UserFunction.redefined(frame.slots[slot]);
+        frame.slots[slot] = result;
+        return result;
+    }
+}
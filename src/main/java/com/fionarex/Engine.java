@@ -0,0 +1,207 @@
+package com.fionarex;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Evaluates top-level forms. By default each form is compiled to a {@link Node} tree and run
+ * against a {@link GlobalEnv}; in reference mode the tree-walking {@link Eval} is used instead so
+ * the two can be compared.
+ */
+public class Engine {
+    private final GlobalEnv globals;
+    private final Jit jit;
+    private final MemoCache memo;
+    private final Compiler compiler;
+    private final Eval reference;
+    private final boolean referenceMode;
+    private final Frame topLevel = new Frame(new Object[0], null);
+    private volatile @Nullable ExecutionBudget limits;
+    // The frame limit of the Machine that evaluates forms in reference mode, or 0 to use Eval.
+    private volatile int machineFrames;
+
+    public Engine() {
+        this(false);
+    }
+
+    public Engine(boolean referenceMode) {
+        this(referenceMode, new MemoCache());
+    }
+
+    public Engine(boolean referenceMode, MemoCache memo) {
+        this.referenceMode = referenceMode;
+        this.memo = memo;
+        this.globals = new GlobalEnv();
+        this.jit = new Jit(globals);
+        this.compiler = new Compiler(globals, jit, memo);
+        this.reference = new Eval(memo);
+    }
+
+    private Engine(Engine parent) {
+        this.referenceMode = parent.referenceMode;
+        this.memo = parent.memo;
+        this.globals = new GlobalEnv(parent.globals);
+        this.jit = new Jit(globals);
+        this.jit.setThreshold(parent.jit.getThreshold());
+        this.limits = parent.limits;
+        this.machineFrames = parent.machineFrames;
+        this.compiler = new Compiler(globals, jit, memo);
+        this.reference = parent.reference.layer();
+    }
+
+    /**
+     * Returns an engine that sees this engine's globals, and later changes to them, but keeps its
+     * own defines to itself. Any number of layers can be used from different threads while this
+     * engine stays shared, e.g. to give every session of a server the same prelude.
+     */
+    public Engine layer() {
+        return new Engine(this);
+    }
+
+    public Jit getJit() {
+        return jit;
+    }
+
+    /**
+     * Evaluates every later top-level form under a {@link ExecutionBudget#renew renewal} of
+     * {@code limits}, or under no budget if it is {@code null}. Layers made afterwards inherit it.
+     */
+    public void setLimits(@Nullable ExecutionBudget limits) {
+        this.limits = limits;
+    }
+
+    public @Nullable ExecutionBudget getLimits() {
+        return limits;
+    }
+
+    /**
+     * Evaluates later forms with a {@link Machine} that keeps at most {@code maxFrames} frames,
+     * instead of the recursive {@link Eval}. Only for reference-mode engines.
+     */
+    public void useMachine(int maxFrames) {
+        if (!referenceMode) {
+            throw new IllegalStateException("The machine evaluator needs a reference-mode engine");
+        }
+        machineFrames = maxFrames;
+    }
+
+    public MemoCache getMemoCache() {
+        return memo;
+    }
+
+    boolean isReferenceMode() {
+        return referenceMode;
+    }
+
+    Compiler getCompiler() {
+        return compiler;
+    }
+
+    /** The frame top-level functions of the compiled engine close over. */
+    Frame getTopLevel() {
+        return topLevel;
+    }
+
+    /** The environment top-level forms of the reference engine are evaluated in. */
+    Eval getReferenceEnv() {
+        return reference;
+    }
+
+    /** Whether {@code env} holds globals of this engine, or of an engine it is layered on. */
+    boolean isGlobal(Eval env) {
+        for (Eval e = reference; e != null; e = e.getParent()) {
+            if (e == env) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Every global this engine sees and its value. */
+    Map<String, Object> bindings() {
+        if (!referenceMode) {
+            return globals.bindings();
+        }
+        ArrayDeque<Eval> chain = new ArrayDeque<>();
+        for (Eval e = reference; e != null; e = e.getParent()) {
+            chain.push(e);
+        }
+        Map<String, Object> bindings = new HashMap<>();
+        for (Eval e : chain) {
+            bindings.putAll(e.getVariables());
+        }
+        return bindings;
+    }
+
+    /** The value of the global {@code name}, or {@code null} if it is unbound. */
+    public @Nullable Object get(String name) {
+        return referenceMode ? reference.lookup(name) : globals.get(name);
+    }
+
+    /** Whether the global {@code name} is bound, e.g. so that the optimizer leaves it alone. */
+    public boolean isBound(String name) {
+        return get(name) != null;
+    }
+
+    /** Binds the global {@code name} to {@code value}, as a top-level {@code define} would. */
+    public void define(String name, Object value) {
+        if (referenceMode) {
+            reference.define(name, value);
+        } else {
+            globals.define(name, value);
+        }
+    }
+
+    /**
+     * Unbinds the global {@code name} of this engine, so that a binding of the engine it is layered
+     * on shows through again. Returns the value it was bound to, or {@code null}.
+     */
+    public @Nullable Object undefine(String name) {
+        return referenceMode ? reference.undefine(name) : globals.undefine(name);
+    }
+
+    /** Binds the globals of {@code source}, which must be the first globals of this engine. */
+    void restore(GlobalEnv.Source source) {
+        if (!referenceMode) {
+            globals.restore(source);
+            return;
+        }
+        for (String name : source.names()) {
+            Object value = source.get(name);
+            if (value != null) {
+                reference.setVariable(name, value);
+            }
+        }
+    }
+
+    public @NonNull Object eval(SEXP expr) {
+        ExecutionBudget budget = limits;
+        return budget == null ? evalForm(expr) : eval(expr, budget.renew());
+    }
+
+    /** Evaluates {@code expr} under {@code budget}, which another thread may {@link ExecutionBudget#cancel}. */
+    public @NonNull Object eval(SEXP expr, ExecutionBudget budget) {
+        ExecutionBudget previous = budget.start();
+        try {
+            return evalForm(expr);
+        } finally {
+            budget.finish(previous);
+        }
+    }
+
+    private @NonNull Object evalForm(SEXP expr) {
+        FormEvaluationEvent event = Profiler.formStarted();
+        try {
+            if (referenceMode) {
+                int frames = machineFrames;
+                return frames > 0 ? new Machine(reference, frames).eval(expr) : reference.eval(expr);
+            }
+            return compiler.compile(expr).execute(topLevel);
+        } finally {
+            Profiler.formDone(event, expr);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Stands in for a malformed form. The error is raised when the form runs rather than when it is
+ * compiled, so a bad function body still only fails once the function is called.
+ */
+class ErrorNode extends Node {
+    private final String message;
+    private final int position;
+
+    public ErrorNode(String message, int position) {
+        this.message = message;
+        this.position = position;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        throw new EvalError(message).at(position);
+    }
+}
@@ -4,142 +4,322 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import org.checkerframework.checker.nullness.qual.*;
 
 public class Eval {
     private final @Nullable Eval parent;
-    private final Map<String, Object> environment = new HashMap<>();
-    public static final Object NIL = new Object();
+    private final Map<String, Object> environment;
+    private final MemoCache memo;
+    // The environment whose defines are globals: this one, or the nearest such ancestor for the
+    // environments of function calls.
+    private final Eval global;
+    /** The empty list, also the value of an {@code if} whose condition fails and that has no alternative. */
+    public static final Object NIL = new Object() {
+        @Override
+        public String toString() {
+            return "()";
+        }
+    };
+
+    // Counts the defines made in this environment while it is a global one; call sites only trust
+    // operators resolved in the globals since the last define in them or in a layer beneath.
+    private volatile long definitions;
+    private static final AtomicLongFieldUpdater<Eval> DEFINITIONS =
+            AtomicLongFieldUpdater.newUpdater(Eval.class, "definitions");
+    // Whether a define has been evaluated in this environment of a function call; parameters are
+    // bound where call sites can see them, but a define can shadow an operator they remembered.
+    private boolean localDefines;
+
+    /** The operator a call site resolved in the globals, and when. */
+    static final class CallSite {
+        final Eval global;
+        final long definitions;
+        final Object target;
+
+        CallSite(Eval global, long definitions, Object target) {
+            this.global = global;
+            this.definitions = definitions;
+            this.target = target;
+        }
+    }
 
     public Eval() {
+        this(new MemoCache());
+    }
+
+    public Eval(MemoCache memo) {
         this.parent = null;
+        this.memo = memo;
+        // The global environment is shared by forms the Scheduler runs in parallel.
+        this.environment = new ConcurrentHashMap<>();
+        this.global = this;
     }
 
     public Eval(Eval parent) {
         this.parent = parent;
+        this.memo = parent.memo;
+        this.environment = new HashMap<>();
+        this.global = parent.global;
     }
 
-    public @NonNull Object eval(SEXP expr) {
-        if (expr instanceof Atom) {
-            Atom atom = (Atom) expr;
-            String value = atom.getValue();
-
-            Object val = lookup(value);
-            if (val != null) {
-                return val;
-            }
-
-            try {
-                return Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                return value;
-            }
+    private Eval(Eval parent, Map<String, Object> environment) {
+        this.parent = parent;
+        this.memo = parent.memo;
+        this.environment = environment;
+        this.global = this;
+    }
 
-        } else if (expr instanceof SEXPList) {
-            SEXPList list = (SEXPList) expr;
+    /** A global environment on top of this one, for a layered {@link Engine}. */
+    Eval layer() {
+        return new Eval(this, new ConcurrentHashMap<>());
+    }
 
-            if (list.isEmpty()) {
-                throw new RuntimeException("Cannot evaluate empty list");
+    /**
+     * Evaluates {@code expr} in this environment. Both branches of an {@code if} and the body of
+     * an applied function are tail positions; they are evaluated by continuing this loop rather
+     * than by recursing, so recursive loops run in constant stack space.
+     */
+    public @NonNull Object eval(SEXP expr) {
+        Profiler profiler = Profiler.active;
+        ExecutionBudget budget = ExecutionBudget.current();
+        if (profiler == null && budget == null) {
+            return eval(expr, null, 0, null);
+        }
+        int depth = profiler != null ? profiler.depth() : 0;
+        int budgetDepth = budget != null ? budget.depth() : 0;
+        try {
+            return eval(expr, profiler, depth, budget);
+        } finally {
+            if (profiler != null) {
+                profiler.unwind(depth);
             }
-
-            Object op = eval(list.getElements().get(0));
-            if (op == null) {
-                throw new RuntimeException("Operator is null");
+            if (budget != null) {
+                budget.unwind(budgetDepth);
             }
+        }
+    }
 
-            List<SEXP> args = list.getElements().subList(1, list.size());
-
-            if (op instanceof String operator) {
-                switch (operator) {
-                    case "define":
-                        return evalDefine(args);
-                    case "if":
-                        return evalIf(args);
-                    case "+":
-                        return evalArithmetic(args, (a, b) -> a + b);
-                    case "-":
-                        return evalArithmetic(args, (a, b) -> a - b);
-                    case "*":
-                        return evalArithmetic(args, (a, b) -> a * b);
-                    case "/":
-                        return evalArithmetic(args, (a, b) -> {
-                            if (b == 0) throw new RuntimeException("Division by zero");
-                            return a / b;
-                        });
-                    case ">":
-                        return evalComparison(args, (a, b) -> a > b);
-                    case "<":
-                        return evalComparison(args, (a, b) -> a < b);
-                    default:
-                        throw new RuntimeException("Unknown operator: " + operator);
+    /**
+     * @param depth the profiler's call depth when this evaluation started; a function applied by
+     *              the loop replaces the call entered by an earlier iteration, if there was one.
+     *              The budget's depth is treated the same way.
+     */
+    private @NonNull Object eval(SEXP expr, @Nullable Profiler profiler, int depth, @Nullable ExecutionBudget budget) {
+        Eval env = this;
+        int budgetDepth = budget != null ? budget.depth() : 0;
+        // The function whose body the loop has continued into, if any, and where the first
+        // function applied by the loop was called; an error reports them as a frame of its trace.
+        UserFunction calling = null;
+        int callPosition = Position.UNKNOWN;
+
+        try {
+            while (true) {
+                if (expr instanceof NumberLiteral) {
+                    return ((NumberLiteral) expr).getNumber();
+
+                } else if (expr instanceof StringLiteral) {
+                    return ((StringLiteral) expr).getValue();
+
+                } else if (expr instanceof BooleanLiteral) {
+                    return ((BooleanLiteral) expr).getBoolean();
+
+                } else if (expr instanceof Symbol) {
+                    String name = ((Symbol) expr).getValue();
+
+                    Object val = env.lookup(name);
+                    return val != null ? val : Builtin.unbound(name);
+
+                } else if (expr instanceof SEXPList) {
+                    SEXPList list = (SEXPList) expr;
+
+                    if (list.isEmpty()) {
+                        throw new EvalError("Cannot evaluate empty list");
+                    }
+
+                    // The operands are read from the list itself, from index 1, rather than a sublist.
+                    SEXP head = list.get(0);
+
+                    if (head == Symbol.DEFINE) {
+                        return env.evalDefine(list.getElements().subList(1, list.size()), false);
+                    } else if (head == Symbol.DEFINE_MEMO) {
+                        return env.evalDefine(list.getElements().subList(1, list.size()), true);
+                    } else if (head == Symbol.IF) {
+                        SEXP branch = env.evalIf(list);
+                        if (branch == null) {
+                            return NIL;
+                        }
+                        expr = branch;
+                        continue;
+                    }
+
+                    Object op = head instanceof Symbol
+                            ? env.resolveOperator(list, ((Symbol) head).getValue())
+                            : env.eval(head);
+
+                    if (op instanceof Builtin builtin) {
+                        if (builtin == Builtin.GREATER) {
+                            return env.evalComparison(list, c -> c > 0);
+                        } else if (builtin == Builtin.LESS) {
+                            return env.evalComparison(list, c -> c < 0);
+                        } else if (builtin.isArithmetic()) {
+                            return env.evalArithmetic(list, builtin.operator());
+                        }
+                        Object[] evaluatedArgs = new Object[list.size() - 1];
+                        for (int i = 0; i < evaluatedArgs.length; i++) {
+                            evaluatedArgs[i] = env.eval(list.get(i + 1));
+                        }
+                        return builtin.apply(evaluatedArgs);
+                    }
+
+                    if (op instanceof String) {
+                        throw new EvalError("Unknown operator: ", op);
+                    }
+
+                    if (op instanceof UserFunction fn) {
+                        List<Object> evaluatedArgs = new ArrayList<>(list.size() - 1);
+                        for (int i = 1; i < list.size(); i++) {
+                            evaluatedArgs.add(env.eval(list.get(i)));
+                        }
+                        if (fn.isCompiled() || fn.isMemoized()) {
+                            return fn.apply(evaluatedArgs);
+                        }
+                        if (profiler != null) {
+                            profiler.unwind(depth);
+                            profiler.enter(fn);
+                        }
+                        if (budget != null) {
+                            budget.unwind(budgetDepth);
+                            budget.enter();
+                        }
+                        env = fn.bind(evaluatedArgs);
+                        if (calling == null) {
+                            callPosition = list.getPosition();
+                        }
+                        calling = fn;
+                        expr = fn.getBody();
+                        continue;
+                    }
+
+                    throw new EvalError("Cannot apply operator of type: " + op.getClass().getName());
                 }
-            }
 
-            if (op instanceof UserFunction fn) {
-                List<Object> evaluatedArgs = new ArrayList<>();
-                for (SEXP argExpr : args) {
-                    evaluatedArgs.add(eval(argExpr));
-                }
-                return fn.apply(evaluatedArgs);
+                throw new EvalError("Unknown SEXP type: " + expr.getClass());
             }
-
-            throw new RuntimeException("Cannot apply operator of type: " + op.getClass().getName());
+        } catch (EvalError e) {
+            if (expr instanceof SEXPList) {
+                e.at(((SEXPList) expr).getPosition());
+            }
+            if (calling != null) {
+                e.addFrame(calling.getName());
+                e.at(callPosition);
+            }
+            throw e;
         }
-
-        throw new RuntimeException("Unknown SEXP type: " + expr.getClass());
     }
 
-    private @NonNull Object evalIf(List<SEXP> args) {
-        if (args.size() < 2 || args.size() > 3) {
-            throw new RuntimeException("if expects 2 or 3 arguments");
+    /** Evaluates the condition and returns the branch to evaluate next, or null if there is none. */
+    private @Nullable SEXP evalIf(SEXPList form) {
+        if (form.size() < 3 || form.size() > 4) {
+            throw new EvalError("if expects 2 or 3 arguments");
         }
 
-        Object condition = eval(args.get(0));
-        boolean condTrue;
+        Object condition = eval(form.get(1));
 
-        if (condition instanceof Integer) {
-            condTrue = ((Integer) condition) != 0;
-        } else if (condition instanceof Boolean) {
-            condTrue = (Boolean) condition;
-        } else if (condition == null) {
-            condTrue = false;
+        if (isTrue(condition)) {
+            return form.get(2);
+        } else if (form.size() == 4) {
+            return form.get(3);
         } else {
-            condTrue = true;
+            return null;
         }
+    }
 
-        if (condTrue) {
-            return eval(args.get(1));
-        } else if (args.size() == 3) {
-            return eval(args.get(2));
+    static boolean isTrue(@Nullable Object condition) {
+        if (Num.isNumber(condition)) {
+            return !Num.isZero(condition);
+        } else if (condition instanceof Boolean) {
+            return (Boolean) condition;
         } else {
-            return NIL;
+            return condition != null;
         }
     }
 
-    private interface IntComparisonOperator {
-        boolean apply(int a, int b);
+    private interface ComparisonOperator {
+        boolean apply(int comparison);
     }
 
-    private boolean evalComparison(List<SEXP> args, IntComparisonOperator op) {
-        if (args.size() != 2) {
-            throw new RuntimeException("Comparison operators require exactly two operands");
+    private boolean evalComparison(SEXPList call, ComparisonOperator op) {
+        if (call.size() != 3) {
+            throw new EvalError("Comparison operators require exactly two operands");
         }
 
-        Object leftObj = eval(args.get(0));
-        Object rightObj = eval(args.get(1));
+        Object leftObj = eval(call.get(1));
+        Object rightObj = eval(call.get(2));
+
+        return op.apply(Num.compare(leftObj, rightObj));
+    }
 
-        if (!(leftObj instanceof Integer) || !(rightObj instanceof Integer)) {
-            throw new RuntimeException("Comparison operands must be integers");
+    /**
+     * Looks up the operator {@code name} of {@code call}. An operator found in the globals, or
+     * unbound, is remembered by the call until the next global define, or until a define in the
+     * environment of an enclosing function could have bound the name; one bound by an enclosing
+     * function, such as a parameter, is looked up every time.
+     */
+    Object resolveOperator(SEXPList call, String name) {
+        long seen = global.definitionCount();
+        CallSite site = call.callSite;
+        if (site != null && site.definitions == seen && site.global == global && !hasLocalDefines()) {
+            return site.target;
+        }
+        boolean local = true;
+        for (Eval env = this; env != null; env = env.parent) {
+            if (env == global) {
+                local = false;
+            }
+            if (env.environment.containsKey(name)) {
+                Object value = env.environment.get(name);
+                if (!local) {
+                    call.callSite = new CallSite(global, seen, value);
+                }
+                return value;
+            }
         }
+        Object value = Builtin.unbound(name);
+        call.callSite = new CallSite(global, seen, value);
+        return value;
+    }
 
-        int left = (Integer) leftObj;
-        int right = (Integer) rightObj;
+    /** Whether a define has been evaluated in the environment of an enclosing function. */
+    private boolean hasLocalDefines() {
+        for (Eval env = this; env != global; env = env.parent) {
+            if (env.localDefines) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        return op.apply(left, right);
+    /** The number of defines made in this global environment and those it is layered on. */
+    private long definitionCount() {
+        long count = 0;
+        for (Eval env = this; env != null; env = env.parent) {
+            count += env.definitions;
+        }
+        return count;
+    }
+
+    private void countDefinition() {
+        if (this == global) {
+            DEFINITIONS.incrementAndGet(this);
+        } else {
+            localDefines = true;
+        }
     }
 
-    private @Nullable Object lookup(String name) {
+    @Nullable Object lookup(String name) {
         if (environment.containsKey(name)) {
             return environment.get(name);
         } else if (parent != null) {
@@ -149,70 +329,88 @@ public class Eval {
         }
     }
 
-    private interface IntBinaryOperator {
-        int apply(int a, int b);
-    }
-
-    private int evalArithmetic(List<SEXP> args, IntBinaryOperator op) {
-        if (args.isEmpty()) {
-            throw new RuntimeException("Operator requires at least one operand");
+    private Object evalArithmetic(SEXPList call, char operator) {
+        if (call.size() < 2) {
+            throw new EvalError("Operator requires at least one operand");
         }
 
-        Object resultObj = eval(args.get(0));
-        if (!(resultObj instanceof Integer)) {
-            throw new RuntimeException("Expected integer operand but got: " + resultObj);
-        }
-        int result = (Integer) resultObj;
+        Object result = Num.checkNumber(eval(call.get(1)));
 
-        for (int i = 1; i < args.size(); i++) {
-            Object nextObj = eval(args.get(i));
-            if (!(nextObj instanceof Integer)) {
-                throw new RuntimeException("Expected integer operand but got: " + nextObj);
-            }
-            result = op.apply(result, (Integer) nextObj);
+        for (int i = 2; i < call.size(); i++) {
+            result = Num.apply(operator, result, eval(call.get(i)));
         }
         return result;
     }
 
-    private Object evalDefine(List<SEXP> args) {
+    Object evalDefine(List<SEXP> args, boolean memoize) {
         if (args.size() < 2) {
-            throw new RuntimeException("Invalid define syntax");
+            throw new EvalError("Invalid define syntax");
         }
 
         SEXP nameForm = args.get(0);
 
-        if (nameForm instanceof Atom) {
-            String name = ((Atom) nameForm).getValue();
-            Object value = eval(args.get(1));
-            environment.put(name, value);
-            return value;
+        if (nameForm instanceof Symbol) {
+            if (memoize) {
+                throw new EvalError("define-memo expects a function definition");
+            }
+            return define(((Atom) nameForm).getValue(), eval(args.get(1)));
         }
 
         if (nameForm instanceof SEXPList) {
             SEXPList sig = (SEXPList) nameForm;
-            if (sig.isEmpty() || !(sig.get(0) instanceof Atom)) {
-                throw new RuntimeException("Invalid function definition");
+            if (sig.isEmpty() || !(sig.get(0) instanceof Symbol)) {
+                throw new EvalError("Invalid function definition");
             }
 
             String funcName = ((Atom) sig.get(0)).getValue();
             List<String> params = new ArrayList<>();
             for (int i = 1; i < sig.size(); i++) {
-                if (!(sig.get(i) instanceof Atom)) {
-                    throw new RuntimeException("Function parameters must be atoms");
+                if (!(sig.get(i) instanceof Symbol)) {
+                    throw new EvalError("Function parameters must be atoms");
                 }
                 params.add(((Atom) sig.get(i)).getValue());
             }
 
             SEXP body = args.get(1);
-            UserFunction fn = new UserFunction(params, body, this);
-            environment.put(funcName, fn);
+            UserFunction fn = new UserFunction(funcName, params, body, this, memoize ? memo : null);
+            UserFunction.redefined(environment.put(funcName, fn));
+            countDefinition();
             return fn;
         }
 
-        throw new RuntimeException("Malformed define expression");
+        throw new EvalError("Malformed define expression");
+    }
+
+    /** Binds {@code name} in this environment as a {@code define} does, and returns {@code value}. */
+    Object define(String name, Object value) {
+        UserFunction.redefined(environment.put(name, value));
+        countDefinition();
+        return value;
+    }
+
+    /** Removes the binding of {@code name} from this environment, and returns its value or {@code null}. */
+    @Nullable Object undefine(String name) {
+        Object value = environment.remove(name);
+        if (value != null) {
+            UserFunction.redefined(value);
+            countDefinition();
+        }
+        return value;
     }
 
     public void setVariable(String name, Object value) {
         environment.put(name, value);
+        if (this == global) {
+            countDefinition();
+        }
+    }
+
+    @Nullable Eval getParent() {
+        return parent;
+    }
+
+    /** The variables bound in this environment itself, not in its parents. */
+    Map<String, Object> getVariables() {
+        return environment;
     }
 }
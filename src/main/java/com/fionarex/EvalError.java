@@ -0,0 +1,117 @@
+package com.fionarex;
+
+import java.util.Arrays;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * An error in a .calc program, found while parsing or evaluating it. Instead of the Java stack,
+ * which is never captured, it records where in the source it happened and the .calc calls that
+ * were in progress: as it passes out of each form and function call, the innermost form gives the
+ * position within the call and the function closes the frame. Calls in tail position replace
+ * their caller, so the caller doesn't appear.
+ *
+ * <p>For errors that are thrown often, the message can be given as a fixed text and a detail
+ * value, which are only joined if the message is asked for.
+ */
+public class EvalError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // Frames beyond this many are counted but not kept.
+    private static final int MAX_FRAMES = 64;
+
+    private final transient @Nullable Object detail;
+    // The innermost position known, and the position within the frame not yet closed.
+    private int position = Position.UNKNOWN;
+    private int current = Position.UNKNOWN;
+
+    // The closed frames, innermost first: each function, the position within it, and how many
+    // more times the same frame directly follows, as it does in a recursion.
+    private String @Nullable [] functions;
+    private int @Nullable [] positions;
+    private int @Nullable [] repeats;
+    private int frames;
+    private int dropped;
+
+    public EvalError(String message) {
+        this(message, null);
+    }
+
+    /** An error whose message is {@code message} followed by {@code detail}. */
+    public EvalError(String message, @Nullable Object detail) {
+        super(message, null, false, false);
+        this.detail = detail;
+    }
+
+    @Override
+    public String getMessage() {
+        String message = super.getMessage();
+        return detail == null ? message : message + detail;
+    }
+
+    /** Where the error happened, as a {@link Position}, or {@link Position#UNKNOWN}. */
+    public int getPosition() {
+        return position;
+    }
+
+    /** Records that the error passed out of the form at {@code position}, unless an inner form did. */
+    EvalError at(int position) {
+        if (current == Position.UNKNOWN) {
+            current = position;
+            if (this.position == Position.UNKNOWN) {
+                this.position = position;
+            }
+        }
+        return this;
+    }
+
+    /** Records that the error passed out of a call of {@code function}, closing its frame. */
+    @SuppressWarnings("nullness") // the arrays exist once there are frames
+    void addFrame(String function) {
+        if (frames > 0 && positions[frames - 1] == current && functions[frames - 1].equals(function)) {
+            repeats[frames - 1]++;
+        } else if (frames == MAX_FRAMES) {
+            dropped++;
+        } else {
+            if (functions == null) {
+                functions = new String[8];
+                positions = new int[8];
+                repeats = new int[8];
+            } else if (frames == functions.length) {
+                functions = Arrays.copyOf(functions, frames * 2);
+                positions = Arrays.copyOf(positions, frames * 2);
+                repeats = Arrays.copyOf(repeats, frames * 2);
+            }
+            functions[frames] = function;
+            positions[frames] = current;
+            frames++;
+        }
+        current = Position.UNKNOWN;
+    }
+
+    /**
+     * The .calc stack at the error, one line per call from the innermost out, each with the
+     * position in that function that was being evaluated, ending at the top level of
+     * {@code source}, the name of the program.
+     */
+    @SuppressWarnings("nullness") // the arrays exist once there are frames
+    public String trace(String source) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < frames; i++) {
+            appendFrame(sb, functions[i], source, positions[i]);
+            if (repeats[i] > 0) {
+                sb.append("\t... repeated ").append(repeats[i]).append(repeats[i] == 1 ? " more time\n" : " more times\n");
+            }
+        }
+        if (dropped > 0) {
+            sb.append("\t... ").append(dropped).append(" more\n");
+        }
+        appendFrame(sb, "top level", source, current);
+        return sb.toString();
+    }
+
+    private static void appendFrame(StringBuilder sb, String function, String source, int position) {
+        sb.append("\tat ").append(function).append(" (").append(source).append(':')
+                .append(Position.toString(position)).append(")\n");
+    }
+}
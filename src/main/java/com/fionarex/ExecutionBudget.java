@@ -0,0 +1,227 @@
+package com.fionarex;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Limits on one evaluation: the number of steps, the wall-clock time and the depth of calls in
+ * progress, and a flag any thread can set with {@link #cancel} to stop it. A step is the
+ * application of a user function, including calls in tail position; a tail call doesn't add to
+ * the depth, since it replaces its caller. When a limit is reached, or the budget is cancelled,
+ * the evaluation is abandoned with an {@link Exceeded}.
+ *
+ * <p>A budget applies to the thread that runs {@link Engine#eval(SEXP, ExecutionBudget)}. While
+ * no thread evaluates under one, checking costs a volatile read per call. Step and depth limits
+ * count the calls made on that thread, so under them functions don't run JIT-compiled code,
+ * which makes calls the budget can't see, and {@code pmap} and {@code preduce} run on the
+ * calling thread. A budget with only a time limit keeps both: a watchdog thread stops it at the
+ * deadline, and {@code pmap} and {@code preduce} workers check it too.
+ *
+ * <p>A stopped evaluation notices at its next call of a user function, at the next iteration of
+ * a JIT-compiled loop, or at the next element of {@code vector-map}, {@code pmap} or
+ * {@code preduce}. The other builtins run to completion; each is a single pass over its
+ * arguments.
+ */
+public final class ExecutionBudget {
+    /** What stopped an evaluation. */
+    public enum Limit { STEPS, TIME, DEPTH, CANCELLED }
+
+    /** Thrown when an evaluation runs out of its budget, with the .calc calls it was in. */
+    public static final class Exceeded extends EvalError {
+        private static final long serialVersionUID = 1L;
+
+        private final Limit limit;
+
+        Exceeded(Limit limit, String message) {
+            super(message);
+            this.limit = limit;
+        }
+
+        public Limit getLimit() {
+            return limit;
+        }
+    }
+
+    // The number of threads evaluating under a budget; while it is zero the thread-local isn't read.
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final ThreadLocal<@Nullable ExecutionBudget> installed = new ThreadLocal<>();
+    // The number of running evaluations that have been stopped but haven't noticed yet; while it
+    // is zero, checkpoint() is a single volatile read.
+    private static final AtomicInteger stopping = new AtomicInteger();
+
+    private final long maxSteps;
+    private final long timeLimitNanos;
+    private final int maxDepth;
+    private final boolean countsCalls;
+
+    // Only touched by the evaluating thread, and only if the budget counts calls.
+    private long steps;
+    private int depth;
+
+    private volatile @Nullable Limit stopped;
+    // Guarded by this.
+    private boolean started;
+    private boolean finished;
+    private @Nullable ScheduledFuture<?> alarm;
+
+    /**
+     * @param maxSteps        the most steps, or 0 for no limit
+     * @param timeLimitMillis the wall-clock time from the start of the evaluation, or 0 for no limit
+     * @param maxDepth        the most calls in progress at once, or 0 for no limit
+     */
+    public ExecutionBudget(long maxSteps, long timeLimitMillis, int maxDepth) {
+        this.maxSteps = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+        this.timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeLimitMillis, 0));
+        this.maxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        this.countsCalls = maxSteps > 0 || maxDepth > 0;
+    }
+
+    /** A new budget with the same limits, for the next evaluation. */
+    public ExecutionBudget renew() {
+        return new ExecutionBudget(maxSteps == Long.MAX_VALUE ? 0 : maxSteps,
+                TimeUnit.NANOSECONDS.toMillis(timeLimitNanos), maxDepth == Integer.MAX_VALUE ? 0 : maxDepth);
+    }
+
+    /** Stops the evaluation using this budget at its next check. Can be called from any thread. */
+    public void cancel() {
+        stop(Limit.CANCELLED);
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    /** Whether the budget limits steps or depth, which only the evaluating thread's calls count. */
+    boolean countsCalls() {
+        return countsCalls;
+    }
+
+    /** The budget of the evaluation running on this thread, or {@code null}. */
+    static @Nullable ExecutionBudget current() {
+        return running.get() == 0 ? null : installed.get();
+    }
+
+    /**
+     * Throws if the evaluation running on this thread has been stopped. Called where a long
+     * computation makes no calls the budget would see: in JIT-compiled loops and bulk builtins.
+     */
+    static void checkpoint() {
+        if (stopping.get() != 0) {
+            ExecutionBudget budget = installed.get();
+            if (budget != null) {
+                budget.checkStopped();
+            }
+        }
+    }
+
+    /** Makes this the budget of the current thread and starts the clock; returns the previous one. */
+    @Nullable ExecutionBudget start() {
+        synchronized (this) {
+            started = true;
+            if (stopped != null) {
+                stopping.incrementAndGet();
+            } else if (timeLimitNanos > 0) {
+                alarm = Watchdog.TIMER.schedule(() -> stop(Limit.TIME), timeLimitNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        return attach();
+    }
+
+    /** Ends the evaluation {@link #start} began and reinstates the budget it returned. */
+    void finish(@Nullable ExecutionBudget previous) {
+        synchronized (this) {
+            finished = true;
+            if (alarm != null) {
+                alarm.cancel(false);
+            }
+            if (stopped != null) {
+                stopping.decrementAndGet();
+            }
+        }
+        detach(previous);
+    }
+
+    /**
+     * Makes this budget, which must not count calls, also apply to the current thread, which
+     * works for its evaluation; returns the previous one for {@link #detach}.
+     */
+    @Nullable ExecutionBudget attach() {
+        ExecutionBudget previous = installed.get();
+        installed.set(this);
+        if (previous == null) {
+            running.incrementAndGet();
+        }
+        return previous;
+    }
+
+    /** Reinstates the budget {@link #attach} returned. */
+    static void detach(@Nullable ExecutionBudget previous) {
+        if (previous == null) {
+            installed.remove();
+            running.decrementAndGet();
+        } else {
+            installed.set(previous);
+        }
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    /** Counts a step that enters a call. Must be followed by an {@link #unwind} to an earlier depth. */
+    void enter() {
+        if (countsCalls) {
+            long step = ++steps;
+            if (step > maxSteps) {
+                throw new Exceeded(Limit.STEPS, "Evaluation exceeded its limit of " + maxSteps + " steps");
+            }
+            if (++depth > maxDepth) {
+                throw new Exceeded(Limit.DEPTH, "Evaluation exceeded its limit of " + maxDepth + " nested calls");
+            }
+        }
+        checkStopped();
+    }
+
+    /** Ends the calls entered since the depth was {@code depth}. */
+    void unwind(int depth) {
+        if (countsCalls) {
+            this.depth = depth;
+        }
+    }
+
+    private void checkStopped() {
+        Limit limit = stopped;
+        if (limit == Limit.TIME) {
+            throw new Exceeded(Limit.TIME, "Evaluation exceeded its time limit of "
+                    + TimeUnit.NANOSECONDS.toMillis(timeLimitNanos) + " ms");
+        } else if (limit != null) {
+            throw new Exceeded(Limit.CANCELLED, "Evaluation was cancelled");
+        }
+    }
+
+    private synchronized void stop(Limit limit) {
+        if (stopped == null) {
+            stopped = limit;
+            if (started && !finished) {
+                stopping.incrementAndGet();
+            }
+        }
+    }
+
+    /** Stops budgets at their deadline; the thread only starts once a time limit is used. */
+    private static final class Watchdog {
+        static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "calc-budget-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            TIMER.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.fionarex;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * The binary form of parsed {@link SEXP}s shared by {@link ProgramCache} and {@link Snapshot}.
+ * Each node is a tag byte and its payload, in prefix order. A symbol's name is only written the
+ * first time it occurs; later occurrences refer to it by number, so each distinct name is
+ * interned once when reading. A list's size is followed by its {@link Position}.
+ */
+final class FormCodec {
+    static final byte END = 0;
+    private static final byte LIST = 1;
+    private static final byte NEW_SYMBOL = 2;
+    private static final byte SYMBOL = 3;
+    private static final byte LONG = 4;
+    private static final byte BIG_INTEGER = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte STRING = 7;
+    private static final byte TRUE = 8;
+    private static final byte FALSE = 9;
+
+    private FormCodec() {
+    }
+
+    static final class Encoder {
+        private final DataOutputStream out;
+        private final Map<Symbol, Integer> symbols;
+
+        Encoder(DataOutputStream out) {
+            this(out, new HashMap<>());
+        }
+
+        /** An encoder that refers to the symbols in {@code symbols} by the numbers given there. */
+        Encoder(DataOutputStream out, Map<Symbol, Integer> symbols) {
+            this.out = out;
+            this.symbols = symbols;
+        }
+
+        void write(SEXP expr) throws IOException {
+            if (expr instanceof SEXPList) {
+                SEXPList list = (SEXPList) expr;
+                out.writeByte(LIST);
+                writeVarLong(list.size());
+                writeVarLong(list.getPosition() & 0xFFFFFFFFL);
+                for (int i = 0; i < list.size(); i++) {
+                    write(list.get(i));
+                }
+            } else if (expr instanceof Symbol) {
+                Integer index = symbols.get(expr);
+                if (index != null) {
+                    out.writeByte(SYMBOL);
+                    writeVarLong(index);
+                } else {
+                    symbols.put((Symbol) expr, symbols.size());
+                    out.writeByte(NEW_SYMBOL);
+                    writeString(((Symbol) expr).getValue());
+                }
+            } else if (expr instanceof NumberLiteral) {
+                out.writeByte(numberTag(((NumberLiteral) expr).getNumber()));
+                writeNumber(((NumberLiteral) expr).getNumber());
+            } else if (expr instanceof StringLiteral) {
+                out.writeByte(STRING);
+                writeString(((StringLiteral) expr).getValue());
+            } else if (expr instanceof BooleanLiteral) {
+                out.writeByte(((BooleanLiteral) expr).getBoolean() ? TRUE : FALSE);
+            } else {
+                throw new IOException("Cannot encode " + expr.getClass());
+            }
+        }
+
+        private static byte numberTag(Object number) {
+            return number instanceof Long ? LONG : number instanceof BigInteger ? BIG_INTEGER : DOUBLE;
+        }
+
+        private void writeNumber(Object number) throws IOException {
+            if (number instanceof Long) {
+                long value = (Long) number;
+                writeVarLong((value << 1) ^ (value >> 63));
+            } else if (number instanceof BigInteger) {
+                byte[] bytes = ((BigInteger) number).toByteArray();
+                writeVarLong(bytes.length);
+                out.write(bytes);
+            } else {
+                out.writeDouble((Double) number);
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+
+    static final class Decoder {
+        private final ByteBuffer buffer;
+        private final List<Symbol> symbols = new ArrayList<>();
+        private final @Nullable IntFunction<Symbol> table;
+
+        Decoder(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        /** A decoder for forms written against a symbol table, whose entries {@code table} returns. */
+        Decoder(ByteBuffer buffer, @Nullable IntFunction<Symbol> table) {
+            this.buffer = buffer;
+            this.table = table;
+        }
+
+        /** The offset of the next byte in the buffer. */
+        int position() {
+            return buffer.position();
+        }
+
+        byte readTag() {
+            return buffer.get();
+        }
+
+        SEXP read() {
+            return read(buffer.get());
+        }
+
+        SEXP read(byte tag) {
+            switch (tag) {
+                case LIST: {
+                    SEXP[] elements = new SEXP[readSize()];
+                    int position = (int) readVarLong();
+                    for (int i = 0; i < elements.length; i++) {
+                        elements[i] = read(buffer.get());
+                    }
+                    return new SEXPList(elements, position);
+                }
+                case NEW_SYMBOL: {
+                    Symbol symbol = Symbol.of(readString());
+                    symbols.add(symbol);
+                    return symbol;
+                }
+                case SYMBOL:
+                    return table != null ? table.apply(readSize()) : symbols.get(readSize());
+                case LONG:
+                case BIG_INTEGER:
+                case DOUBLE:
+                    return new NumberLiteral(readNumber(tag));
+                case STRING:
+                    return new StringLiteral(readString());
+                case TRUE:
+                    return BooleanLiteral.TRUE;
+                case FALSE:
+                    return BooleanLiteral.FALSE;
+                default:
+                    throw new IllegalStateException("Unknown tag " + tag);
+            }
+        }
+
+        private Object readNumber(byte tag) {
+            if (tag == LONG) {
+                long zigzag = readVarLong();
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            } else if (tag == BIG_INTEGER) {
+                byte[] bytes = new byte[readSize()];
+                buffer.get(bytes);
+                return new BigInteger(bytes);
+            }
+            return buffer.getDouble();
+        }
+
+        String readString() {
+            byte[] bytes = new byte[readSize()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int readSize() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.fionarex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.checkerframework.checker.nullness.qual.*;
+
+@Name("com.fionarex.FormEvaluation")
+@Label("Form Evaluation")
+@Category("Calc")
+@Description("Evaluation of a top-level form")
+class FormEvaluationEvent extends Event {
+    @Label("Form")
+    @Nullable String form;
+}
@@ -0,0 +1,21 @@
+package com.fionarex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/** Top-level forms of a program, produced one at a time: a {@link Parser} or a cached program. */
+public interface FormSource {
+    /** Returns the next top-level form, or {@code null} at the end of the program. */
+    @Nullable SEXP next();
+
+    default List<SEXP> readAll() {
+        List<SEXP> forms = new ArrayList<>();
+        SEXP form;
+        while ((form = next()) != null) {
+            forms.add(form);
+        }
+        return forms;
+    }
+}
@@ -0,0 +1,27 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Activation record of a compiled function call. Variables are addressed by the (depth, slot)
+ * pair the {@link Compiler} assigned to them, so a read is a walk of {@code depth} parents
+ * followed by an array index.
+ */
+public final class Frame {
+    final @Nullable Object[] slots;
+    final @Nullable Frame parent;
+
+    public Frame(@Nullable Object[] slots, @Nullable Frame parent) {
+        this.slots = slots;
+        this.parent = parent;
+    }
+
+    @SuppressWarnings("nullness") // depth never exceeds the scope chain the compiler resolved it against
+    Frame up(int depth) {
+        Frame frame = this;
+        for (int i = 0; i < depth; i++) {
+            frame = frame.parent;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,20 @@
+package com.fionarex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.checkerframework.checker.nullness.qual.*;
+
+@Name("com.fionarex.FunctionCall")
+@Label("Function Call")
+@Category("Calc")
+@Description("A call of a user-defined function")
+class FunctionCallEvent extends Event {
+    @Label("Function")
+    @Nullable String function;
+
+    @Label("Recursion Depth")
+    int depth;
+}
@@ -0,0 +1,222 @@
+package com.fionarex;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Top-level bindings of the compiled engine. Each name maps to a {@link Cell} that compiled code
+ * holds on to, so reading a global never goes through the map after compilation.
+ *
+ * <p>An environment can be layered on a parent, e.g. a prelude shared by several sessions. Its
+ * cells fall back to the parent's cell of the same name until the name is defined in the layer,
+ * so defines stay private to the layer while the parent's bindings are shared without copying.
+ * The parent only holds on to the cells it made for its layers, and to the functions they
+ * JIT-compiled, while a layer still uses them, so a long-lived parent doesn't keep what every
+ * layer that ever existed looked up.
+ *
+ * <p>Reads take no locks. A cell's value is volatile and defines are serialised per cell, so a
+ * thread that reads a global sees the value of the latest define of it that has completed,
+ * including everything the defining thread did before it, such as building a closure.
+ */
+public class GlobalEnv {
+    private final @Nullable GlobalEnv parent;
+    // Concurrent because forms run in parallel by the Scheduler compile against the same globals.
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+    // Cells made only for layers to fall back to, of names this environment hasn't used itself.
+    private final Map<String, Fallback> fallbacks = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Cell> collected = new ReferenceQueue<>();
+    private volatile @Nullable Source source;
+
+    /** The initial values of globals, e.g. a {@link Snapshot}, looked up when a name is first used. */
+    interface Source {
+        @Nullable Object get(String name);
+
+        Iterable<String> names();
+    }
+
+    public GlobalEnv() {
+        this.parent = null;
+    }
+
+    /** A layer over {@code parent}; see the class comment. */
+    public GlobalEnv(GlobalEnv parent) {
+        this.parent = parent;
+    }
+
+    public static final class Cell {
+        final String name;
+        private volatile @Nullable Object value;
+        // The cell of the same name in the parent environment, read while this one is unset.
+        final @Nullable Cell parent;
+        // Functions whose JIT-compiled code assumed the current value.
+        private @Nullable List<WeakReference<UserFunction>> dependents;
+        // The size at which dependents that have been collected are next dropped from the list.
+        private int pruneAt;
+
+        Cell(String name, @Nullable Cell parent, @Nullable Object value) {
+            this.name = name;
+            this.parent = parent;
+            this.value = value;
+        }
+
+        @Nullable Object get() {
+            for (Cell cell = this; cell != null; cell = cell.parent) {
+                Object value = cell.value;
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /** Binds the cell to {@code value}, or unbinds it if that is {@code null}. */
+        synchronized void set(@Nullable Object value) {
+            UserFunction.redefined(this.value);
+            this.value = value;
+            List<WeakReference<UserFunction>> invalidated = dependents;
+            if (invalidated != null) {
+                dependents = null;
+                for (WeakReference<UserFunction> ref : invalidated) {
+                    UserFunction fn = ref.get();
+                    if (fn != null) {
+                        fn.deoptimize();
+                    }
+                }
+            }
+        }
+
+        /** Deoptimizes {@code fn} when this cell, or one it falls back to, is next set. */
+        void addDependent(UserFunction fn) {
+            for (Cell cell = this; cell != null; cell = cell.parent) {
+                synchronized (cell) {
+                    List<WeakReference<UserFunction>> list = cell.dependents;
+                    if (list == null) {
+                        list = cell.dependents = new ArrayList<>();
+                    } else if (list.size() >= cell.pruneAt) {
+                        list.removeIf(ref -> ref.get() == null);
+                        cell.pruneAt = Math.max(16, 2 * list.size());
+                    }
+                    list.add(new WeakReference<>(fn));
+                }
+            }
+        }
+    }
+
+    private static final class Fallback extends WeakReference<Cell> {
+        final String name;
+
+        Fallback(Cell cell, ReferenceQueue<Cell> queue) {
+            super(cell, queue);
+            this.name = cell.name;
+        }
+    }
+
+    Cell cell(String name) {
+        Cell cell = cells.get(name);
+        return cell != null ? cell : newCell(name, true);
+    }
+
+    /** The cell a layer's cell of {@code name} falls back to. */
+    private Cell fallback(String name) {
+        Cell cell = cells.get(name);
+        return cell != null ? cell : newCell(name, false);
+    }
+
+    /**
+     * Makes the cell of {@code name}, or takes the one made earlier for a layer. Unless it is
+     * {@code kept} or bound by the source, a new cell is only held for as long as a layer uses it.
+     */
+    private synchronized Cell newCell(String name, boolean kept) {
+        Cell cell = cells.get(name);
+        if (cell != null) {
+            return cell;
+        }
+        for (Reference<? extends Cell> ref; (ref = collected.poll()) != null; ) {
+            fallbacks.remove(((Fallback) ref).name, ref);
+        }
+        Fallback fallback = fallbacks.get(name);
+        cell = fallback != null ? fallback.get() : null;
+        if (cell == null) {
+            Source initial = source;
+            Object value = initial != null ? initial.get(name) : null;
+            cell = new Cell(name, parent != null ? parent.fallback(name) : null, value);
+            if (!kept && value == null) {
+                fallbacks.put(name, new Fallback(cell, collected));
+                return cell;
+            }
+        } else if (!kept) {
+            return cell;
+        }
+        fallbacks.remove(name);
+        cells.put(name, cell);
+        return cell;
+    }
+
+    public @Nullable Object get(String name) {
+        Cell cell = cells.get(name);
+        if (cell != null) {
+            return cell.get();
+        } else if (source != null) {
+            return fallback(name).get();
+        }
+        return parent != null ? parent.get(name) : null;
+    }
+
+    /**
+     * Takes the initial value of every global from {@code source}. Only the globals that are
+     * used are looked up, so a large source costs little up front.
+     */
+    void restore(Source source) {
+        if (!cells.isEmpty() || this.source != null) {
+            throw new IllegalStateException("Globals can only be restored into a new environment");
+        }
+        this.source = source;
+    }
+
+    public void define(String name, Object value) {
+        cell(name).set(value);
+    }
+
+    /**
+     * Unbinds {@code name} in this environment, so it falls back to the parent's binding if there
+     * is one. Returns the value it was bound to here, or {@code null}.
+     */
+    public @Nullable Object undefine(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null && source == null) {
+            return null;
+        }
+        cell = cell(name);
+        synchronized (cell) {
+            Object value = cell.value;
+            cell.set(null);
+            return value;
+        }
+    }
+
+    /** Every bound global and its value, including those only bound in a parent environment. */
+    Map<String, Object> bindings() {
+        Map<String, Object> bindings = parent != null ? parent.bindings() : new HashMap<>();
+        Source initial = source;
+        if (initial != null) {
+            for (String name : initial.names()) {
+                cell(name);
+            }
+        }
+        for (Cell cell : cells.values()) {
+            Object value = cell.value;
+            if (value != null) {
+                bindings.put(cell.name, value);
+            }
+        }
+        return bindings;
+    }
+}
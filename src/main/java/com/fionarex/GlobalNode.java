@@ -0,0 +1,19 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+class GlobalNode extends Node {
+    final GlobalEnv.Cell cell;
+    private final Object unbound;
+
+    public GlobalNode(GlobalEnv.Cell cell) {
+        this.cell = cell;
+        this.unbound = Builtin.unbound(cell.name);
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object val = cell.get();
+        return val != null ? val : unbound;
+    }
+}
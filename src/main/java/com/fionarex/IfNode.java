@@ -0,0 +1,26 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+class IfNode extends Node {
+    private final Node condition;
+    private final Node consequent;
+    private final @Nullable Node alternative;
+
+    public IfNode(Node condition, Node consequent, @Nullable Node alternative) {
+        this.condition = condition;
+        this.consequent = consequent;
+        this.alternative = alternative;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        if (Eval.isTrue(condition.execute(frame))) {
+            return consequent.execute(frame);
+        } else if (alternative != null) {
+            return alternative.execute(frame);
+        } else {
+            return Eval.NIL;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.fionarex;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Second tier for hot numeric functions. Once a top-level {@link UserFunction} has been invoked
+ * {@code threshold} times, its body is translated to JVM bytecode working on primitive longs and
+ * loaded as a hidden class, so HotSpot can inline and optimise it like ordinary Java.
+ *
+ * <p>Only bodies built from integer literals, parameters, arithmetic, comparisons in {@code if}
+ * conditions and calls to other functions can be compiled. Globals the code depends on (called
+ * functions, including the function itself, integer constants, and the builtins it uses, which
+ * must not be shadowed) are read when it is compiled; redefining any of them sends the function
+ * back to the interpreter. Compiled code also gives up
+ * on overflow, division by zero and non-integer results, in which case the call is redone by the
+ * interpreter. That is safe because nothing a function body does is visible outside it.
+ *
+ * <p>Compiled code runs under a budget with only a time limit, and checks it each time it enters
+ * the body, including the jumps that replace self tail calls.
+ */
+public final class Jit {
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final String COMPILED = "com/fionarex/Jit$Compiled";
+    private static final String SELF = "com/fionarex/CalcKernel";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String LONG = "java/lang/Long";
+
+    private final GlobalEnv globals;
+    private int threshold = DEFAULT_THRESHOLD;
+
+    /** Implemented by every generated class. */
+    interface Compiled {
+        Object call(@Nullable Object[] args);
+    }
+
+    /** Thrown by compiled code that meets a value it cannot handle. */
+    static final class Deopt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Deopt INSTANCE = new Deopt();
+
+        private Deopt() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    public Jit(GlobalEnv globals) {
+        this.globals = globals;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** Sets how many calls a function takes to be compiled; 0 disables compilation. */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Compiles {@code fn}, or returns {@code null} if its body is outside what can be compiled. */
+    @Nullable Compiled compile(UserFunction fn) {
+        KernelCompiler kernel = new KernelCompiler(fn);
+        byte[] bytes;
+        try {
+            bytes = kernel.generate();
+        } catch (Unsupported e) {
+            return null;
+        }
+
+        Compiled compiled;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class));
+            compiled = (Compiled) constructor.invoke(kernel.constants.toArray());
+        } catch (Throwable e) {
+            return null;
+        }
+        return compiled;
+    }
+
+    static boolean allLongs(@Nullable Object[] args, int count) {
+        if (args.length < count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!(args[i] instanceof Long)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Called from generated code.
+
+    static long divide(long a, long b) {
+        if (b == 0 || (a == Long.MIN_VALUE && b == -1)) {
+            throw Deopt.INSTANCE;
+        }
+        return a / b;
+    }
+
+    static long call(UserFunction fn, @Nullable Object[] args, int position) {
+        Object result;
+        try {
+            result = fn.invoke(args);
+        } catch (EvalError e) {
+            // As the interpreter does, the call gives the error its position in the caller.
+            throw e.at(position);
+        }
+        if (result instanceof Long) {
+            return (Long) result;
+        }
+        throw Deopt.INSTANCE;
+    }
+
+    /**
+     * Generates {@code CalcKernel}, whose {@code run(J...J)J} method is the function body with
+     * every parameter in a long local, and whose {@code call} unboxes arguments for it.
+     */
+    private final class KernelCompiler {
+        private final UserFunction fn;
+        private final List<String> parameters;
+        private final String runDescriptor;
+        final List<Object> constants = new ArrayList<>();
+        final Set<GlobalEnv.Cell> dependencies = new LinkedHashSet<>();
+
+        private final ClassAssembler cls = new ClassAssembler(SELF);
+        private ClassAssembler.@MonotonicNonNull Code code;
+        private final ClassAssembler.Label start = new ClassAssembler.Label();
+
+        KernelCompiler(UserFunction fn) {
+            this.fn = fn;
+            this.parameters = fn.getParameters();
+            this.runDescriptor = "(" + "J".repeat(parameters.size()) + ")J";
+        }
+
+        byte[] generate() throws Unsupported {
+            cls.field(ClassAssembler.ACC_PRIVATE | ClassAssembler.ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+            ClassAssembler.Code init = cls.method(ClassAssembler.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+            init.op(0x2a, 1); // aload_0
+            init.opShort(0xb7, cls.methodRef(OBJECT, "<init>", "()V"), -1); // invokespecial
+            init.op(0x2a, 1);
+            init.op(0x2b, 1); // aload_1
+            init.opShort(0xb5, cls.fieldRef(SELF, "constants", "[Ljava/lang/Object;"), -2); // putfield
+            init.op(0xb1, 0); // return
+
+            ClassAssembler.Code bridge = cls.method(ClassAssembler.ACC_PUBLIC, "call",
+                    "([Ljava/lang/Object;)Ljava/lang/Object;", 2);
+            bridge.op(0x2a, 1);
+            for (int i = 0; i < parameters.size(); i++) {
+                bridge.op(0x2b, 1);
+                bridge.pushInt(i);
+                bridge.op(0x32, -1); // aaload
+                bridge.opShort(0xc0, cls.classRef(LONG), 0); // checkcast
+                bridge.opShort(0xb6, cls.methodRef(LONG, "longValue", "()J"), 1); // invokevirtual
+            }
+            bridge.opShort(0xb6, cls.methodRef(SELF, "run", runDescriptor), 1 - 2 * parameters.size());
+            bridge.opShort(0xb8, cls.methodRef(LONG, "valueOf", "(J)Ljava/lang/Long;"), -1); // invokestatic
+            bridge.op(0xb0, -1); // areturn
+
+            ClassAssembler.Code run = cls.method(ClassAssembler.ACC_PUBLIC, "run", runDescriptor, 1 + 2 * parameters.size());
+            code = run;
+            run.place(start);
+            // Every self call and self tail call passes here, so a stopped budget is noticed.
+            run.opShort(0xb8, cls.methodRef("com/fionarex/ExecutionBudget", "checkpoint", "()V"), 0);
+            emitLong(fn.getBody(), true);
+            run.op(0xad, -2); // lreturn
+            if (run.size() > Short.MAX_VALUE) {
+                throw new Unsupported();
+            }
+
+            return cls.toByteArray(OBJECT, COMPILED);
+        }
+
+        /** Emits code leaving the long value of {@code expr} on the stack. */
+        private void emitLong(SEXP expr, boolean tail) throws Unsupported {
+            if (expr instanceof NumberLiteral) {
+                emitConstant(((NumberLiteral) expr).getNumber());
+                return;
+            } else if (expr instanceof Symbol) {
+                emitVariable(((Symbol) expr).getValue());
+                return;
+            } else if (!(expr instanceof SEXPList)) {
+                throw new Unsupported();
+            }
+            List<SEXP> elements = ((SEXPList) expr).getElements();
+            if (elements.isEmpty()) {
+                throw new Unsupported();
+            }
+            SEXP head = elements.get(0);
+            List<SEXP> args = elements.subList(1, elements.size());
+            String operator = head instanceof Symbol ? ((Symbol) head).getValue() : "";
+
+            if (Builtin.of(operator) != null) {
+                requireBuiltin(operator);
+            }
+            switch (operator) {
+                case "+":
+                    emitFold(args, "addExact");
+                    return;
+                case "-":
+                    emitFold(args, "subtractExact");
+                    return;
+                case "*":
+                    emitFold(args, "multiplyExact");
+                    return;
+                case "/":
+                    emitFold(args, null);
+                    return;
+                case "if":
+                    emitIf(args, tail);
+                    return;
+                case "define":
+                case "<":
+                case ">":
+                case "":
+                    throw new Unsupported();
+                default:
+                    emitCall(operator, args, ((SEXPList) expr).getPosition(), tail);
+            }
+        }
+
+        private void emitVariable(String value) throws Unsupported {
+            int param = parameters.lastIndexOf(value);
+            if (param >= 0) {
+                code().opByte(0x16, 1 + 2 * param, 2); // lload
+                return;
+            }
+            emitConstant(dependOn(globals.cell(value)));
+        }
+
+        /**
+         * Reads a global the code will assume stays the same. The function is registered before
+         * the value is read, so a define racing with compilation always deoptimizes it.
+         */
+        private @Nullable Object dependOn(GlobalEnv.Cell cell) {
+            if (dependencies.add(cell)) {
+                cell.addDependent(fn);
+            }
+            return cell.get();
+        }
+
+        /** Fails unless {@code name} means its builtin in the body, and keeps it that way. */
+        private void requireBuiltin(String name) throws Unsupported {
+            if (parameters.contains(name)) {
+                throw new Unsupported();
+            }
+            Object value = dependOn(globals.cell(name));
+            if (value != null && value != Builtin.of(name)) {
+                throw new Unsupported();
+            }
+        }
+
+        private void emitConstant(@Nullable Object value) throws Unsupported {
+            if (!(value instanceof Long)) {
+                throw new Unsupported();
+            }
+            long number = (Long) value;
+            if (number == 0 || number == 1) {
+                code().op(0x09 + (int) number, 2); // lconst_<n>
+            } else {
+                code().opShort(0x14, cls.longConstant(number), 2); // ldc2_w
+            }
+        }
+
+        private void emitFold(List<SEXP> args, @Nullable String exactMethod) throws Unsupported {
+            if (args.isEmpty()) {
+                throw new Unsupported();
+            }
+            emitLong(args.get(0), false);
+            for (int i = 1; i < args.size(); i++) {
+                emitLong(args.get(i), false);
+                int method = exactMethod != null
+                        ? cls.methodRef("java/lang/Math", exactMethod, "(JJ)J")
+                        : cls.methodRef("com/fionarex/Jit", "divide", "(JJ)J");
+                code().opShort(0xb8, method, -2);
+            }
+        }
+
+        private void emitIf(List<SEXP> args, boolean tail) throws Unsupported {
+            if (args.size() != 3) {
+                throw new Unsupported();
+            }
+            ClassAssembler.Code run = code();
+            ClassAssembler.Label otherwise = new ClassAssembler.Label();
+            ClassAssembler.Label end = new ClassAssembler.Label();
+            emitBranchIfFalse(args.get(0), otherwise);
+            int depth = run.stackDepth();
+            emitLong(args.get(1), tail);
+            run.jump(0xa7, end, 0); // goto
+            run.place(otherwise);
+            run.stackDepth(depth);
+            emitLong(args.get(2), tail);
+            run.place(end);
+        }
+
+        private void emitBranchIfFalse(SEXP condition, ClassAssembler.Label target) throws Unsupported {
+            ClassAssembler.Code run = code();
+            if (condition instanceof SEXPList) {
+                List<SEXP> elements = ((SEXPList) condition).getElements();
+                SEXP head = elements.isEmpty() ? null : elements.get(0);
+                String operator = head instanceof Symbol ? ((Symbol) head).getValue() : "";
+                if (operator.equals("<") || operator.equals(">")) {
+                    requireBuiltin(operator);
+                    if (elements.size() != 3) {
+                        throw new Unsupported();
+                    }
+                    emitLong(elements.get(1), false);
+                    emitLong(elements.get(2), false);
+                    run.op(0x94, -3); // lcmp
+                    run.jump(operator.equals("<") ? 0x9c : 0x9e, target, -1); // ifge / ifle
+                    return;
+                }
+            }
+            emitLong(condition, false);
+            run.op(0x09, 2); // lconst_0
+            run.op(0x94, -3);
+            run.jump(0x99, target, -1); // ifeq
+        }
+
+        private void emitCall(String name, List<SEXP> args, int position, boolean tail) throws Unsupported {
+            if (parameters.contains(name)) {
+                throw new Unsupported();
+            }
+            Object callee = dependOn(globals.cell(name));
+            if (!(callee instanceof UserFunction)) {
+                throw new Unsupported();
+            }
+            UserFunction target = (UserFunction) callee;
+            ClassAssembler.Code run = code();
+
+            if (target == fn) {
+                if (args.size() != parameters.size()) {
+                    throw new Unsupported();
+                }
+                if (tail) {
+                    // A self tail call becomes a jump back to the start with new parameters.
+                    for (SEXP arg : args) {
+                        emitLong(arg, false);
+                    }
+                    for (int i = args.size() - 1; i >= 0; i--) {
+                        run.opByte(0x37, 1 + 2 * i, -2); // lstore
+                    }
+                    int depth = run.stackDepth();
+                    run.jump(0xa7, start, 0);
+                    // Code after the jump is unreachable; keep the depth the enclosing if expects.
+                    run.stackDepth(depth + 2);
+                    return;
+                }
+                run.op(0x2a, 1);
+                for (SEXP arg : args) {
+                    emitLong(arg, false);
+                }
+                run.opShort(0xb6, cls.methodRef(SELF, "run", runDescriptor), 1 - 2 * args.size());
+                return;
+            }
+
+            // Calls to other functions go back through the interpreter, which would also keep
+            // their tail calls off the stack; here they would not be.
+            if (tail) {
+                throw new Unsupported();
+            }
+            int index = constants.size();
+            constants.add(target);
+            run.op(0x2a, 1);
+            run.opShort(0xb4, cls.fieldRef(SELF, "constants", "[Ljava/lang/Object;"), 0); // getfield
+            run.pushInt(index);
+            run.op(0x32, -1);
+            run.opShort(0xc0, cls.classRef("com/fionarex/UserFunction"), 0);
+            run.pushInt(args.size());
+            run.opShort(0xbd, cls.classRef(OBJECT), 0); // anewarray
+            for (int i = 0; i < args.size(); i++) {
+                run.op(0x59, 1); // dup
+                run.pushInt(i);
+                emitLong(args.get(i), false);
+                run.opShort(0xb8, cls.methodRef(LONG, "valueOf", "(J)Ljava/lang/Long;"), -1);
+                run.op(0x53, -3); // aastore
+            }
+            run.opShort(0x13, cls.intConstant(position), 1); // ldc_w
+            run.opShort(0xb8, cls.methodRef("com/fionarex/Jit", "call",
+                    "(Lcom/fionarex/UserFunction;[Ljava/lang/Object;I)J"), -1);
+        }
+
+        @SuppressWarnings("nullness") // set at the start of generate()
+        private ClassAssembler.Code code() {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.fionarex;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/** Creates a {@link UserFunction} closing over the frame it is evaluated in. */
+class LambdaNode extends Node {
+    private final String name;
+    private final List<String> parameters;
+    private final Supplier<SEXP> body;
+    private final Node compiledBody;
+    private final int frameSize;
+    private final Compiler.@Nullable Scope scope;
+    private final @Nullable Jit jit;
+    private final @Nullable MemoCache memo;
+
+    /**
+     * @param scope the scope the function is defined in, {@code null} at top level
+     * @param jit the compiler for hot calls, or {@code null} if the function can't be compiled
+     * @param memo the cache for a function defined with {@code define-memo}, otherwise {@code null}
+     */
+    public LambdaNode(String name, List<String> parameters, SEXP body, Node compiledBody, int frameSize,
+                      Compiler.@Nullable Scope scope, @Nullable Jit jit, @Nullable MemoCache memo) {
+        this.name = name;
+        this.parameters = parameters;
+        this.body = () -> body;
+        this.compiledBody = compiledBody;
+        this.frameSize = frameSize;
+        this.scope = scope;
+        this.jit = jit;
+        this.memo = memo;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        return new UserFunction(name, parameters, body, compiledBody, frameSize, frame, scope, jit, memo);
+    }
+}
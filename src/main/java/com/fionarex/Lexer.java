@@ -2,15 +2,44 @@ package com.fionarex;
 
 import org.checkerframework.checker.nullness.qual.*;
 import org.checkerframework.checker.index.qual.NonNegative;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lexer {
-    private final @NonNull String input;
+    private static final int BUFFER_SIZE = 8192;
+
+    // When reading from a Reader, buffer holds a window of the input that is refilled on demand;
+    // only the token being scanned is kept when it is compacted.
+    private final @Nullable Reader reader;
+    private char[] buffer;
+    private int limit;
     private @NonNegative int position = 0;
+    // The token being scanned. While it is, a refill keeps everything from tokenStart on.
+    private int tokenStart = -1;
+    private int tokenEnd;
+    // The line being scanned, counted from 1, and the buffer offset where it starts, which a
+    // refill can make negative. Together they give each token its Position.
+    private int line = 1;
+    private int lineStart;
+    private int tokenPosition;
+    // The buffer lexCompact() is filling, which gets the start of every line.
+    private @Nullable TokenBuffer compact;
 
     public Lexer(@NonNull String input) {
-        this.input = input;
+        this.reader = null;
+        this.buffer = input.toCharArray();
+        this.limit = buffer.length;
+    }
+
+    /** Lexes {@code reader} incrementally through {@link #nextToken()}, holding only a small window. */
+    public Lexer(@NonNull Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+        this.limit = 0;
     }
 
     private void advance() {
@@ -18,120 +47,259 @@ public class Lexer {
     }
 
     private char currentChar() {
-        return position < input.length() ? input.charAt(position) : '\0';
+        return peek(0);
+    }
+
+    private char peek(int offset) {
+        while (position + offset >= limit) {
+            if (!fill()) {
+                return '\0';
+            }
+        }
+        return buffer[position + offset];
+    }
+
+    private boolean atEnd() {
+        return position >= limit && !fill();
+    }
+
+    private boolean fill() {
+        if (reader == null) {
+            return false;
+        }
+        int keep = tokenStart >= 0 ? tokenStart : position;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            position -= keep;
+            lineStart -= keep;
+            if (tokenStart >= 0) {
+                tokenStart = 0;
+            }
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read <= 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public List<Token> lex() {
         List<Token> tokens = new ArrayList<>();
 
-        while (position < input.length()) {
+        while (true) {
+            Token token = nextToken();
+            tokens.add(token);
+            if (token.type == Token.Type.EOF) {
+                return tokens;
+            }
+        }
+    }
+
+    /**
+     * Lexes the whole input into a {@link TokenBuffer} without creating a {@link Token} or a
+     * lexeme string per token. Numbers are validated and parsed later, by the parser.
+     */
+    public TokenBuffer lexCompact() {
+        if (reader != null) {
+            throw new IllegalStateException("Compact lexing needs the whole input in memory");
+        }
+        // Roughly one token per four characters of typical source.
+        TokenBuffer tokens = new TokenBuffer(buffer, Math.max(16, limit / 4));
+        compact = tokens;
+
+        while (true) {
+            Token.Type type = scan();
+            tokens.add(type, tokenStart, tokenEnd);
+            if (type == Token.Type.EOF) {
+                return tokens;
+            }
+        }
+    }
+
+    /** Returns the next token, or an {@code EOF} token once the input is exhausted. */
+    public Token nextToken() {
+        return token(scanToken());
+    }
+
+    /**
+     * Scans the next token like {@link #nextToken()}, but only returns its type. Until the next
+     * scan, {@link #tokenPosition()} is its position and {@link #token} makes the token itself.
+     */
+    Token.Type scanToken() {
+        return scan();
+    }
+
+    int tokenPosition() {
+        return tokenPosition;
+    }
+
+    /** The token just scanned, which is of type {@code type}. */
+    Token token(Token.Type type) {
+        switch (type) {
+            case EOF:
+                return new Token(type, "", null, tokenPosition);
+            case LPAREN:
+                return new Token(type, "(", null, tokenPosition);
+            case RPAREN:
+                return new Token(type, ")", null, tokenPosition);
+            case PLUS:
+                return new Token(type, "+", null, tokenPosition);
+            case MINUS:
+                return new Token(type, "-", null, tokenPosition);
+            case STAR:
+                return new Token(type, "*", null, tokenPosition);
+            case SLASH:
+                return new Token(type, "/", null, tokenPosition);
+            default:
+                break;
+        }
+
+        String text = new String(buffer, tokenStart, tokenEnd - tokenStart);
+        if (type == Token.Type.NUMBER) {
+            Object value = Num.parse(buffer, tokenStart, tokenEnd);
+            if (value == null) {
+                throw new EvalError("Invalid number: " + text).at(tokenPosition);
+            }
+            return new Token(Token.Type.NUMBER, text, value, tokenPosition);
+        } else if (type == Token.Type.STRING) {
+            return new Token(Token.Type.STRING, text, text, tokenPosition);
+        }
+        return new Token(Token.Type.SYMBOL, text, null, tokenPosition);
+    }
+
+    /**
+     * Skips whitespace and scans one token, leaving its text at {@code [tokenStart, tokenEnd)} of
+     * the buffer, or returns {@code EOF} at the end of the input.
+     */
+    private Token.Type scan() {
+        while (!atEnd()) {
             char c = currentChar();
+            tokenStart = position;
 
             switch (c) {
+                case '\n':
+                    advance();
+                    line++;
+                    lineStart = position;
+                    if (compact != null) {
+                        compact.addLine(position);
+                    }
+                    continue;
                 case ' ':
                 case '\t':
-                case '\n':
                 case '\r':
                     advance();
+                    continue;
+                default:
                     break;
+            }
+
+            tokenPosition = Position.of(line, position - lineStart + 1);
+            switch (c) {
                 case '(':
-                    tokens.add(new Token(Token.Type.LPAREN, "(", null));
-                    advance();
-                    break;
+                    return single(Token.Type.LPAREN);
                 case ')':
-                    tokens.add(new Token(Token.Type.RPAREN, ")", null));
-                    advance();
-                    break;
+                    return single(Token.Type.RPAREN);
                 case '+':
-                    tokens.add(new Token(Token.Type.PLUS, "+", null));
-                    advance();
-                    break;
+                    return single(Token.Type.PLUS);
                 case '-':
-                    tokens.add(new Token(Token.Type.MINUS, "-", null));
                     if (isNextDigit()) {
-                        advance();
-                        lexNumber();
+                        return lexNumber();
                     }
-                    advance();
-                    break;
+                    return single(Token.Type.MINUS);
                 case '*':
-                    tokens.add(new Token(Token.Type.STAR, "*", null));
-                    advance();
-                    break;
+                    return single(Token.Type.STAR);
                 case '/':
-                    tokens.add(new Token(Token.Type.SLASH, "/", null));
-                    advance();
-                    break;
+                    return single(Token.Type.SLASH);
                 case '"':
-                    tokens.add(lexString());
-                    break;
+                    return lexString();
                 default:
                     if (Character.isDigit(c)) {
-                        tokens.add(lexNumber());
+                        return lexNumber();
                     } else if (isSymbolStart(c)) {
-                        tokens.add(lexSymbol());
+                        return lexSymbol();
                     } else {
-                        throw new RuntimeException("Unexpected character: " + c);
+                        throw new EvalError("Unexpected character: " + c).at(tokenPosition);
                     }
             }
         }
 
-        tokens.add(new Token(Token.Type.EOF, "", null));
-        return tokens;
+        tokenStart = position;
+        tokenEnd = position;
+        tokenPosition = Position.of(line, position - lineStart + 1);
+        return Token.Type.EOF;
+    }
+
+    private Token.Type single(Token.Type type) {
+        advance();
+        tokenEnd = position;
+        return type;
     }
 
     private boolean isNextDigit() {
-        return position + 1 < input.length() && Character.isDigit(input.charAt(position + 1));
+        return Character.isDigit(peek(1));
     }
 
     private boolean isSymbolStart(char c) {
         return Character.isLetter(c) || "+-*/=!<>?.".indexOf(c) != -1;
     }
 
-    private Token lexNumber() {
-        int start = position;
+    private Token.Type lexNumber() {
         if (currentChar() == '-') advance();
 
-        while (position < input.length() && (Character.isDigit(currentChar()) || ".".indexOf(currentChar()) == 0)) {
+        while (!atEnd() && (Character.isDigit(currentChar()) || ".".indexOf(currentChar()) == 0)) {
             advance();
         }
 
         if (".".indexOf(currentChar()) == 0) {
             advance();
-            while (position < input.length() && Character.isDigit(currentChar())) {
+            while (!atEnd() && Character.isDigit(currentChar())) {
                 advance();
             }
         }
 
-        String numberStr = input.substring(start, position);
-        double value = Double.parseDouble(numberStr);
-        return new Token(Token.Type.NUMBER, numberStr, value);
+        tokenEnd = position;
+        return Token.Type.NUMBER;
     }
 
-    private Token lexSymbol() {
-        int start = position;
-        while (position < input.length() && !Character.isWhitespace(currentChar()) && "()\"".indexOf(currentChar()) == -1) {
+    private Token.Type lexSymbol() {
+        while (!atEnd() && !Character.isWhitespace(currentChar()) && "()\"".indexOf(currentChar()) == -1) {
             advance();
         }
-        String symbol = input.substring(start, position);
-        return new Token(Token.Type.SYMBOL, symbol, null);
+        tokenEnd = position;
+        return Token.Type.SYMBOL;
     }
 
-    private Token lexString() {
+    private Token.Type lexString() {
         advance();
-        int start = position;
+        tokenStart = position;
 
-        while (position < input.length() && currentChar() != '"') {
+        while (!atEnd() && currentChar() != '"') {
+            if (currentChar() == '\n') {
+                line++;
+                lineStart = position + 1;
+                if (compact != null) {
+                    compact.addLine(position + 1);
+                }
+            }
             advance();
         }
 
         if (currentChar() != '"') {
-            throw new RuntimeException("Unterminated string literal");
+            throw new EvalError("Unterminated string literal").at(tokenPosition);
         }
 
-        String value = input.substring(start, position);
+        tokenEnd = position;
         advance();
-
-        return new Token(Token.Type.STRING, value, value);
+        return Token.Type.STRING;
     }
 }
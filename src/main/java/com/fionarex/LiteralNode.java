@@ -0,0 +1,24 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+class LiteralNode extends Node {
+    private final Object value;
+
+    public LiteralNode(Object value) {
+        this.value = value;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        return value;
+    }
+
+    @Override
+    public long executeLong(Frame frame) throws UnexpectedResultException {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
@@ -0,0 +1,25 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Reads a parameter or local {@code define} of an enclosing function. A local that has not been
+ * defined yet falls back to whatever the name would resolve to without it, as {@link Eval} does.
+ */
+class LocalNode extends Node {
+    private final int depth;
+    private final int slot;
+    private final Node fallback;
+
+    public LocalNode(int depth, int slot, Node fallback) {
+        this.depth = depth;
+        this.slot = slot;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public @NonNull Object execute(Frame frame) {
+        Object val = frame.up(depth).slots[slot];
+        return val != null ? val : fallback.execute(frame);
+    }
+}
@@ -0,0 +1,448 @@
+package com.fionarex;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Evaluates forms like {@link Eval}, with the same environments and results, but as a CEK
+ * machine: the state is the expression to evaluate (control), the environment to evaluate it in,
+ * and a continuation of frames saying what to do with its value. The frames are kept in growable
+ * arrays on the heap rather than on the Java stack, so recursion that isn't in tail position can
+ * go as deep as the frame limit allows. Calls in tail position push no frame at all.
+ *
+ * <p>Each {@link #run} performs a given number of steps and then returns, leaving the machine
+ * where it was, so an evaluation can be suspended and resumed at any step.
+ *
+ * <p>Functions that builtins such as {@code vector-map} call, and compiled functions, still run
+ * on the Java stack. The {@link Profiler} sees the calls the machine makes; a call it has
+ * entered ends when its value is handed to a frame pushed before it, or when a tail call replaces
+ * it. Calls still in progress when {@link #run} returns are exited there, like the budget's.
+ *
+ * <p>An {@link EvalError} gets the same positions and frames as from {@link Eval}: each frame
+ * remembers the function whose body it was pushed in, and the error collects them on its way out.
+ */
+final class Machine {
+    static final int DEFAULT_MAX_FRAMES = 10_000_000;
+
+    // Frame kinds.
+    private static final byte IF = 0;
+    private static final byte DEFINE = 1;
+    private static final byte OPERATOR = 2;
+    private static final byte ARGUMENTS = 3;
+    private static final byte ARITHMETIC = 4;
+    private static final byte COMPARISON = 5;
+    private static final byte MEMO = 6;
+
+    private final int maxFrames;
+    private final @Nullable ExecutionBudget budget;
+    private final int budgetDepth;
+    private final @Nullable Profiler profiler;
+    private final int profilerDepth;
+    // The continuation size at each call the profiler has entered and not exited, innermost last.
+    private int[] callSizes = new int[16];
+    private int calls;
+
+    // The expression to evaluate next, or null when value holds the result of the last one.
+    private @Nullable SEXP control;
+    private Eval env;
+    private @Nullable Object value;
+    // The function whose body is being evaluated since the last frame was pushed, if any, where
+    // the first function since then was called, and the position of the form being evaluated.
+    private @Nullable UserFunction calling;
+    private int callPosition;
+    private int location;
+
+    // The continuation, one frame per index with the innermost at size - 1. What a frame keeps
+    // depends on its kind: the form being evaluated and its environment, the index of the operand
+    // being evaluated, the operator or function, and the arguments, accumulator or name so far.
+    private byte[] kinds = new byte[16];
+    private @Nullable SEXPList[] forms = new SEXPList[16];
+    private @Nullable Eval[] envs = new Eval[16];
+    private int[] indices = new int[16];
+    private @Nullable Object[] operators = new Object[16];
+    private @Nullable Object[] values = new Object[16];
+    private @Nullable UserFunction[] callers = new UserFunction[16];
+    private int[] callPositions = new int[16];
+    private int size;
+
+    private long steps;
+
+    Machine(Eval env, int maxFrames) {
+        this.env = env;
+        this.maxFrames = maxFrames;
+        this.budget = ExecutionBudget.current();
+        this.budgetDepth = budget != null ? budget.depth() : 0;
+        this.profiler = Profiler.active;
+        this.profilerDepth = profiler != null ? profiler.depth() : 0;
+    }
+
+    /** Evaluates {@code expr} to the end. */
+    Object eval(SEXP expr) {
+        start(expr);
+        run(Long.MAX_VALUE);
+        return result();
+    }
+
+    /** Makes {@code expr} the next expression to evaluate, discarding any unfinished evaluation. */
+    void start(SEXP expr) {
+        Arrays.fill(forms, 0, size, null);
+        Arrays.fill(envs, 0, size, null);
+        Arrays.fill(operators, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(callers, 0, size, null);
+        size = 0;
+        control = expr;
+        value = null;
+        calling = null;
+        location = Position.UNKNOWN;
+    }
+
+    /** Performs up to {@code maxSteps} steps and returns whether the evaluation has finished. */
+    boolean run(long maxSteps) {
+        try {
+            for (long n = 0; n < maxSteps; n++) {
+                SEXP expr = control;
+                if (expr != null) {
+                    control = null;
+                    step(expr);
+                } else if (size > 0) {
+                    resume();
+                } else {
+                    return true;
+                }
+                steps++;
+            }
+        } catch (EvalError e) {
+            throw unwind(e);
+        } finally {
+            if (budget != null) {
+                budget.unwind(budgetDepth);
+            }
+            if (profiler != null) {
+                profiler.unwind(profilerDepth);
+                calls = 0;
+            }
+        }
+        return control == null && size == 0;
+    }
+
+    /** The value of a finished evaluation. */
+    @SuppressWarnings("nullness") // only called once run returned true
+    Object result() {
+        return value;
+    }
+
+    /** The number of steps performed so far. */
+    long getSteps() {
+        return steps;
+    }
+
+    /** Starts evaluating {@code expr}, or sets {@link #value} if that takes no further steps. */
+    private void step(SEXP expr) {
+        if (expr instanceof NumberLiteral) {
+            value = ((NumberLiteral) expr).getNumber();
+        } else if (expr instanceof StringLiteral) {
+            value = ((StringLiteral) expr).getValue();
+        } else if (expr instanceof BooleanLiteral) {
+            value = ((BooleanLiteral) expr).getBoolean();
+        } else if (expr instanceof Symbol) {
+            String name = ((Symbol) expr).getValue();
+            Object val = env.lookup(name);
+            value = val != null ? val : Builtin.unbound(name);
+        } else if (expr instanceof SEXPList) {
+            SEXPList list = (SEXPList) expr;
+            location = list.getPosition();
+            if (list.isEmpty()) {
+                throw new EvalError("Cannot evaluate empty list");
+            }
+            SEXP head = list.get(0);
+            if (head == Symbol.DEFINE) {
+                define(list, false);
+            } else if (head == Symbol.DEFINE_MEMO) {
+                define(list, true);
+            } else if (head == Symbol.IF) {
+                if (list.size() < 3 || list.size() > 4) {
+                    throw new EvalError("if expects 2 or 3 arguments");
+                }
+                push(IF, list, null, null);
+                control = list.get(1);
+            } else if (head instanceof Symbol) {
+                operate(list, env.resolveOperator(list, ((Symbol) head).getValue()));
+            } else {
+                push(OPERATOR, list, null, null);
+                control = head;
+            }
+        } else {
+            throw new EvalError("Unknown SEXP type: " + expr.getClass());
+        }
+    }
+
+    private void define(SEXPList list, boolean memoize) {
+        List<SEXP> args = list.getElements().subList(1, list.size());
+        if (args.size() < 2 || !(args.get(0) instanceof Symbol)) {
+            // Nothing to evaluate: a function definition, or an error.
+            value = env.evalDefine(args, memoize);
+            return;
+        }
+        if (memoize) {
+            throw new EvalError("define-memo expects a function definition");
+        }
+        push(DEFINE, list, null, ((Symbol) args.get(0)).getValue());
+        control = args.get(1);
+    }
+
+    /** Starts applying {@code op}, the value of the head of {@code call}, to its operands. */
+    private void operate(SEXPList call, Object op) {
+        if (op instanceof Builtin) {
+            Builtin builtin = (Builtin) op;
+            if (builtin.isComparison()) {
+                if (call.size() != 3) {
+                    throw new EvalError("Comparison operators require exactly two operands");
+                }
+                push(COMPARISON, call, builtin, null);
+                control = call.get(1);
+                return;
+            } else if (builtin.isArithmetic()) {
+                if (call.size() < 2) {
+                    throw new EvalError("Operator requires at least one operand");
+                }
+                push(ARITHMETIC, call, builtin, null);
+                control = call.get(1);
+                return;
+            }
+        } else if (op instanceof String) {
+            throw new EvalError("Unknown operator: ", op);
+        } else if (!(op instanceof UserFunction)) {
+            throw new EvalError("Cannot apply operator of type: " + op.getClass().getName());
+        }
+        Object[] args = new Object[call.size() - 1];
+        if (args.length == 0) {
+            apply(op, args, call.getPosition());
+            return;
+        }
+        push(ARGUMENTS, call, op, args);
+        control = call.get(1);
+    }
+
+    private void apply(Object op, Object[] args, int position) {
+        if (op instanceof Builtin) {
+            value = ((Builtin) op).apply(args);
+            return;
+        }
+        UserFunction fn = (UserFunction) op;
+        if (fn.isCompiled()) {
+            value = fn.apply(Arrays.asList(args));
+            return;
+        }
+        MemoCache memo = fn.getMemo();
+        int arity = fn.getParameters().size();
+        if (memo != null && args.length >= arity) {
+            Object[] key = Arrays.copyOf(args, arity);
+            Object cached = memo.get(fn, key);
+            if (cached != null) {
+                value = cached;
+                return;
+            }
+            push(MEMO, null, fn, key);
+        }
+        if (budget != null) {
+            // Depth isn't counted; the frame limit bounds it instead.
+            budget.unwind(budgetDepth);
+            budget.enter();
+        }
+        if (profiler != null) {
+            // A tail call replaces the call in whose body it was made.
+            exitCalls(profiler, size);
+            if (calls == callSizes.length) {
+                callSizes = Arrays.copyOf(callSizes, calls * 2);
+            }
+            callSizes[calls++] = size;
+            profiler.enter(fn);
+        }
+        env = fn.bind(Arrays.asList(args));
+        if (calling == null) {
+            callPosition = position;
+        }
+        calling = fn;
+        control = fn.getBody();
+    }
+
+    /** Exits the calls the profiler entered while the continuation had {@code size} frames or more. */
+    private void exitCalls(Profiler profiler, int size) {
+        while (calls > 0 && callSizes[calls - 1] >= size) {
+            calls--;
+            profiler.exit();
+        }
+    }
+
+    /** Hands {@link #value} to the innermost frame. */
+    @SuppressWarnings("nullness") // each kind of frame has the fields it reads
+    private void resume() {
+        if (profiler != null) {
+            exitCalls(profiler, size);
+        }
+        int top = size - 1;
+        SEXPList form = forms[top];
+        Object result = value;
+        // Until the frame is popped, the form it was pushed for is being evaluated.
+        calling = null;
+        if (form != null) {
+            location = form.getPosition();
+        }
+        switch (kinds[top]) {
+            case IF:
+                env = envs[top];
+                pop();
+                if (Eval.isTrue(result)) {
+                    control = form.get(2);
+                } else if (form.size() == 4) {
+                    control = form.get(3);
+                } else {
+                    value = Eval.NIL;
+                }
+                return;
+
+            case DEFINE: {
+                Eval defining = envs[top];
+                String name = (String) values[top];
+                pop();
+                value = defining.define(name, result);
+                return;
+            }
+
+            case OPERATOR:
+                env = envs[top];
+                pop();
+                operate(form, result);
+                return;
+
+            case ARGUMENTS: {
+                Object[] args = (Object[]) values[top];
+                int index = indices[top];
+                args[index - 1] = result;
+                if (index + 1 < form.size()) {
+                    indices[top] = index + 1;
+                    env = envs[top];
+                    control = form.get(index + 1);
+                    return;
+                }
+                Object op = operators[top];
+                pop();
+                apply(op, args, form.getPosition());
+                return;
+            }
+
+            case ARITHMETIC: {
+                int index = indices[top];
+                Builtin builtin = (Builtin) operators[top];
+                Object sum = index == 1
+                        ? Num.checkNumber(result)
+                        : Num.apply(builtin.operator(), values[top], result);
+                if (index + 1 < form.size()) {
+                    values[top] = sum;
+                    indices[top] = index + 1;
+                    env = envs[top];
+                    control = form.get(index + 1);
+                    return;
+                }
+                pop();
+                value = sum;
+                return;
+            }
+
+            case COMPARISON: {
+                if (indices[top] == 1) {
+                    values[top] = result;
+                    indices[top] = 2;
+                    env = envs[top];
+                    control = form.get(2);
+                    return;
+                }
+                int comparison = Num.compare(values[top], result);
+                boolean greater = operators[top] == Builtin.GREATER;
+                pop();
+                value = greater ? comparison > 0 : comparison < 0;
+                return;
+            }
+
+            case MEMO: {
+                UserFunction fn = (UserFunction) operators[top];
+                Object[] key = (Object[]) values[top];
+                pop();
+                fn.getMemo().put(fn, key, result);
+                return;
+            }
+
+            default:
+                throw new IllegalStateException("Unknown frame kind " + kinds[top]);
+        }
+    }
+
+    /** Pushes a frame for {@code form} in the current environment, at operand index 1. */
+    private void push(byte kind, @Nullable SEXPList form, @Nullable Object operator, @Nullable Object value) {
+        if (size == kinds.length) {
+            grow();
+        }
+        kinds[size] = kind;
+        forms[size] = form;
+        envs[size] = env;
+        indices[size] = 1;
+        operators[size] = operator;
+        values[size] = value;
+        callers[size] = calling;
+        callPositions[size] = callPosition;
+        size++;
+        calling = null;
+    }
+
+    private void pop() {
+        size--;
+        calling = callers[size];
+        callPosition = callPositions[size];
+        forms[size] = null;
+        envs[size] = null;
+        operators[size] = null;
+        values[size] = null;
+        callers[size] = null;
+    }
+
+    /** Adds the positions and functions of the current evaluation and of every frame to {@code e}. */
+    private EvalError unwind(EvalError e) {
+        e.at(location);
+        UserFunction fn = calling;
+        int position = callPosition;
+        for (int i = size - 1; ; i--) {
+            if (fn != null) {
+                e.addFrame(fn.getName());
+                e.at(position);
+            }
+            if (i < 0) {
+                return e;
+            }
+            SEXPList form = forms[i];
+            if (form != null) {
+                e.at(form.getPosition());
+            }
+            fn = callers[i];
+            position = callPositions[i];
+        }
+    }
+
+    private void grow() {
+        if (size >= maxFrames) {
+            throw new ExecutionBudget.Exceeded(ExecutionBudget.Limit.DEPTH,
+                    "Evaluation exceeded the limit of " + maxFrames + " frames");
+        }
+        int capacity = (int) Math.min((long) size * 2, maxFrames);
+        kinds = Arrays.copyOf(kinds, capacity);
+        forms = Arrays.copyOf(forms, capacity);
+        envs = Arrays.copyOf(envs, capacity);
+        indices = Arrays.copyOf(indices, capacity);
+        operators = Arrays.copyOf(operators, capacity);
+        values = Arrays.copyOf(values, capacity);
+        callers = Arrays.copyOf(callers, capacity);
+        callPositions = Arrays.copyOf(callPositions, capacity);
+    }
+}
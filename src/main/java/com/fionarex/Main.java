@@ -3,15 +3,189 @@ package com.fionarex;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
 public class Main {
     public static void main(String[] args) {
-        Eval evaluator = new Eval();
+        boolean reference = false;
+        int machineFrames = 0;
+        boolean jit = true;
+        int memoSize = MemoCache.DEFAULT_MAX_SIZE;
+        boolean memoStats = false;
+        int optimization = Optimizer.DEFAULT_LEVEL;
+        boolean parallel = false;
+        boolean profile = false;
+        int maxSteps = 0;
+        int maxDepth = 0;
+        int timeLimit = 0;
+        String serverAddress = null;
+        int sessionTimeout = Server.DEFAULT_SESSION_TIMEOUT_SECONDS;
+        String preludeName = null;
+        String snapshotName = null;
+        String saveSnapshotName = null;
+        boolean cache = false;
+        String cacheDir = null;
+        String fileName = null;
 
-        if (args.length == 0) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--reference")) {
+                reference = true;
+            } else if (arg.equals("--cek")) {
+                machineFrames = Machine.DEFAULT_MAX_FRAMES;
+            } else if (arg.equals("--cek-frames")) {
+                machineFrames = intOption(args, ++i, arg);
+                if (machineFrames < 1) {
+                    System.err.println("Error: --cek-frames must be at least 1");
+                    System.exit(1);
+                }
+            } else if (arg.equals("--no-jit")) {
+                jit = false;
+            } else if (arg.equals("--memo-size")) {
+                memoSize = intOption(args, ++i, arg);
+            } else if (arg.equals("--memo-stats")) {
+                memoStats = true;
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.equals("--max-steps")) {
+                maxSteps = intOption(args, ++i, arg);
+            } else if (arg.equals("--max-depth")) {
+                maxDepth = intOption(args, ++i, arg);
+            } else if (arg.equals("--time-limit")) {
+                timeLimit = intOption(args, ++i, arg);
+            } else if (arg.equals("--parallel")) {
+                parallel = true;
+            } else if (arg.equals("--parallel-cutoff")) {
+                int cutoff = intOption(args, ++i, arg);
+                if (cutoff < 1) {
+                    System.err.println("Error: --parallel-cutoff must be at least 1");
+                    System.exit(1);
+                }
+                Parallel.setCutoff(cutoff);
+            } else if (arg.equals("--server")) {
+                if (++i >= args.length) {
+                    System.err.println("Error: --server expects an address");
+                    System.exit(1);
+                }
+                serverAddress = args[i];
+            } else if (arg.equals("--cache")) {
+                cache = true;
+            } else if (arg.equals("--cache-dir")) {
+                if (++i >= args.length) {
+                    System.err.println("Error: --cache-dir expects a directory");
+                    System.exit(1);
+                }
+                cache = true;
+                cacheDir = args[i];
+            } else if (arg.equals("--prelude")) {
+                if (++i >= args.length) {
+                    System.err.println("Error: --prelude expects a file");
+                    System.exit(1);
+                }
+                preludeName = args[i];
+            } else if (arg.equals("--snapshot")) {
+                if (++i >= args.length) {
+                    System.err.println("Error: --snapshot expects a file");
+                    System.exit(1);
+                }
+                snapshotName = args[i];
+            } else if (arg.equals("--save-snapshot")) {
+                if (++i >= args.length) {
+                    System.err.println("Error: --save-snapshot expects a file");
+                    System.exit(1);
+                }
+                saveSnapshotName = args[i];
+            } else if (arg.equals("--session-timeout")) {
+                sessionTimeout = intOption(args, ++i, arg);
+            } else if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+                optimization = arg.charAt(2) - '0';
+            } else if (arg.startsWith("--")) {
+                System.err.println("Error: Unknown option " + arg);
+                System.exit(1);
+            } else {
+                fileName = arg;
+            }
+        }
+
+        if (profile) {
+            Profiler profiler = Profiler.install();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> profiler.report(System.err)));
+        }
+
+        MemoCache memo = new MemoCache(memoSize);
+        if (memoStats) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(memo)));
+        }
+
+        // The machine works on the reference evaluator's environments.
+        boolean useReference = reference || machineFrames > 0;
+        int useMachineFrames = machineFrames;
+        boolean useJit = jit;
+        // Every top-level form, of the prelude too, is evaluated under a fresh budget.
+        ExecutionBudget limits = maxSteps > 0 || maxDepth > 0 || timeLimit > 0
+                ? new ExecutionBudget(maxSteps, timeLimit, maxDepth) : null;
+        Supplier<Engine> engines = () -> {
+            Engine engine = new Engine(useReference, memo);
+            if (!useJit) {
+                engine.getJit().setThreshold(0);
+            }
+            engine.setLimits(limits);
+            if (useMachineFrames > 0) {
+                engine.useMachine(useMachineFrames);
+            }
+            return engine;
+        };
+
+        if (saveSnapshotName != null && preludeName == null && snapshotName == null) {
+            System.err.println("Error: --save-snapshot needs a --prelude or --snapshot to save");
+            System.exit(1);
+        }
+        if (preludeName != null || snapshotName != null) {
+            // Loaded once; every session, or the program, runs in its own layer on top of it.
+            Engine prelude = engines.get();
+            if (snapshotName != null) {
+                loadSnapshot(prelude, Path.of(snapshotName));
+            }
+            if (preludeName != null) {
+                loadPrelude(prelude, Path.of(preludeName), new Optimizer(Math.min(optimization, 1), prelude::isBound));
+            }
+            if (saveSnapshotName != null) {
+                try {
+                    Snapshot.save(prelude, Path.of(saveSnapshotName));
+                } catch (IOException e) {
+                    System.err.println("Error writing snapshot: " + e.getMessage());
+                    System.exit(1);
+                }
+                return;
+            }
+            engines = prelude::layer;
+        }
+
+        if (serverAddress != null) {
+            // Sessions share the memo cache; each gets its own engine and globals.
+            try (Server server = new Server(serverAddress, engines, optimization, sessionTimeout)) {
+                System.err.println("Listening on " + server.getAddress());
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(server)));
+                server.serve();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error: cannot start server: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        Engine evaluator = engines.get();
+        Optimizer optimizer = new Optimizer(optimization, evaluator::isBound);
+
+        if (fileName == null) {
 
             System.out.println("Welcome to the REPL. Type expressions, or 'q' to quit.");
 
@@ -30,16 +204,18 @@ public class Main {
 
                     try {
                         Lexer lexer = new Lexer(line);
-                        List<Token> tokens = lexer.lex();
-                        Parser parser = new Parser(tokens);
+                        Parser parser = new Parser(lexer.lexCompact());
                         List<SEXP> expressions = parser.parseAll();
 
                         for (SEXP expr : expressions) {
-                            Object result = evaluator.eval(expr);
+                            Object result = evaluator.eval(optimizer.optimize(expr));
                             System.out.println("[" + result + "]");
                         }
-                    } catch (Exception e) {
+                    } catch (EvalError e) {
                         System.err.println("Error: " + e.getMessage());
+                        System.err.print(e.trace("<stdin>"));
+                    } catch (RuntimeException | StackOverflowError e) {
+                        System.err.println("Error: " + describe(e));
                     }
                 }
             } catch (IOException e) {
@@ -49,7 +225,6 @@ public class Main {
 
         } else {
             // File mode
-            String fileName = args[0];
             Path file = Path.of(fileName);
             if (!fileName.endsWith(".calc")) {
                 System.err.print("Error: Incorrect file extension");
@@ -60,46 +235,151 @@ public class Main {
                 System.exit(1);
             }
 
-            String content;
-            try {
-                content = Files.readString(file).strip();
-            } catch (IOException e) {
+            // Forms are lexed, parsed and evaluated one at a time, so memory use doesn't grow with
+            // the size of the file and results are printed as soon as they are available. -O2
+            // needs to see the whole program first.
+            try (Reader reader = Files.newBufferedReader(file)) {
+                FormSource parser = new Parser(new Lexer(reader));
+                if (cache) {
+                    ProgramCache programCache = ProgramCache.of(file, cacheDir != null ? Path.of(cacheDir) : null);
+                    FormSource cached = programCache.load();
+                    parser = cached != null ? cached : programCache.record(parser);
+                }
+                boolean empty = true;
+
+                if (parallel) {
+                    empty = !runParallel(parser, optimizer, evaluator);
+                } else if (optimizer.getLevel() >= 2) {
+                    List<SEXP> program = optimizer.optimizeAll(parser.readAll());
+                    empty = program.isEmpty();
+                    for (SEXP expr : program) {
+                        System.out.println(evaluator.eval(expr));
+                    }
+                } else {
+                    SEXP expr;
+                    while ((expr = parser.next()) != null) {
+                        empty = false;
+                        Object result = evaluator.eval(optimizer.optimize(expr));
+                        System.out.println(result);
+                    }
+                }
+
+                if (empty) {
+                    System.err.println("Error: File is empty.");
+                    System.exit(1);
+                }
+            } catch (IOException | UncheckedIOException e) {
                 System.err.println("Error reading file: " + e.getMessage());
                 System.exit(1);
-                return;
+            } catch (EvalError e) {
+                System.err.println("Error during parsing or evaluation: " + e.getMessage());
+                System.err.print(e.trace(fileName));
+                System.exit(1);
+            } catch (RuntimeException | StackOverflowError e) {
+                System.err.println("Error during parsing or evaluation: " + describe(e));
+                System.exit(1);
             }
+        }
+    }
 
-            if (content.isEmpty()) {
-                System.err.println("Error: File is empty.");
-                System.exit(1);
+    /**
+     * Evaluates the forms read by {@code parser} on a ForkJoinPool, running independent forms at
+     * the same time, and prints the results in source order as they become available. Returns
+     * whether there were any forms.
+     */
+    private static boolean runParallel(FormSource parser, Optimizer optimizer, Engine evaluator) {
+        // Not the common pool: with a single CPU CompletableFuture would start a thread per form.
+        Scheduler scheduler = new Scheduler(evaluator, new ForkJoinPool());
+        ArrayDeque<CompletableFuture<Object>> pending = new ArrayDeque<>();
+        boolean any = false;
+
+        List<SEXP> program = optimizer.getLevel() >= 2 ? optimizer.optimizeAll(parser.readAll()) : null;
+        int index = 0;
+        while (true) {
+            SEXP expr;
+            if (program != null) {
+                expr = index < program.size() ? program.get(index++) : null;
+            } else {
+                SEXP next = parser.next();
+                expr = next != null ? optimizer.optimize(next) : null;
+            }
+            if (expr == null) {
+                break;
             }
+            any = true;
+            pending.add(scheduler.submit(expr));
+            while (!pending.isEmpty() && pending.peek().isDone()) {
+                System.out.println(Scheduler.join(pending.poll()));
+            }
+        }
+        while (!pending.isEmpty()) {
+            System.out.println(Scheduler.join(pending.poll()));
+        }
+        return any;
+    }
 
-            try {
-                Lexer lexer = new Lexer(content);
-                List<Token> tokens = lexer.lex();
+    /** Closes {@code server} as the JVM exits, so running forms are cancelled and the socket file removed. */
+    private static void stop(Server server) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // exiting anyway
+        }
+    }
 
-                if (tokens.isEmpty()) {
-                    System.err.println("Error: No tokens generated.");
-                    System.exit(1);
-                }
+    private static void loadPrelude(Engine prelude, Path file, Optimizer optimizer) {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            Parser parser = new Parser(new Lexer(reader));
+            SEXP expr;
+            while ((expr = parser.next()) != null) {
+                prelude.eval(optimizer.optimize(expr));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error reading prelude: " + e.getMessage());
+            System.exit(1);
+        } catch (EvalError e) {
+            System.err.println("Error in prelude: " + e.getMessage());
+            System.err.print(e.trace(file.toString()));
+            System.exit(1);
+        } catch (RuntimeException | StackOverflowError e) {
+            System.err.println("Error in prelude: " + describe(e));
+            System.exit(1);
+        }
+    }
 
-                Parser parser = new Parser(tokens);
-                List<SEXP> expressions = parser.parseAll();
+    /** A one-line message for an error that isn't an {@link EvalError}, which has no .calc trace to show. */
+    private static String describe(Throwable e) {
+        if (e instanceof StackOverflowError) {
+            return "Stack overflow";
+        }
+        String message = e.getMessage();
+        return message != null ? message : e.getClass().getSimpleName();
+    }
 
-                if (expressions.isEmpty()) {
-                    System.err.println("Error: No expressions parsed.");
-                    System.exit(1);
-                }
+    private static void loadSnapshot(Engine prelude, Path file) {
+        try {
+            Snapshot.load(file, prelude);
+        } catch (IOException e) {
+            System.err.println("Error reading snapshot: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 
-                for (SEXP expr : expressions) {
-                    Object result = evaluator.eval(expr);
-                    System.out.println(result);
-                }
-            } catch (Exception e) {
-                System.err.println("Error during parsing or evaluation: " + e.getMessage());
-                e.printStackTrace(System.err);
-                System.exit(1);
+    private static int intOption(String[] args, int index, String option) {
+        if (index >= args.length) {
+            System.err.println("Error: " + option + " expects a value");
+            System.exit(1);
+        }
+        try {
+            int value = Integer.parseInt(args[index]);
+            if (value >= 0) {
+                return value;
             }
+        } catch (NumberFormatException e) {
+            // reported below
         }
+        System.err.println("Error: " + option + " expects a non-negative integer but got " + args[index]);
+        System.exit(1);
+        return 0;
     }
 }
@@ -0,0 +1,109 @@
+package com.fionarex;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Results of calls to functions defined with {@code define-memo}, keyed on the function and its
+ * argument values. The cache holds at most {@code maxSize} entries and evicts the least recently
+ * used one when it is full. Entries of a function are dropped when its name is redefined.
+ *
+ * <p>A memoized function is assumed to be pure: its result must depend only on its arguments.
+ */
+public final class MemoCache {
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, Object> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class Key {
+        final UserFunction function;
+        final @Nullable Object[] arguments;
+        final int hash;
+
+        Key(UserFunction function, @Nullable Object[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+            this.hash = 31 * System.identityHashCode(function) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return function == other.function && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public MemoCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public MemoCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                if (size() > MemoCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized @Nullable Object get(UserFunction function, @Nullable Object[] arguments) {
+        Object result = entries.get(new Key(function, arguments));
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    /** Stores a result. {@code arguments} must not be changed afterwards. */
+    synchronized void put(UserFunction function, @Nullable Object[] arguments, Object result) {
+        if (maxSize > 0) {
+            entries.put(new Key(function, arguments), result);
+        }
+    }
+
+    synchronized void invalidate(UserFunction function) {
+        entries.keySet().removeIf(key -> key.function == function);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "memo cache: " + entries.size() + "/" + maxSize + " entries, " + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions";
+    }
+}
@@ -0,0 +1,24 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Executable form of an expression. Built once by {@link Compiler} and executed many times,
+ * so none of the dispatch done by {@link Eval#eval} is repeated at run time.
+ */
+public abstract class Node {
+    public abstract @NonNull Object execute(Frame frame);
+
+    /**
+     * Executes the node for a caller that wants a primitive long, such as arithmetic. Nodes that
+     * can produce one without boxing override this; any other result is reported through
+     * {@link UnexpectedResultException} so the caller can switch to the boxed numeric tower.
+     */
+    public long executeLong(Frame frame) throws UnexpectedResultException {
+        Object value = execute(frame);
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
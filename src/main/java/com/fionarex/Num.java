@@ -0,0 +1,186 @@
+package com.fionarex;
+
+import java.math.BigInteger;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * The numeric tower: integers are {@link Long} and are promoted to {@link BigInteger} only when a
+ * result does not fit in a long, and decimals are {@link Double}. These are the boxed, general
+ * operations; compiled arithmetic stays on primitive longs and only falls back here on overflow
+ * or a non-long operand.
+ */
+final class Num {
+    private static final int LONG = 0;
+    private static final int BIG = 1;
+    private static final int DOUBLE = 2;
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private Num() {
+    }
+
+    /** Parses an integer or decimal literal, or returns {@code null} if {@code text} is not one. */
+    static @Nullable Object parse(String text) {
+        return parse(text.toCharArray(), 0, text.length());
+    }
+
+    /** Parses {@code text[start, end)}; integers that fit in a long are parsed without allocating. */
+    static @Nullable Object parse(char[] text, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text[i] == '-' || text[i] == '+')) {
+            negative = text[i] == '-';
+            i++;
+        }
+        int digitsStart = i;
+        long value = 0;
+        while (i < end && isDigit(text[i])) {
+            value = value * 10 + (text[i] - '0');
+            i++;
+        }
+        if (i == digitsStart) {
+            return null;
+        }
+        if (i == end) {
+            // 18 digits always fit in a long
+            if (end - digitsStart <= 18) {
+                return negative ? -value : value;
+            }
+            return normalize(new BigInteger(new String(text, start, end - start)));
+        }
+        if (text[i] != '.') {
+            return null;
+        }
+        i++;
+        while (i < end && isDigit(text[i])) {
+            i++;
+        }
+        return i == end ? Double.parseDouble(new String(text, start, end - start)) : null;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static boolean isNumber(@Nullable Object value) {
+        return value instanceof Long || value instanceof Integer
+                || value instanceof BigInteger || value instanceof Double;
+    }
+
+    static boolean isZero(Object value) {
+        if (value instanceof Long || value instanceof Integer) {
+            return ((Number) value).longValue() == 0;
+        } else if (value instanceof Double) {
+            return (Double) value == 0.0;
+        }
+        return ((BigInteger) value).signum() == 0;
+    }
+
+    static Object checkNumber(Object value) {
+        if (!isNumber(value)) {
+            throw new EvalError("Expected numeric operand but got: ", value);
+        }
+        return value;
+    }
+
+    /** Applies one of {@code + - * /} to two numbers. */
+    static Object apply(char operator, Object a, Object b) {
+        switch (Math.max(rank(a), rank(b))) {
+            case LONG:
+                return apply(operator, ((Number) a).longValue(), ((Number) b).longValue());
+            case BIG:
+                return applyBig(operator, toBig(a), toBig(b));
+            default:
+                return applyDouble(operator, ((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    /** Applies one of {@code + - * /} to two longs, promoting the result if it overflows. */
+    static Object apply(char operator, long a, long b) {
+        long r;
+        switch (operator) {
+            case '+':
+                r = a + b;
+                if (((a ^ r) & (b ^ r)) < 0) return applyBig(operator, BigInteger.valueOf(a), BigInteger.valueOf(b));
+                return r;
+            case '-':
+                r = a - b;
+                if (((a ^ b) & (a ^ r)) < 0) return applyBig(operator, BigInteger.valueOf(a), BigInteger.valueOf(b));
+                return r;
+            case '*':
+                r = a * b;
+                if (Math.multiplyHigh(a, b) != (r >> 63)) return applyBig(operator, BigInteger.valueOf(a), BigInteger.valueOf(b));
+                return r;
+            default:
+                if (b == 0) throw new EvalError("Division by zero");
+                if (a == Long.MIN_VALUE && b == -1) return BigInteger.valueOf(a).negate();
+                return a / b;
+        }
+    }
+
+    private static Object applyBig(char operator, BigInteger a, BigInteger b) {
+        switch (operator) {
+            case '+':
+                return normalize(a.add(b));
+            case '-':
+                return normalize(a.subtract(b));
+            case '*':
+                return normalize(a.multiply(b));
+            default:
+                if (b.signum() == 0) throw new EvalError("Division by zero");
+                return normalize(a.divide(b));
+        }
+    }
+
+    private static Object applyDouble(char operator, double a, double b) {
+        switch (operator) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            default:
+                if (b == 0.0) throw new EvalError("Division by zero");
+                return a / b;
+        }
+    }
+
+    static int compare(Object a, Object b) {
+        if (!isNumber(a) || !isNumber(b)) {
+            throw new EvalError("Comparison operands must be numbers");
+        }
+        switch (Math.max(rank(a), rank(b))) {
+            case LONG:
+                return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+            case BIG:
+                return toBig(a).compareTo(toBig(b));
+            default:
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    private static int rank(Object value) {
+        if (value instanceof Long || value instanceof Integer) {
+            return LONG;
+        } else if (value instanceof BigInteger) {
+            return BIG;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        }
+        throw new EvalError("Expected numeric operand but got: ", value);
+    }
+
+    private static BigInteger toBig(Object value) {
+        return value instanceof BigInteger ? (BigInteger) value : BigInteger.valueOf(((Number) value).longValue());
+    }
+
+    private static Object normalize(BigInteger value) {
+        if (value.compareTo(LONG_MIN) >= 0 && value.compareTo(LONG_MAX) <= 0) {
+            return value.longValue();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,33 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/** A number literal, parsed once by the lexer into a value of the numeric tower. */
+final class NumberLiteral extends Atom {
+    private final Object number;
+    private @Nullable String text;
+
+    NumberLiteral(String text, Object number) {
+        this.text = text;
+        this.number = number;
+    }
+
+    /** A literal whose text is only produced if it is asked for. */
+    NumberLiteral(Object number) {
+        this.number = number;
+    }
+
+    Object getNumber() {
+        return number;
+    }
+
+    @Override
+    public String getValue() {
+        String value = text;
+        if (value == null) {
+            value = number.toString();
+            text = value;
+        }
+        return value;
+    }
+}
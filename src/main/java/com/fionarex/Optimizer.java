@@ -0,0 +1,288 @@
+package com.fionarex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Simplifies parsed forms before they are evaluated. At level 1 arithmetic and comparisons whose
+ * operands are all literals are folded outside function bodies, and {@code if}s with a literal
+ * condition are replaced by the branch that would run. Level 2 looks at the whole program first,
+ * so it also folds inside function bodies and replaces references to globals that are defined
+ * exactly once, to a constant, by that constant.
+ *
+ * <p>Anything that would fail at run time, such as a division by zero, is left as it is so the
+ * error is still reported when the form runs. Operators whose names are bound as variables are
+ * not folded.
+ */
+public class Optimizer {
+    public static final int DEFAULT_LEVEL = 1;
+
+    private final int level;
+    // Whether a name is bound before the first form, e.g. by a prelude.
+    private final Predicate<String> predefined;
+
+    // Every name bound by a top-level define seen so far (at level 2, in the whole program).
+    private final Set<String> globalNames = new HashSet<>();
+    // Level 2 only: how often each global is defined, and the constants known so far.
+    private final Map<String, Integer> definitionCounts = new HashMap<>();
+    private final Map<String, SEXP> constants = new HashMap<>();
+
+    public Optimizer(int level) {
+        this(level, name -> false);
+    }
+
+    /** An optimizer for forms evaluated where the names {@code predefined} accepts are already bound. */
+    public Optimizer(int level, Predicate<String> predefined) {
+        if (level < 0 || level > 2) {
+            throw new IllegalArgumentException("Optimization level must be 0, 1 or 2: " + level);
+        }
+        this.level = level;
+        this.predefined = predefined;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Optimizes one top-level form without looking ahead, so globals are never inlined. Forms must
+     * be passed in the order they are evaluated.
+     */
+    public SEXP optimize(SEXP form) {
+        if (level == 0) {
+            return form;
+        }
+        countDefinitions(form, false);
+        return optimize(form, null);
+    }
+
+    /** Optimizes a whole program, which at level 2 also inlines globals bound once to a constant. */
+    public List<SEXP> optimizeAll(List<SEXP> forms) {
+        List<SEXP> result = new ArrayList<>(forms.size());
+        if (level < 2) {
+            for (SEXP form : forms) {
+                result.add(optimize(form));
+            }
+            return result;
+        }
+        for (SEXP form : forms) {
+            countDefinitions(form, true);
+        }
+        for (SEXP form : forms) {
+            SEXP optimized = optimize(form, null);
+            recordConstant(optimized);
+            result.add(optimized);
+        }
+        return result;
+    }
+
+    /** The names bound by the enclosing function bodies, innermost last. */
+    private static final class Scope {
+        final List<String> names;
+        final @Nullable Scope parent;
+
+        Scope(List<String> names, @Nullable Scope parent) {
+            this.names = names;
+            this.parent = parent;
+        }
+
+        static boolean binds(@Nullable Scope scope, String name) {
+            for (Scope s = scope; s != null; s = s.parent) {
+                if (s.names.contains(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private SEXP optimize(SEXP expr, @Nullable Scope scope) {
+        if (expr instanceof Symbol) {
+            SEXP constant = constants.get(((Symbol) expr).getValue());
+            if (constant != null && !Scope.binds(scope, ((Symbol) expr).getValue())) {
+                return constant;
+            }
+            return expr;
+        }
+        if (!(expr instanceof SEXPList) || ((SEXPList) expr).isEmpty()) {
+            return expr;
+        }
+
+        List<SEXP> elements = ((SEXPList) expr).getElements();
+        int position = ((SEXPList) expr).getPosition();
+        SEXP head = elements.get(0);
+        if (!(head instanceof Symbol) || isRebound((Symbol) head, scope)) {
+            return new SEXPList(optimizeAll(elements, 0, scope), position);
+        }
+
+        if (head == Symbol.DEFINE || head == Symbol.DEFINE_MEMO) {
+            return optimizeDefine(elements, position, scope);
+        }
+
+        List<SEXP> optimized = optimizeAll(elements, 1, scope);
+        if (head == Symbol.IF) {
+            return optimizeIf(optimized, position);
+        }
+        if (level < 2 && scope != null) {
+            // A body may run after a later form redefines the operator, which only level 2 knows of.
+            return new SEXPList(optimized, position);
+        }
+        SEXP folded = fold(((Symbol) head).getValue(), optimized);
+        return folded != null ? folded : new SEXPList(optimized, position);
+    }
+
+    /** Optimizes {@code elements} from {@code start} on; earlier elements are kept as they are. */
+    private List<SEXP> optimizeAll(List<SEXP> elements, int start, @Nullable Scope scope) {
+        List<SEXP> result = new ArrayList<>(elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            SEXP element = elements.get(i);
+            // The operator position is left alone so a constant never replaces a function name.
+            result.add(i < start || (i == 0 && element instanceof Symbol) ? element : optimize(element, scope));
+        }
+        return result;
+    }
+
+    private SEXP optimizeDefine(List<SEXP> elements, int position, @Nullable Scope scope) {
+        if (elements.size() < 3) {
+            return new SEXPList(elements, position);
+        }
+        List<SEXP> result = new ArrayList<>(elements);
+        SEXP nameForm = elements.get(1);
+        if (nameForm instanceof SEXPList) {
+            List<String> names = new ArrayList<>();
+            for (SEXP param : ((SEXPList) nameForm).getElements().subList(1, ((SEXPList) nameForm).size())) {
+                names.add(param.toString());
+            }
+            Compiler.collectDefines(elements.get(2), names);
+            result.set(2, optimize(elements.get(2), new Scope(names, scope)));
+        } else {
+            result.set(2, optimize(elements.get(2), scope));
+        }
+        return new SEXPList(result, position);
+    }
+
+    private SEXP optimizeIf(List<SEXP> elements, int position) {
+        if (elements.size() < 3 || elements.size() > 4) {
+            return new SEXPList(elements, position);
+        }
+        SEXP condition = elements.get(1);
+        if (!isLiteral(condition)) {
+            return new SEXPList(elements, position);
+        }
+        if (Eval.isTrue(literalValue(condition))) {
+            return elements.get(2);
+        }
+        // Without an alternative the result is NIL, which has no literal form.
+        return elements.size() == 4 ? elements.get(3) : new SEXPList(elements, position);
+    }
+
+    /** Folds a builtin applied to literal operands, or returns {@code null} if it can't be. */
+    private static @Nullable SEXP fold(String operator, List<SEXP> elements) {
+        if (elements.size() < 2) {
+            return null;
+        }
+        for (int i = 1; i < elements.size(); i++) {
+            if (!(elements.get(i) instanceof NumberLiteral)) {
+                return null;
+            }
+        }
+        try {
+            switch (operator) {
+                case "+":
+                case "-":
+                case "*":
+                case "/":
+                    Object result = ((NumberLiteral) elements.get(1)).getNumber();
+                    for (int i = 2; i < elements.size(); i++) {
+                        result = Num.apply(operator.charAt(0), result, ((NumberLiteral) elements.get(i)).getNumber());
+                    }
+                    return new NumberLiteral(result);
+                case ">":
+                case "<":
+                    if (elements.size() != 3) {
+                        return null;
+                    }
+                    int comparison = Num.compare(((NumberLiteral) elements.get(1)).getNumber(),
+                            ((NumberLiteral) elements.get(2)).getNumber());
+                    return BooleanLiteral.of(operator.equals(">") ? comparison > 0 : comparison < 0);
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            // Left for the evaluator, which reports the error when the form runs.
+            return null;
+        }
+    }
+
+    private static boolean isLiteral(SEXP expr) {
+        return expr instanceof NumberLiteral || expr instanceof StringLiteral || expr instanceof BooleanLiteral;
+    }
+
+    private static Object literalValue(SEXP literal) {
+        if (literal instanceof NumberLiteral) {
+            return ((NumberLiteral) literal).getNumber();
+        } else if (literal instanceof BooleanLiteral) {
+            return ((BooleanLiteral) literal).getBoolean();
+        }
+        return ((Atom) literal).getValue();
+    }
+
+    /** Whether {@code name} may not mean the builtin or special form here. */
+    private boolean isRebound(Symbol name, @Nullable Scope scope) {
+        return globalNames.contains(name.getValue()) || Scope.binds(scope, name.getValue())
+                || predefined.test(name.getValue());
+    }
+
+    /**
+     * Records the globals defined by {@code form}, and with {@code count} how often each is
+     * defined. Defines inside function bodies are locals and are not recorded.
+     */
+    private void countDefinitions(SEXP form, boolean count) {
+        if (!(form instanceof SEXPList) || ((SEXPList) form).isEmpty()) {
+            return;
+        }
+        List<SEXP> elements = ((SEXPList) form).getElements();
+        SEXP head = elements.get(0);
+        if ((head == Symbol.DEFINE || head == Symbol.DEFINE_MEMO) && elements.size() >= 2) {
+            SEXP nameForm = elements.get(1);
+            if (nameForm instanceof SEXPList) {
+                if (!((SEXPList) nameForm).isEmpty()) {
+                    addDefinition(((SEXPList) nameForm).getElements().get(0).toString(), count);
+                }
+                return;
+            }
+            addDefinition(nameForm.toString(), count);
+        }
+        for (SEXP element : elements) {
+            countDefinitions(element, count);
+        }
+    }
+
+    private void addDefinition(String name, boolean count) {
+        globalNames.add(name);
+        if (count) {
+            definitionCounts.merge(name, 1, Integer::sum);
+        }
+    }
+
+    /** After a top-level {@code (define x <literal>)}, later forms may use the literal for x. */
+    private void recordConstant(SEXP form) {
+        if (!(form instanceof SEXPList) || ((SEXPList) form).size() != 3) {
+            return;
+        }
+        List<SEXP> elements = ((SEXPList) form).getElements();
+        if (elements.get(0) == Symbol.DEFINE && elements.get(1) instanceof Symbol && isLiteral(elements.get(2))) {
+            String name = ((Symbol) elements.get(1)).getValue();
+            if (definitionCounts.getOrDefault(name, 0) == 1) {
+                constants.put(name, elements.get(2));
+            }
+        }
+    }
+}
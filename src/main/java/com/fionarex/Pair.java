@@ -0,0 +1,83 @@
+package com.fionarex;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * An immutable pair, made by {@code cons}. A list is a chain of pairs linked through their cdr
+ * and ended by {@link Eval#NIL}, the empty list. Pairs are never copied: consing onto a list
+ * shares all of it, and {@code cdr} returns the rest of a list as it is.
+ *
+ * <p>Printing, comparing and hashing walk the cdr chain in a loop, so long lists don't use stack.
+ */
+public final class Pair {
+    private final Object car;
+    private final Object cdr;
+
+    public Pair(Object car, Object cdr) {
+        this.car = car;
+        this.cdr = cdr;
+    }
+
+    public Object getCar() {
+        return car;
+    }
+
+    public Object getCdr() {
+        return cdr;
+    }
+
+    /** The list of {@code elements}, in order. */
+    static Object list(Object[] elements) {
+        Object list = Eval.NIL;
+        for (int i = elements.length - 1; i >= 0; i--) {
+            list = new Pair(elements[i], list);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        Object rest = this;
+        while (rest instanceof Pair) {
+            Pair pair = (Pair) rest;
+            if (pair != this) {
+                sb.append(' ');
+            }
+            sb.append(pair.car);
+            rest = pair.cdr;
+        }
+        if (rest != Eval.NIL) {
+            sb.append(" . ").append(rest);
+        }
+        return sb.append(')').toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        Object a = this;
+        Object b = obj;
+        while (a instanceof Pair && b instanceof Pair) {
+            if (a == b) {
+                return true;
+            }
+            if (!((Pair) a).car.equals(((Pair) b).car)) {
+                return false;
+            }
+            a = ((Pair) a).cdr;
+            b = ((Pair) b).cdr;
+        }
+        return !(a instanceof Pair) && a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        Object rest = this;
+        while (rest instanceof Pair) {
+            hash = 31 * hash + ((Pair) rest).car.hashCode();
+            rest = ((Pair) rest).cdr;
+        }
+        return 31 * hash + rest.hashCode();
+    }
+}
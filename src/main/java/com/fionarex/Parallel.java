@@ -0,0 +1,249 @@
+package com.fionarex;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * The {@code pmap} and {@code preduce} builtins, which split a list or vector into halves until
+ * they are no longer than the cutoff and run the parts as fork-join tasks. Tasks forked from a
+ * thread outside a ForkJoinPool run on the common pool.
+ *
+ * <p>Every call of a function gets its own frame (or, on the reference engine, its own
+ * environment), so a {@code define} in its body only binds a local and workers share nothing but
+ * the globals, which they read. The functions passed in should still be pure: they are called
+ * concurrently and in no particular order. {@code preduce} also needs an associative function.
+ *
+ * <p>Under an {@link ExecutionBudget} with a step or depth limit, which counts the calls made on
+ * its own thread, both run sequentially on the calling thread. A budget with only a time limit
+ * applies to the workers too, and they check it before each element.
+ */
+final class Parallel {
+    static final int DEFAULT_CUTOFF = 16;
+
+    private static volatile int cutoff = DEFAULT_CUTOFF;
+
+    private Parallel() {
+    }
+
+    /** Sets the number of elements below which a part is not split further. */
+    static void setCutoff(int elements) {
+        if (elements < 1) {
+            throw new IllegalArgumentException("The parallel cutoff must be at least 1");
+        }
+        cutoff = elements;
+    }
+
+    /**
+     * Applies {@code function} to every element of {@code sequence} and returns the results in
+     * the same kind of sequence: a list, or a vector, whose results must then be integers.
+     */
+    static Object map(Object function, Object sequence) {
+        Object[] elements = elements(sequence, "pmap");
+        Object[] results = new Object[elements.length];
+        Failure failure = new Failure(ExecutionBudget.current());
+        new MapTask(function, elements, results, 0, elements.length, cutoff(elements, failure), failure).invoke();
+        failure.rethrow();
+        if (!(sequence instanceof CalcVector)) {
+            return Pair.list(results);
+        }
+        long[] vector = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            if (!(results[i] instanceof Long)) {
+                throw new EvalError("pmap over a vector expects integer results but got " + results[i]);
+            }
+            vector[i] = (Long) results[i];
+        }
+        return new CalcVector(vector);
+    }
+
+    /**
+     * Folds {@code sequence} into {@code initial} from the left with {@code function}, combining
+     * the results of the parts with {@code function} too. Only the first part starts from
+     * {@code initial}, so for an associative function the result is that of a sequential fold.
+     */
+    static Object reduce(Object function, Object initial, Object sequence) {
+        Object[] elements = elements(sequence, "preduce");
+        Failure failure = new Failure(ExecutionBudget.current());
+        Object result = new ReduceTask(function, initial, elements, 0, elements.length, cutoff(elements, failure),
+                failure).invoke();
+        failure.rethrow();
+        return result;
+    }
+
+    private static int cutoff(Object[] elements, Failure failure) {
+        ExecutionBudget budget = failure.budget;
+        return budget == null || !budget.countsCalls() ? cutoff : Math.max(elements.length, 1);
+    }
+
+    private static Object[] elements(Object sequence, String operation) {
+        if (sequence instanceof CalcVector) {
+            CalcVector vector = (CalcVector) sequence;
+            Object[] elements = new Object[vector.length()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = vector.get(i);
+            }
+            return elements;
+        }
+        int length = 0;
+        for (Object rest = sequence; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+            length++;
+        }
+        Object[] elements = new Object[length];
+        Object rest = sequence;
+        for (int i = 0; i < length; i++) {
+            elements[i] = ((Pair) rest).getCar();
+            rest = ((Pair) rest).getCdr();
+        }
+        if (rest != Eval.NIL) {
+            throw new EvalError(operation + " expects a list or a vector but got " + sequence);
+        }
+        return elements;
+    }
+
+    /**
+     * The first error thrown by a task, and the budget of the evaluation the tasks belong to. Tasks
+     * catch errors themselves rather than leaving them to the fork-join framework, which would
+     * rethrow a copy wrapping the original in another thread.
+     */
+    private static final class Failure {
+        final @Nullable ExecutionBudget budget;
+        private volatile @Nullable Throwable error;
+
+        Failure(@Nullable ExecutionBudget budget) {
+            this.budget = budget;
+        }
+
+        /** Runs {@code task} with the budget applying to the current thread. */
+        <T> T run(Supplier<T> task) {
+            ExecutionBudget budget = this.budget;
+            if (budget == null) {
+                return task.get();
+            }
+            ExecutionBudget previous = budget.attach();
+            try {
+                return task.get();
+            } finally {
+                ExecutionBudget.detach(previous);
+            }
+        }
+
+        boolean failed() {
+            return error != null;
+        }
+
+        synchronized void record(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        void rethrow() {
+            Throwable e = error;
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    // Tasks are never serialized; their fields are transient so they don't pretend otherwise.
+    private static final class MapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Object function;
+        private final transient Object[] elements;
+        private final transient Object[] results;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+        private final transient Failure failure;
+
+        MapTask(Object function, Object[] elements, Object[] results, int from, int to, int cutoff, Failure failure) {
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > cutoff) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MapTask(function, elements, results, from, middle, cutoff, failure),
+                        new MapTask(function, elements, results, middle, to, cutoff, failure));
+                return;
+            }
+            try {
+                failure.run(() -> {
+                    for (int i = from; i < to && !failure.failed(); i++) {
+                        ExecutionBudget.checkpoint();
+                        results[i] = Builtin.call(function, new Object[] {elements[i]}, "pmap");
+                    }
+                    return results;
+                });
+            } catch (RuntimeException | Error e) {
+                failure.record(e);
+            }
+        }
+    }
+
+    private static final class ReduceTask extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Object function;
+        // Only the task starting at index 0 folds into the initial value.
+        private final transient Object initial;
+        private final transient Object[] elements;
+        private final int from;
+        private final int to;
+        private final int cutoff;
+        private final transient Failure failure;
+
+        ReduceTask(Object function, Object initial, Object[] elements, int from, int to, int cutoff,
+                   Failure failure) {
+            this.function = function;
+            this.initial = initial;
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.failure = failure;
+        }
+
+        @Override
+        protected Object compute() {
+            try {
+                if (to - from > cutoff) {
+                    int middle = (from + to) >>> 1;
+                    ReduceTask left = new ReduceTask(function, initial, elements, from, middle, cutoff, failure);
+                    left.fork();
+                    Object right = new ReduceTask(function, initial, elements, middle, to, cutoff, failure).compute();
+                    Object result = left.join();
+                    return failure.failed() ? Eval.NIL : failure.run(() -> combine(result, right));
+                }
+                return failure.run(() -> {
+                    Object result = from == 0 ? initial : elements[from];
+                    for (int i = from == 0 ? 0 : from + 1; i < to && !failure.failed(); i++) {
+                        ExecutionBudget.checkpoint();
+                        result = combine(result, elements[i]);
+                    }
+                    return result;
+                });
+            } catch (RuntimeException | Error e) {
+                failure.record(e);
+                return Eval.NIL;
+            }
+        }
+
+        private Object combine(Object a, Object b) {
+            return Builtin.call(function, new Object[] {a, b}, "preduce");
+        }
+    }
+}
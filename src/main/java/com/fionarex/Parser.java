@@ -5,87 +5,298 @@ import org.checkerframework.checker.index.qual.NonNegative;
 import java.util.ArrayList;
 import java.util.List;
 
-public class Parser {
+public class Parser implements FormSource {
     private final @NonNull List<@NonNull Token> tokens;
     private @NonNegative int position = 0;
 
+    // Streaming mode pulls tokens from the lexer one at a time instead of from a list. Only the
+    // type of the next token is scanned; the token itself is made if it is asked for.
+    private final @Nullable Lexer lexer;
+    private Token.@Nullable Type lookaheadType;
+    private @Nullable Token lookahead;
+
+    // Compact mode reads token kinds and offsets straight from a TokenBuffer.
+    private final @Nullable TokenBuffer buffer;
+    private final Symbol @Nullable [] symbolCache;
+
+    // The elements of the lists being parsed, innermost last. Each list's elements are copied
+    // out once it is complete, so no list needs a growable buffer of its own.
+    private final List<SEXP> elements = new ArrayList<>();
+
     public Parser(@NonNull List<@NonNull Token> tokens) {
         this.tokens = tokens;
+        this.lexer = null;
+        this.buffer = null;
+        this.symbolCache = null;
+    }
+
+    /** Parses forms on demand from {@code lexer}; see {@link #next()}. */
+    public Parser(@NonNull Lexer lexer) {
+        this.tokens = List.of();
+        this.lexer = lexer;
+        this.buffer = null;
+        this.symbolCache = null;
+    }
+
+    public Parser(@NonNull TokenBuffer buffer) {
+        this.tokens = List.of();
+        this.lexer = null;
+        this.buffer = buffer;
+        this.symbolCache = new Symbol[1024];
     }
 
     private @NonNull Token current() {
+        if (lexer != null) {
+            Token tok = lookahead;
+            if (tok == null) {
+                tok = lexer.token(scanned(lexer));
+                lookahead = tok;
+            }
+            return tok;
+        }
         if (position >= tokens.size()) {
             return new Token(Token.Type.EOF, "", null);
         }
         return tokens.get(position);
     }
 
+    /** The current token as error messages show it, without making a {@link Token} in compact mode. */
+    private String describeCurrent() {
+        if (buffer != null) {
+            Token.Type type = buffer.type(position);
+            return type + " '" + (type == Token.Type.EOF ? "" : buffer.lexeme(position)) + "'";
+        }
+        return current().toString();
+    }
+
+    /** The type of the next token from {@code lexer}, which is scanned if it hasn't been yet. */
+    private Token.@NonNull Type scanned(Lexer lexer) {
+        Token.Type type = lookaheadType;
+        if (type == null) {
+            type = lexer.scanToken();
+            lookaheadType = type;
+        }
+        return type;
+    }
+
+    /** The {@link Position} of the current token. */
+    private int currentPosition() {
+        if (lexer != null) {
+            scanned(lexer);
+            return lexer.tokenPosition();
+        }
+        if (buffer != null) {
+            return buffer.position(position);
+        }
+        return current().position;
+    }
+
+    private Token.@NonNull Type currentType() {
+        if (lexer != null) {
+            return scanned(lexer);
+        }
+        if (buffer != null) {
+            return buffer.type(position);
+        }
+        return current().type;
+    }
+
     private void advance() {
-        if (position < tokens.size()) {
+        if (lexer != null) {
+            lookaheadType = null;
+            lookahead = null;
+        } else if (buffer != null) {
+            if (position < buffer.size() - 1) {
+                position++;
+            }
+        } else if (position < tokens.size()) {
             position++;
         }
     }
 
     public @NonNull SEXP parse() {
-        Token tok = current();
-        switch (tok.type) {
+        if (buffer != null) {
+            return parseCompact(buffer);
+        }
+
+        Token tok;
+        switch (currentType()) {
             case LPAREN:
                 return parseList();
 
+            case PLUS:
+                advance();
+                return Symbol.PLUS;
+            case MINUS:
+                advance();
+                return Symbol.MINUS;
+            case STAR:
+                advance();
+                return Symbol.STAR;
+            case SLASH:
+                advance();
+                return Symbol.SLASH;
+
             case NUMBER:
+                tok = current();
+                advance();
+                Object number = tok.literal != null ? tok.literal : Num.parse(tok.lexeme);
+                if (number == null) {
+                    throw new EvalError("Invalid number: " + tok.lexeme).at(tok.position);
+                }
+                return new NumberLiteral(tok.lexeme, number);
+
+            case STRING:
+                tok = current();
+                advance();
+                return new StringLiteral(tok.lexeme);
+
             case SYMBOL:
+                tok = current();
+                advance();
+                return Symbol.of(tok.lexeme);
+
+            case EOF:
+                throw new EvalError("Unexpected EOF while parsing").at(currentPosition());
+
+            default:
+                throw new EvalError("Unexpected token: " + describeCurrent()).at(currentPosition());
+        }
+    }
+
+    private @NonNull SEXP parseCompact(TokenBuffer buffer) {
+        int i = position;
+        switch (buffer.type(i)) {
+            case LPAREN:
+                return parseList();
+
+            case NUMBER:
+                advance();
+                Object number = Num.parse(buffer.source, buffer.start(i), buffer.end(i));
+                if (number == null) {
+                    throw new EvalError("Invalid number: " + buffer.lexeme(i)).at(buffer.position(i));
+                }
+                return new NumberLiteral(number);
+
             case STRING:
+                advance();
+                return new StringLiteral(buffer.lexeme(i));
+
+            case SYMBOL:
+                advance();
+                return symbol(buffer, buffer.start(i), buffer.end(i));
             case PLUS:
+                advance();
+                return Symbol.PLUS;
             case MINUS:
+                advance();
+                return Symbol.MINUS;
             case STAR:
+                advance();
+                return Symbol.STAR;
             case SLASH:
                 advance();
-                return new Atom(tok.lexeme);
+                return Symbol.SLASH;
 
             case EOF:
-                throw new RuntimeException("Unexpected EOF while parsing");
+                throw new EvalError("Unexpected EOF while parsing").at(buffer.position(i));
 
             default:
-                throw new RuntimeException("Unexpected token: " + tok);
+                throw new EvalError("Unexpected token: " + describeCurrent()).at(buffer.position(i));
+        }
+    }
+
+    /**
+     * Interns the symbol spelled by {@code source[start, end)}. A small direct-mapped cache keyed
+     * on the characters means the name string is only built the first time a symbol is seen.
+     */
+    private Symbol symbol(TokenBuffer buffer, int start, int end) {
+        char[] chars = buffer.source;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        Symbol[] cache = symbolCache();
+        int index = (hash ^ (hash >>> 16)) & (cache.length - 1);
+        Symbol cached = cache[index];
+        if (cached != null && spells(cached.getValue(), chars, start, end)) {
+            return cached;
+        }
+        Symbol symbol = Symbol.of(new String(chars, start, end - start));
+        cache[index] = symbol;
+        return symbol;
+    }
+
+    private static boolean spells(String name, char[] chars, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
         }
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("nullness") // only called in compact mode
+    private Symbol[] symbolCache() {
+        return symbolCache;
     }
 
     private @NonNull SEXPList parseList() {
+        int listPosition = currentPosition();
         expect(Token.Type.LPAREN);
-        SEXPList list = new SEXPList();
+        int start = elements.size();
 
         while (true) {
-            Token currentToken = current();
-            if (currentToken.type == Token.Type.RPAREN) {
+            Token.Type type = currentType();
+            if (type == Token.Type.RPAREN) {
                 break;
             }
-            if (currentToken.type == Token.Type.EOF) {
-                throw new RuntimeException("Unexpected EOF: missing closing ')'");
+            if (type == Token.Type.EOF) {
+                throw new EvalError("Unexpected EOF: missing closing ')'").at(listPosition);
             }
-            list.add(parse());
+            elements.add(parse());
         }
 
         expect(Token.Type.RPAREN);
+        List<SEXP> own = elements.subList(start, elements.size());
+        SEXPList list = new SEXPList(own.toArray(new SEXP[0]), listPosition);
+        own.clear();
         return list;
     }
 
     private void expect(Token.@NonNull Type expected) {
-        Token currentToken = current();
-        if (currentToken.type != expected) {
-            throw new RuntimeException("Expected " + expected + " but found " + currentToken);
+        if (currentType() != expected) {
+            throw new EvalError("Expected " + expected + " but found " + describeCurrent()).at(currentPosition());
         }
         advance();
     }
 
+    /**
+     * Returns the next top-level form, or {@code null} at the end of the input. In streaming mode
+     * no more input is read than that form needs.
+     */
+    @Override
+    public @Nullable SEXP next() {
+        if (currentType() == Token.Type.EOF) {
+            return null;
+        }
+        // Left over if the previous form failed to parse.
+        elements.clear();
+        return parse();
+    }
+
     public @NonNull List<@NonNull SEXP> parseAll() {
         List<SEXP> expressions = new ArrayList<>();
 
         while (true) {
-            Token currentToken = current();
-            if (currentToken.type == Token.Type.EOF) {
+            SEXP expr = next();
+            if (expr == null) {
                 break;
             }
-            expressions.add(parse());
+            expressions.add(expr);
         }
 
         return expressions;
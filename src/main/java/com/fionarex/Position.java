@@ -0,0 +1,35 @@
+package com.fionarex;
+
+/**
+ * A line and column in a source file, both counted from 1, packed into an int: the line in the
+ * upper 21 bits and the column in the lower 11. Lines and columns too large to fit are kept at
+ * the largest value that does. {@link #UNKNOWN} is the position of forms that weren't parsed
+ * from source, such as those the optimizer makes up.
+ */
+final class Position {
+    static final int UNKNOWN = 0;
+
+    private static final int COLUMN_BITS = 11;
+    private static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+    private static final int MAX_LINE = (1 << (32 - COLUMN_BITS)) - 1;
+
+    private Position() {
+    }
+
+    static int of(int line, int column) {
+        return Math.min(line, MAX_LINE) << COLUMN_BITS | Math.min(column, MAX_COLUMN);
+    }
+
+    static int line(int position) {
+        return position >>> COLUMN_BITS;
+    }
+
+    static int column(int position) {
+        return position & MAX_COLUMN;
+    }
+
+    /** {@code line:column}, or {@code ?} for an unknown position. */
+    static String toString(int position) {
+        return position == UNKNOWN ? "?" : line(position) + ":" + column(position);
+    }
+}
@@ -0,0 +1,168 @@
+package com.fionarex;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Records, per function name, how often functions are called, the time spent in them with and
+ * without their callees, and how deep they recurse. It also emits a {@link FunctionCallEvent} for
+ * every call and a {@link FormEvaluationEvent} for every top-level form, which a JFR recording
+ * picks up when it has them enabled.
+ *
+ * <p>The evaluators only call in here while a profiler is {@link #install installed}; otherwise
+ * the cost is a read of {@link #active} per call. Compiled functions are not handed to the JIT
+ * while profiling, since JIT-compiled code makes calls the profiler can't see.
+ */
+public final class Profiler {
+    /** The installed profiler. Set once, before evaluation starts. */
+    static @Nullable Profiler active;
+
+    private static final int MAX_FORM_LENGTH = 200;
+
+    // Each thread records into its own table; they are merged for the report.
+    private final List<Map<String, Stats>> tables = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<CallStack> stacks = ThreadLocal.withInitial(() -> {
+        CallStack stack = new CallStack();
+        tables.add(stack.stats);
+        return stack;
+    });
+
+    public static Profiler install() {
+        Profiler profiler = new Profiler();
+        active = profiler;
+        return profiler;
+    }
+
+    private static final class Stats {
+        long calls;
+        long inclusiveNanos;
+        long exclusiveNanos;
+        int depth;
+        int maxDepth;
+
+        void add(Stats other) {
+            calls += other.calls;
+            inclusiveNanos += other.inclusiveNanos;
+            exclusiveNanos += other.exclusiveNanos;
+            maxDepth = Math.max(maxDepth, other.maxDepth);
+        }
+    }
+
+    /** The calls in progress on one thread, innermost last. */
+    private static final class CallStack {
+        // Concurrent only so that the report can read it while the thread is still running.
+        final Map<String, Stats> stats = new ConcurrentHashMap<>();
+        Stats[] functions = new Stats[64];
+        long[] starts = new long[64];
+        long[] calleeNanos = new long[64];
+        FunctionCallEvent[] events = new FunctionCallEvent[64];
+        int size;
+    }
+
+    /** Called when {@code fn} starts running its body. Must be paired with {@link #exit}. */
+    void enter(UserFunction fn) {
+        CallStack stack = stacks.get();
+        Stats stats = stack.stats.computeIfAbsent(fn.getName(), k -> new Stats());
+        stats.calls++;
+        stats.maxDepth = Math.max(stats.maxDepth, ++stats.depth);
+
+        int i = stack.size++;
+        if (i == stack.functions.length) {
+            int length = i * 2;
+            stack.functions = Arrays.copyOf(stack.functions, length);
+            stack.starts = Arrays.copyOf(stack.starts, length);
+            stack.calleeNanos = Arrays.copyOf(stack.calleeNanos, length);
+            stack.events = Arrays.copyOf(stack.events, length);
+        }
+        FunctionCallEvent event = new FunctionCallEvent();
+        if (event.isEnabled()) {
+            event.function = fn.getName();
+            event.depth = stats.depth;
+            event.begin();
+        }
+        stack.functions[i] = stats;
+        stack.events[i] = event;
+        stack.calleeNanos[i] = 0;
+        stack.starts[i] = System.nanoTime();
+    }
+
+    /** Called when the innermost function entered on this thread returns or throws. */
+    void exit() {
+        long now = System.nanoTime();
+        CallStack stack = stacks.get();
+        int i = --stack.size;
+        Stats stats = stack.functions[i];
+        long elapsed = now - stack.starts[i];
+
+        stats.exclusiveNanos += elapsed - stack.calleeNanos[i];
+        // Recursive calls are inside the outermost one, whose time already covers them.
+        if (--stats.depth == 0) {
+            stats.inclusiveNanos += elapsed;
+        }
+        if (i > 0) {
+            stack.calleeNanos[i - 1] += elapsed;
+        }
+
+        FunctionCallEvent event = stack.events[i];
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /** The number of calls in progress on this thread. */
+    int depth() {
+        return stacks.get().size;
+    }
+
+    /** Exits calls on this thread until only {@code depth} are left. */
+    void unwind(int depth) {
+        while (depth() > depth) {
+            exit();
+        }
+    }
+
+    /** Starts the JFR event for a top-level form; pass the result to {@link #formDone}. */
+    static @Nullable FormEvaluationEvent formStarted() {
+        if (active == null) {
+            return null;
+        }
+        FormEvaluationEvent event = new FormEvaluationEvent();
+        event.begin();
+        return event;
+    }
+
+    static void formDone(@Nullable FormEvaluationEvent event, SEXP form) {
+        if (event != null && event.shouldCommit()) {
+            String text = form.toString();
+            event.form = text.length() > MAX_FORM_LENGTH ? text.substring(0, MAX_FORM_LENGTH) + "..." : text;
+            event.commit();
+        }
+    }
+
+    /** Prints one row per function name, the most expensive (by exclusive time) first. */
+    public void report(PrintStream out) {
+        Map<String, Stats> merged = new HashMap<>();
+        for (Map<String, Stats> table : tables) {
+            for (Map.Entry<String, Stats> entry : table.entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), k -> new Stats()).add(entry.getValue());
+            }
+        }
+        List<Map.Entry<String, Stats>> rows = new ArrayList<>(merged.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue().exclusiveNanos, a.getValue().exclusiveNanos));
+
+        out.printf("%-24s %12s %14s %14s %10s%n", "function", "calls", "inclusive ms", "exclusive ms", "max depth");
+        for (Map.Entry<String, Stats> row : rows) {
+            Stats stats = row.getValue();
+            out.printf("%-24s %12d %14.3f %14.3f %10d%n", row.getKey(), stats.calls,
+                    stats.inclusiveNanos / 1e6, stats.exclusiveNanos / 1e6, stats.maxDepth);
+        }
+    }
+}
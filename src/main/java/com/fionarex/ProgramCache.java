@@ -0,0 +1,204 @@
+package com.fionarex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Keeps the parsed forms of a source file in a binary file, so later runs over the same source
+ * skip lexing and parsing. The cache is keyed on the SHA-256 of the source: it is stored next to
+ * the source as {@code <file>.cache}, or as {@code <hash>.cache} in a cache directory, and its
+ * header repeats the hash, so a cache written for other contents is never used.
+ *
+ * <p>The file is a header followed by the forms, encoded by {@link FormCodec}. The header holds
+ * the length and CRC-32 of the forms, which are checked before anything is decoded: a cache that
+ * is truncated or corrupt is treated like a missing one.
+ */
+public final class ProgramCache {
+    private static final int MAGIC = 0x43414C43; // "CALC"
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 32 + 8 + 4;
+
+    private final Path cacheFile;
+    private final byte[] hash;
+
+    private ProgramCache(Path cacheFile, byte[] hash) {
+        this.cacheFile = cacheFile;
+        this.hash = hash;
+    }
+
+    /**
+     * The cache for {@code source} in its current state.
+     *
+     * @param directory where to keep the cache, or {@code null} to keep it next to the source
+     */
+    public static ProgramCache of(Path source, @Nullable Path directory) throws IOException {
+        byte[] hash = sha256(source);
+        Path cacheFile = directory != null
+                ? directory.resolve(HexFormat.of().formatHex(hash) + ".cache")
+                : source.resolveSibling(source.getFileName() + ".cache");
+        return new ProgramCache(cacheFile, hash);
+    }
+
+    private static byte[] sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        return digest.digest();
+    }
+
+    /** Returns the cached forms, or {@code null} if there is no valid cache for this source. */
+    public @Nullable FormSource load() {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        byte[] storedHash = new byte[32];
+        buffer.get(storedHash);
+        long length = buffer.getLong();
+        int crc = buffer.getInt();
+        if (!Arrays.equals(storedHash, hash) || length != buffer.remaining()) {
+            return null;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate());
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+        return new Reader(buffer);
+    }
+
+    /**
+     * Returns a source that passes on the forms of {@code source} and writes them to the cache
+     * as it goes. The cache only replaces the old one once the last form has been read.
+     */
+    public FormSource record(FormSource source) throws IOException {
+        Path directory = cacheFile.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        Path temp = Files.createTempFile(directory, cacheFile.getFileName().toString(), ".tmp");
+        // Left behind if the program stops before the end of the source.
+        temp.toFile().deleteOnExit();
+        return new Writer(source, temp);
+    }
+
+    /** Decodes forms from a validated cache file. */
+    private static final class Reader implements FormSource {
+        private final FormCodec.Decoder decoder;
+
+        Reader(ByteBuffer buffer) {
+            this.decoder = new FormCodec.Decoder(buffer);
+        }
+
+        @Override
+        public @Nullable SEXP next() {
+            try {
+                byte tag = decoder.readTag();
+                return tag == FormCodec.END ? null : decoder.read(tag);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException e) {
+                // The checksum matched, so this is a bug in the writer rather than a damaged file.
+                throw new IllegalStateException("Invalid program cache", e);
+            }
+        }
+    }
+
+    /** Encodes the forms of another source while passing them on. */
+    private final class Writer implements FormSource {
+        private final FormSource source;
+        private final Path temp;
+        private final FileChannel channel;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private final FormCodec.Encoder encoder;
+        private boolean done;
+
+        Writer(FormSource source, Path temp) throws IOException {
+            this.source = source;
+            this.temp = temp;
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE);
+            this.checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            this.out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+            this.encoder = new FormCodec.Encoder(out);
+        }
+
+        @Override
+        public @Nullable SEXP next() {
+            SEXP form = source.next();
+            if (done) {
+                return form;
+            }
+            try {
+                if (form != null) {
+                    encoder.write(form);
+                } else {
+                    finish();
+                }
+            } catch (IOException e) {
+                // The cache is only an optimisation; the program runs on without it.
+                abandon();
+            }
+            return form;
+        }
+
+        private void finish() throws IOException {
+            out.writeByte(FormCodec.END);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).put(hash)
+                    .putLong(channel.size() - HEADER_SIZE)
+                    .putInt((int) checked.getChecksum().getValue())
+                    .flip();
+            channel.write(header, 0);
+            channel.force(false);
+            out.close();
+            done = true;
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void abandon() {
+            done = true;
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException | UncheckedIOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.fionarex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * A parenthesised form. The elements are kept in an array of exactly their number, which
+ * {@link #getElements} wraps without copying; a list is never changed once it is made.
+ *
+ * <p>A list knows the {@link Position} of its opening parenthesis, which errors in it report.
+ * Atoms don't: symbols are interned and shared by every place that uses them.
+ */
+class SEXPList extends SEXP {
+    private final SEXP[] elements;
+    private final int position;
+    // Set by Eval when this list is a call, to skip looking up the operator next time.
+    Eval.@Nullable CallSite callSite;
+
+    public SEXPList(List<SEXP> elements) {
+        this(elements, Position.UNKNOWN);
+    }
+
+    SEXPList(List<SEXP> elements, int position) {
+        this.elements = elements.toArray(new SEXP[0]);
+        this.position = position;
+    }
+
+    /** Takes {@code elements} over; the caller must not change the array afterwards. */
+    SEXPList(SEXP[] elements, int position) {
+        this.elements = elements;
+        this.position = position;
+    }
+
+    public List<SEXP> getElements() {
+        return Collections.unmodifiableList(Arrays.asList(elements));
+    }
+
+    @Override
+    public boolean isAtom() {
+        return false;
+    }
+
+    @Override
+    public boolean isList() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < elements.length; i++) {
+            sb.append(elements[i].toString());
+            if (i < elements.length - 1) sb.append(" ");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (!(obj instanceof SEXPList)) return false;
+        return Arrays.equals(elements, ((SEXPList) obj).elements);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(elements);
+    }
+
+    public int size() {
+        return elements.length;
+    }
+
+    public boolean isEmpty() {
+        return elements.length == 0;
+    }
+
+    public SEXP get(int i) {
+        return elements[i];
+    }
+
+    /** Where the list starts in the source, as a {@link Position}. */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,81 @@
+package com.fionarex;
+
+final class ScalarKernels implements VectorKernels {
+    @Override
+    public void apply(char operator, long[] a, long[] b, boolean small, long[] out) {
+        switch (operator) {
+            case '+':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.addExact(a[i], b[i]);
+                }
+                break;
+            case '-':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.subtractExact(a[i], b[i]);
+                }
+                break;
+            case '*':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.multiplyExact(a[i], b[i]);
+                }
+                break;
+            default:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = divide(a[i], b[i]);
+                }
+        }
+    }
+
+    @Override
+    public void apply(char operator, long[] a, long b, boolean small, long[] out) {
+        switch (operator) {
+            case '+':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.addExact(a[i], b);
+                }
+                break;
+            case '-':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.subtractExact(a[i], b);
+                }
+                break;
+            case '*':
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = Math.multiplyExact(a[i], b);
+                }
+                break;
+            default:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = divide(a[i], b);
+                }
+        }
+    }
+
+    static long divide(long a, long b) {
+        if (b == 0) {
+            throw new EvalError("Division by zero");
+        }
+        if (a == Long.MIN_VALUE && b == -1) {
+            throw new ArithmeticException("long overflow");
+        }
+        return a / b;
+    }
+
+    @Override
+    public long sum(long[] a) {
+        long sum = 0;
+        for (long element : a) {
+            sum = Math.addExact(sum, element);
+        }
+        return sum;
+    }
+
+    @Override
+    public long dot(long[] a, long[] b, boolean small) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum = Math.addExact(sum, Math.multiplyExact(a[i], b[i]));
+        }
+        return sum;
+    }
+}
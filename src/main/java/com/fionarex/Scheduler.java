@@ -0,0 +1,179 @@
+package com.fionarex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Runs top-level forms concurrently where that can't change their results. Each submitted form
+ * waits only for the earlier forms it conflicts with: those that define a global it reads or
+ * defines, and those that read a global it defines. What a form reads includes, transitively,
+ * the globals read by the bodies of the functions it refers to, since calling them reads those.
+ *
+ * <p>Forms must be submitted in source order from a single thread.
+ */
+public class Scheduler {
+    private final Engine engine;
+    private final Executor executor;
+
+    // For every global defined so far, the globals its definitions refer to.
+    private final Map<String, Set<String>> references = new HashMap<>();
+    // The form that last defined each global, and the forms that read it since.
+    private final Map<String, CompletableFuture<?>> lastWriter = new HashMap<>();
+    private final Map<String, List<CompletableFuture<?>>> readers = new HashMap<>();
+
+    public Scheduler(Engine engine, Executor executor) {
+        this.engine = engine;
+        this.executor = executor;
+    }
+
+    /** Schedules {@code form} after the earlier forms it depends on and returns its result. */
+    public CompletableFuture<Object> submit(SEXP form) {
+        Set<String> writes = new HashSet<>();
+        collectDefinitions(form, writes);
+        Set<String> reads = reads(form);
+
+        List<CompletableFuture<?>> dependencies = new ArrayList<>();
+        for (String name : reads) {
+            addIfPresent(dependencies, lastWriter.get(name));
+        }
+        for (String name : writes) {
+            addIfPresent(dependencies, lastWriter.get(name));
+            List<CompletableFuture<?>> earlierReaders = readers.remove(name);
+            if (earlierReaders != null) {
+                for (CompletableFuture<?> reader : earlierReaders) {
+                    addIfPresent(dependencies, reader);
+                }
+            }
+        }
+
+        CompletableFuture<Object> result = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> engine.eval(form), executor);
+
+        for (String name : reads) {
+            List<CompletableFuture<?>> nameReaders = readers.computeIfAbsent(name, k -> new ArrayList<>());
+            // Names like + are read by almost every form and never defined, so finished readers
+            // are dropped now and then to keep these lists short.
+            int size = nameReaders.size();
+            if (size >= 64 && (size & (size - 1)) == 0) {
+                nameReaders.removeIf(CompletableFuture::isDone);
+            }
+            nameReaders.add(result);
+        }
+        for (String name : writes) {
+            lastWriter.put(name, result);
+        }
+        return result;
+    }
+
+    /** Waits for {@code result}, rethrowing the error of a form that failed as it was thrown. */
+    public static Object join(CompletableFuture<Object> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /** Adds {@code future} unless there is nothing to wait for. */
+    private static void addIfPresent(List<CompletableFuture<?>> futures, @Nullable CompletableFuture<?> future) {
+        if (future != null && !future.isDone()) {
+            futures.add(future);
+        }
+    }
+
+    /** The globals {@code form} may read, directly or through the functions it refers to. */
+    private Set<String> reads(SEXP form) {
+        Set<String> direct = new HashSet<>();
+        freeSymbols(form, new ArrayList<>(), direct);
+
+        Set<String> reads = new HashSet<>();
+        ArrayDeque<String> pending = new ArrayDeque<>(direct);
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            if (reads.add(name)) {
+                pending.addAll(references.getOrDefault(name, Set.of()));
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Adds the globals defined by {@code form} to {@code names}, and records what each of their
+     * definitions refers to. Defines inside function bodies are locals and are skipped.
+     */
+    private void collectDefinitions(SEXP form, Set<String> names) {
+        if (!(form instanceof SEXPList) || ((SEXPList) form).isEmpty()) {
+            return;
+        }
+        List<SEXP> elements = ((SEXPList) form).getElements();
+        SEXP head = elements.get(0);
+        if ((head == Symbol.DEFINE || head == Symbol.DEFINE_MEMO) && elements.size() >= 3) {
+            SEXP nameForm = elements.get(1);
+            if (nameForm instanceof SEXPList && !((SEXPList) nameForm).isEmpty()) {
+                String name = ((SEXPList) nameForm).getElements().get(0).toString();
+                names.add(name);
+                freeSymbols(form, new ArrayList<>(), references.computeIfAbsent(name, k -> new HashSet<>()));
+                return;
+            }
+            if (nameForm instanceof Symbol) {
+                String name = ((Symbol) nameForm).getValue();
+                names.add(name);
+                freeSymbols(elements.get(2), new ArrayList<>(), references.computeIfAbsent(name, k -> new HashSet<>()));
+            }
+        }
+        for (SEXP element : elements) {
+            collectDefinitions(element, names);
+        }
+    }
+
+    /** Adds every symbol in {@code expr} that isn't a parameter or local define in {@code bound}. */
+    private static void freeSymbols(SEXP expr, List<String> bound, Set<String> free) {
+        if (expr instanceof Symbol) {
+            String name = ((Symbol) expr).getValue();
+            if (!bound.contains(name)) {
+                free.add(name);
+            }
+            return;
+        }
+        if (!(expr instanceof SEXPList) || ((SEXPList) expr).isEmpty()) {
+            return;
+        }
+        List<SEXP> elements = ((SEXPList) expr).getElements();
+        SEXP head = elements.get(0);
+        if ((head == Symbol.DEFINE || head == Symbol.DEFINE_MEMO) && elements.size() >= 3) {
+            // The name being defined is written, not read.
+            if (!(elements.get(1) instanceof SEXPList)) {
+                freeSymbols(elements.get(2), bound, free);
+                return;
+            }
+            List<SEXP> signature = ((SEXPList) elements.get(1)).getElements();
+            List<String> inner = new ArrayList<>(bound);
+            for (int i = 1; i < signature.size(); i++) {
+                inner.add(signature.get(i).toString());
+            }
+            Compiler.collectDefines(elements.get(2), inner);
+            freeSymbols(elements.get(2), inner, free);
+            return;
+        }
+        for (SEXP element : elements) {
+            freeSymbols(element, bound, free);
+        }
+    }
+}
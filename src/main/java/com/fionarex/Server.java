@@ -0,0 +1,249 @@
+package com.fionarex;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Serves evaluation requests over a TCP or Unix-domain socket, so one warmed-up JVM can answer
+ * many short requests. Every connection is a session with its own {@link Engine} and therefore
+ * its own globals. Sessions run on virtual threads when the JVM has them and on pooled platform
+ * threads otherwise.
+ *
+ * <p>The protocol is line based. Each request line holds one or more forms, which are evaluated
+ * in order; the reply is a single line, {@code ok <result of the last form>} or
+ * {@code error <message>}. Newlines in results are sent as {@code \n}. The line {@code :quit}
+ * ends the session, and so does being idle for longer than the session timeout. A request line
+ * longer than {@link #MAX_REQUEST_LENGTH} characters is skipped with an {@code error} reply.
+ *
+ * <p>Every form of a request is evaluated under its own {@link ExecutionBudget}: a renewal of the
+ * session engine's {@link Engine#setLimits limits}, or, if it has none, one that stops the form
+ * after {@link #DEFAULT_TIME_LIMIT_MILLIS}. A time limit alone leaves JIT-compiled code and
+ * parallel {@code pmap} and {@code preduce} on. Closing the server cancels the evaluations
+ * still running.
+ */
+public class Server implements AutoCloseable {
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 300;
+    public static final int DEFAULT_TIME_LIMIT_MILLIS = 30_000;
+    public static final int MAX_REQUEST_LENGTH = 1 << 20;
+
+    private final ServerSocketChannel listener;
+    private final @Nullable Path socketFile;
+    private final Supplier<Engine> engines;
+    private final int optimization;
+    private final long sessionTimeoutNanos;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final Set<Session> open = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "calc-session-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param address {@code unix:PATH} for a Unix-domain socket, or {@code [HOST:]PORT} for TCP
+     *                (host defaults to the loopback address)
+     * @param engines creates the engine for each new session
+     */
+    public Server(String address, Supplier<Engine> engines, int optimization, int sessionTimeoutSeconds)
+            throws IOException {
+        this.engines = engines;
+        this.optimization = optimization;
+        this.sessionTimeoutNanos = TimeUnit.SECONDS.toNanos(sessionTimeoutSeconds);
+
+        if (address.startsWith("unix:")) {
+            socketFile = Path.of(address.substring("unix:".length()));
+            listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listener.bind(UnixDomainSocketAddress.of(socketFile));
+        } else {
+            socketFile = null;
+            listener = ServerSocketChannel.open();
+            listener.bind(tcpAddress(address));
+        }
+    }
+
+    private static SocketAddress tcpAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? "127.0.0.1" : address.substring(0, colon);
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid server address: " + address);
+        }
+    }
+
+    /** Virtual threads if this JVM has them (Java 21+), otherwise a cached thread pool. */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "calc-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return listener.getLocalAddress();
+    }
+
+    /** Accepts connections until the server is closed. */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel channel = listener.accept();
+                sessions.execute(new Session(channel));
+            }
+        } catch (ClosedChannelException e) {
+            // close() was called
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        sessions.shutdownNow();
+        watchdog.shutdownNow();
+        for (Session session : open) {
+            ExecutionBudget budget = session.running;
+            if (budget != null) {
+                budget.cancel();
+            }
+        }
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+    }
+
+    private final class Session implements Runnable {
+        private final SocketChannel channel;
+        private final Engine engine = engines.get();
+        private final Optimizer optimizer = new Optimizer(Math.min(optimization, 1), engine::isBound);
+        private final ExecutionBudget limits = engine.getLimits() != null
+                ? engine.getLimits() : new ExecutionBudget(0, DEFAULT_TIME_LIMIT_MILLIS, 0);
+        private final StringBuilder request = new StringBuilder();
+        // Whether the last request line was cut off at MAX_REQUEST_LENGTH.
+        private boolean truncated;
+        private volatile long lastActive = System.nanoTime();
+        private volatile boolean busy;
+        // The budget of the form being evaluated, if the engine has limits.
+        private volatile @Nullable ExecutionBudget running;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            scheduleIdleCheck(sessionTimeoutNanos);
+            open.add(this);
+            try (channel;
+                 BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+                 Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8)) {
+                while (readRequest(in) && !request.toString().strip().equals(":quit")) {
+                    busy = true;
+                    String reply = truncated
+                            ? "error Request longer than " + MAX_REQUEST_LENGTH + " characters"
+                            : evaluate(request.toString());
+                    busy = false;
+                    lastActive = System.nanoTime();
+                    out.write(reply);
+                    out.write('\n');
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client went away or the session timed out.
+            } finally {
+                open.remove(this);
+            }
+        }
+
+        /**
+         * Reads the next line into {@code request}, keeping at most {@link #MAX_REQUEST_LENGTH}
+         * characters of it. Returns {@code false} at the end of the stream.
+         */
+        private boolean readRequest(Reader in) throws IOException {
+            request.setLength(0);
+            truncated = false;
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (request.length() < MAX_REQUEST_LENGTH) {
+                    request.append((char) c);
+                } else {
+                    truncated = true;
+                }
+            }
+            int last = request.length() - 1;
+            if (last >= 0 && request.charAt(last) == '\r') {
+                request.setLength(last);
+            }
+            return c >= 0 || last >= 0 || truncated;
+        }
+
+        private String evaluate(String source) {
+            try {
+                Object result = null;
+                for (SEXP expr : new Parser(new Lexer(source).lexCompact()).parseAll()) {
+                    ExecutionBudget budget = limits.renew();
+                    running = budget;
+                    try {
+                        result = engine.eval(optimizer.optimize(expr), budget);
+                    } finally {
+                        running = null;
+                    }
+                }
+                return result == null ? "ok" : "ok " + result.toString().replace("\n", "\\n");
+            } catch (RuntimeException | StackOverflowError e) {
+                String message = e instanceof StackOverflowError ? "Stack overflow" : e.getMessage();
+                return "error " + String.valueOf(message).replace("\n", "\\n");
+            }
+        }
+
+        /** Closes the connection once it has been idle for the timeout. Running evaluations are not cut off. */
+        private void scheduleIdleCheck(long delayNanos) {
+            if (sessionTimeoutNanos <= 0) {
+                return;
+            }
+            watchdog.schedule(() -> {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                long idle = System.nanoTime() - lastActive;
+                if (busy || idle < sessionTimeoutNanos) {
+                    scheduleIdleCheck(busy ? sessionTimeoutNanos : sessionTimeoutNanos - idle);
+                } else {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // already closed
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
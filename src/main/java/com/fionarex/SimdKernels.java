@@ -0,0 +1,138 @@
+package com.fionarex;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link VectorKernels} on the vector API, processing as many longs at a time as the CPU's widest
+ * vector registers hold. Overflow is detected without branches: the sign bits of
+ * {@code (a ^ r) & (b ^ r)} for {@code r = a + b} are or-ed across the loop and checked once at
+ * the end. Products can't be checked that way, so multiplication only runs in vectors when both
+ * operands fit in an int; division always runs in the scalar loop.
+ */
+final class SimdKernels implements VectorKernels {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    private final ScalarKernels scalar = new ScalarKernels();
+
+    @Override
+    public void apply(char operator, long[] a, long[] b, boolean small, long[] out) {
+        if (operator == '/' || (operator == '*' && !small)) {
+            scalar.apply(operator, a, b, small, out);
+            return;
+        }
+        int upper = SPECIES.loopBound(out.length);
+        LongVector overflow = LongVector.zero(SPECIES);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, i);
+            LongVector y = LongVector.fromArray(SPECIES, b, i);
+            LongVector r;
+            if (operator == '+') {
+                r = x.add(y);
+                overflow = overflow.or(x.lanewise(VectorOperators.XOR, r).and(y.lanewise(VectorOperators.XOR, r)));
+            } else if (operator == '-') {
+                r = x.sub(y);
+                overflow = overflow.or(x.lanewise(VectorOperators.XOR, y).and(x.lanewise(VectorOperators.XOR, r)));
+            } else {
+                r = x.mul(y);
+            }
+            r.intoArray(out, i);
+        }
+        checkOverflow(overflow);
+        for (; i < out.length; i++) {
+            out[i] = operator == '+' ? Math.addExact(a[i], b[i])
+                    : operator == '-' ? Math.subtractExact(a[i], b[i])
+                    : a[i] * b[i];
+        }
+    }
+
+    @Override
+    public void apply(char operator, long[] a, long b, boolean small, long[] out) {
+        if (operator == '/' || (operator == '*' && !small)) {
+            scalar.apply(operator, a, b, small, out);
+            return;
+        }
+        int upper = SPECIES.loopBound(out.length);
+        LongVector y = LongVector.broadcast(SPECIES, b);
+        LongVector overflow = LongVector.zero(SPECIES);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, i);
+            LongVector r;
+            if (operator == '+') {
+                r = x.add(y);
+                overflow = overflow.or(x.lanewise(VectorOperators.XOR, r).and(y.lanewise(VectorOperators.XOR, r)));
+            } else if (operator == '-') {
+                r = x.sub(y);
+                overflow = overflow.or(x.lanewise(VectorOperators.XOR, y).and(x.lanewise(VectorOperators.XOR, r)));
+            } else {
+                r = x.mul(y);
+            }
+            r.intoArray(out, i);
+        }
+        checkOverflow(overflow);
+        for (; i < out.length; i++) {
+            out[i] = operator == '+' ? Math.addExact(a[i], b)
+                    : operator == '-' ? Math.subtractExact(a[i], b)
+                    : a[i] * b;
+        }
+    }
+
+    @Override
+    public long sum(long[] a) {
+        int upper = SPECIES.loopBound(a.length);
+        LongVector sums = LongVector.zero(SPECIES);
+        LongVector overflow = LongVector.zero(SPECIES);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, i);
+            LongVector r = sums.add(x);
+            overflow = overflow.or(sums.lanewise(VectorOperators.XOR, r).and(x.lanewise(VectorOperators.XOR, r)));
+            sums = r;
+        }
+        checkOverflow(overflow);
+        long sum = 0;
+        for (long lane : sums.toArray()) {
+            sum = Math.addExact(sum, lane);
+        }
+        for (; i < a.length; i++) {
+            sum = Math.addExact(sum, a[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public long dot(long[] a, long[] b, boolean small) {
+        if (!small) {
+            return scalar.dot(a, b, false);
+        }
+        int upper = SPECIES.loopBound(a.length);
+        LongVector sums = LongVector.zero(SPECIES);
+        LongVector overflow = LongVector.zero(SPECIES);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, i).mul(LongVector.fromArray(SPECIES, b, i));
+            LongVector r = sums.add(x);
+            overflow = overflow.or(sums.lanewise(VectorOperators.XOR, r).and(x.lanewise(VectorOperators.XOR, r)));
+            sums = r;
+        }
+        checkOverflow(overflow);
+        long sum = 0;
+        for (long lane : sums.toArray()) {
+            sum = Math.addExact(sum, lane);
+        }
+        for (; i < a.length; i++) {
+            sum = Math.addExact(sum, a[i] * b[i]);
+        }
+        return sum;
+    }
+
+    /** Throws if any lane of {@code overflow} has its sign bit set. */
+    private static void checkOverflow(LongVector overflow) {
+        if (overflow.reduceLanes(VectorOperators.OR) < 0) {
+            throw new ArithmeticException("long overflow");
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package com.fionarex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.checkerframework.checker.nullness.qual.*;
+
+/**
+ * Saves the globals of an {@link Engine} to a file and restores them into another engine, so a
+ * large prelude is evaluated once rather than by every process that needs it.
+ *
+ * <p>Functions are saved as their name, parameters and body together with the environments they
+ * close over: the frames of enclosing calls for compiled functions, the local {@link Eval}s for
+ * reference ones. Each environment is a list of names and values, so a snapshot taken by either
+ * engine can be restored into both. Functions and environments are written once each and referred
+ * to by number, which keeps sharing and cycles (a function stored in the frame it closes over)
+ * intact.
+ *
+ * <p>Restoring reads next to nothing up front. The compiled engine looks a global up in the
+ * snapshot when code first refers to it, and a function's body is only decoded and compiled when
+ * the function is first called, so starting from a snapshot takes about as long whatever its size.
+ * The reference engine binds every global when the snapshot is loaded.
+ *
+ * <p>The file is a header (magic, version, payload length and CRC-32) and the payload. The payload
+ * starts with the number of symbols, environments and functions and the capacity of the globals
+ * table, then has a table of offsets for each of the first three and an open-addressing hash table
+ * of (hash of the name, offset) for the globals, and then the entries those offsets point at.
+ * Forms are encoded by {@link FormCodec}, with symbols referring to the symbol table; values that
+ * aren't literals get their own tags. Lists are written as runs of pairs, and a pair that is
+ * shared with a list written earlier is referred to rather than written again.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x43534E50; // "CSNP"
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    // Value tags, clear of FormCodec's, which are used for literal values.
+    private static final byte NIL = 32;
+    private static final byte UNBOUND = 33;
+    private static final byte FUNCTION = 34;
+    private static final byte BUILTIN = 35;
+    private static final byte PAIRS = 36;
+    private static final byte PAIR_REFERENCE = 37;
+    private static final byte VECTOR = 38;
+
+    /** Stands for the globals wherever an environment is referred to. */
+    private static final int GLOBAL = -1;
+
+    private Snapshot() {
+    }
+
+    /** Writes every global {@code engine} sees to {@code file}, replacing it atomically. */
+    public static void save(Engine engine, Path file) throws IOException {
+        ByteBuffer payload = new Writer(engine).write();
+        CRC32 checksum = new CRC32();
+        checksum.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(payload.remaining()).putInt((int) checksum.getValue()).flip();
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.write(new ByteBuffer[] {header, payload});
+                channel.force(false);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Binds the globals saved in {@code file} in {@code engine}, which must not have any globals
+     * yet. The file is mapped and must not be modified while the engine is in use.
+     */
+    public static void load(Path file, Engine engine) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Snapshot " + file + " has version " + version + ", expected " + VERSION);
+        }
+        long length = buffer.getLong();
+        int crc = buffer.getInt();
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate());
+        if (length != buffer.remaining() || (int) checksum.getValue() != crc) {
+            throw new IOException("Snapshot " + file + " is damaged");
+        }
+        try {
+            engine.restore(new Reader(engine, buffer.slice()));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException e) {
+            throw new IOException("Invalid snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static int slot(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    private static final class Writer {
+        private final Engine engine;
+
+        // Frames or Evals, and functions, numbered in the order they are found. Each environment
+        // has its parent's number and its names and values.
+        private final Map<Object, Integer> environmentIndexes = new IdentityHashMap<>();
+        private final List<Integer> environmentParents = new ArrayList<>();
+        private final List<List<String>> environmentNames = new ArrayList<>();
+        private final List<List<@Nullable Object>> environmentValues = new ArrayList<>();
+        private final Map<UserFunction, Integer> functionIndexes = new IdentityHashMap<>();
+        private final List<UserFunction> functions = new ArrayList<>();
+        private final List<Integer> functionEnvironments = new ArrayList<>();
+        private final Map<Pair, Boolean> collectedPairs = new IdentityHashMap<>();
+        // Where each pair that has been written is: the offset of its run and its index there.
+        private final Map<Pair, long[]> writtenPairs = new IdentityHashMap<>();
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(data);
+        private final Map<Symbol, Integer> symbols = new LinkedHashMap<>();
+        private final FormCodec.Encoder encoder = new FormCodec.Encoder(out, symbols);
+
+        Writer(Engine engine) {
+            this.engine = engine;
+        }
+
+        /** Returns the payload. */
+        ByteBuffer write() throws IOException {
+            Map<String, Object> globals = engine.bindings();
+            for (Object value : globals.values()) {
+                collect(value);
+            }
+            for (UserFunction fn : functions) {
+                collectSymbols(fn.getBody());
+            }
+
+            // The entries are written first; the tables then go in front of them.
+            int[] symbolOffsets = new int[symbols.size()];
+            int i = 0;
+            for (Symbol symbol : symbols.keySet()) {
+                symbolOffsets[i++] = data.size();
+                encoder.writeString(symbol.getValue());
+            }
+
+            int[] environmentOffsets = new int[environmentNames.size()];
+            for (i = 0; i < environmentOffsets.length; i++) {
+                environmentOffsets[i] = data.size();
+                encoder.writeVarLong(environmentParents.get(i) + 1);
+                writeNames(environmentNames.get(i));
+                for (Object value : environmentValues.get(i)) {
+                    writeValue(value);
+                }
+            }
+
+            int[] functionOffsets = new int[functions.size()];
+            for (i = 0; i < functionOffsets.length; i++) {
+                UserFunction fn = functions.get(i);
+                List<String> names = new ArrayList<>(fn.getParameters());
+                Compiler.collectDefines(fn.getBody(), names);
+                functionOffsets[i] = data.size();
+                encoder.writeString(fn.getName());
+                writeNames(fn.getParameters());
+                writeNames(names);
+                out.writeBoolean(fn.isMemoized());
+                encoder.writeVarLong(functionEnvironments.get(i) + 1);
+                encoder.write(fn.getBody());
+            }
+
+            // At most half full, so probes stay short.
+            int capacity = Integer.highestOneBit(Math.max(globals.size(), 1)) * 4;
+            int[] globalTable = new int[capacity * 2];
+            for (Map.Entry<String, Object> global : globals.entrySet()) {
+                int hash = global.getKey().hashCode();
+                int slot = slot(hash, capacity);
+                while (globalTable[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                globalTable[slot * 2] = hash;
+                // One more than the offset, so that 0 marks a free slot here as in the file.
+                globalTable[slot * 2 + 1] = data.size() + 1;
+                encoder.writeString(global.getKey());
+                writeValue(global.getValue());
+            }
+
+            int tablesSize = 4 * (4 + symbolOffsets.length + environmentOffsets.length + functionOffsets.length
+                    + globalTable.length);
+            ByteBuffer payload = ByteBuffer.allocate(tablesSize + data.size());
+            payload.putInt(symbolOffsets.length).putInt(environmentOffsets.length)
+                    .putInt(functionOffsets.length).putInt(capacity);
+            for (int[] offsets : new int[][] {symbolOffsets, environmentOffsets, functionOffsets}) {
+                for (int offset : offsets) {
+                    payload.putInt(tablesSize + offset);
+                }
+            }
+            for (int slot = 0; slot < capacity; slot++) {
+                int offset = globalTable[slot * 2 + 1];
+                payload.putInt(globalTable[slot * 2]).putInt(offset != 0 ? tablesSize + offset - 1 : 0);
+            }
+            payload.put(data.toByteArray());
+            return payload.flip();
+        }
+
+        private void writeNames(List<String> names) throws IOException {
+            encoder.writeVarLong(names.size());
+            for (String name : names) {
+                encoder.writeString(name);
+            }
+        }
+
+        /** Numbers the functions and environments reachable from {@code value}. */
+        private void collect(@Nullable Object value) {
+            while (value instanceof Pair && collectedPairs.put((Pair) value, true) == null) {
+                collect(((Pair) value).getCar());
+                value = ((Pair) value).getCdr();
+            }
+            if (!(value instanceof UserFunction) || functionIndexes.containsKey(value)) {
+                return;
+            }
+            UserFunction fn = (UserFunction) value;
+            int index = functions.size();
+            // Numbered before its environment is, which may hold the function itself.
+            functionIndexes.put(fn, index);
+            functions.add(fn);
+            functionEnvironments.add(GLOBAL);
+            int environment;
+            if (fn.isCompiled()) {
+                environment = frame(fn.getClosureFrame(), fn.getClosureScope());
+            } else {
+                Eval closureEnv = fn.getClosureEnv();
+                environment = closureEnv != null ? eval(closureEnv) : GLOBAL;
+            }
+            functionEnvironments.set(index, environment);
+        }
+
+        private int frame(@Nullable Frame frame, Compiler.@Nullable Scope scope) {
+            if (frame == null || scope == null) {
+                return GLOBAL;
+            }
+            Integer index = environmentIndexes.get(frame);
+            if (index != null) {
+                return index;
+            }
+            return addEnvironment(frame, frame(frame.parent, scope.parent), scope.names, Arrays.asList(frame.slots));
+        }
+
+        private int eval(Eval env) {
+            Eval parentEnv = env.getParent();
+            if (engine.isGlobal(env) || parentEnv == null) {
+                return GLOBAL;
+            }
+            Integer index = environmentIndexes.get(env);
+            if (index != null) {
+                return index;
+            }
+            Map<String, Object> variables = env.getVariables();
+            return addEnvironment(env, eval(parentEnv), new ArrayList<>(variables.keySet()),
+                    new ArrayList<>(variables.values()));
+        }
+
+        private int addEnvironment(Object env, int parent, List<String> names, List<@Nullable Object> values) {
+            int index = environmentNames.size();
+            environmentIndexes.put(env, index);
+            environmentParents.add(parent);
+            environmentNames.add(names);
+            environmentValues.add(values);
+            for (Object value : values) {
+                collect(value);
+            }
+            return index;
+        }
+
+        private void collectSymbols(SEXP expr) {
+            if (expr instanceof Symbol) {
+                symbols.putIfAbsent((Symbol) expr, symbols.size());
+            } else if (expr instanceof SEXPList) {
+                for (SEXP element : ((SEXPList) expr).getElements()) {
+                    collectSymbols(element);
+                }
+            }
+        }
+
+        /**
+         * Writes the pairs of a list up to the first one that has been written before, as a run:
+         * their number, their cars, and the cdr of the last. A pair written before is referred to
+         * by the distance back to its run and its index in it, so shared structure stays shared.
+         */
+        private void writePairs(Pair list) throws IOException {
+            long[] written = writtenPairs.get(list);
+            if (written != null) {
+                int position = data.size();
+                out.writeByte(PAIR_REFERENCE);
+                encoder.writeVarLong(position - written[0]);
+                encoder.writeVarLong(written[1]);
+                return;
+            }
+            List<Pair> run = new ArrayList<>();
+            Object rest = list;
+            while (rest instanceof Pair && !writtenPairs.containsKey(rest)) {
+                run.add((Pair) rest);
+                rest = ((Pair) rest).getCdr();
+            }
+            int start = data.size();
+            out.writeByte(PAIRS);
+            encoder.writeVarLong(run.size());
+            for (Pair pair : run) {
+                writeValue(pair.getCar());
+            }
+            writeValue(rest);
+            // Only now, as the reader can't refer into a run before it has been read entirely.
+            for (int i = 0; i < run.size(); i++) {
+                writtenPairs.putIfAbsent(run.get(i), new long[] {start, i});
+            }
+        }
+
+        private void writeValue(@Nullable Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(UNBOUND);
+            } else if (value == Eval.NIL) {
+                out.writeByte(NIL);
+            } else if (value instanceof UserFunction) {
+                out.writeByte(FUNCTION);
+                encoder.writeVarLong(functionIndexes.get(value));
+            } else if (value instanceof Builtin) {
+                out.writeByte(BUILTIN);
+                encoder.writeString(((Builtin) value).getName());
+            } else if (value instanceof Pair) {
+                writePairs((Pair) value);
+            } else if (value instanceof CalcVector) {
+                long[] elements = ((CalcVector) value).elements();
+                out.writeByte(VECTOR);
+                encoder.writeVarLong(elements.length);
+                for (long element : elements) {
+                    encoder.writeVarLong((element << 1) ^ (element >> 63));
+                }
+            } else if (Num.isNumber(value)) {
+                encoder.write(new NumberLiteral(value));
+            } else if (value instanceof String) {
+                encoder.write(new StringLiteral((String) value));
+            } else if (value instanceof Boolean) {
+                encoder.write(BooleanLiteral.of((Boolean) value));
+            } else {
+                throw new IOException("Cannot save a value of type " + value.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * Builds globals, functions and environments from the snapshot as they are asked for. An
+     * environment's values are filled in after the function that needed it has been created,
+     * since they may include that function.
+     */
+    private static final class Reader implements GlobalEnv.Source {
+        private final Engine engine;
+        private final ByteBuffer payload;
+        private final int symbolTable;
+        private final int environmentTable;
+        private final int functionTable;
+        private final int globalTable;
+        private final int globalCapacity;
+
+        private final @Nullable Symbol[] symbols;
+        // A Frame or an Eval, depending on the engine.
+        private final @Nullable Object[] environments;
+        private final Compiler.@Nullable Scope[] scopes;
+        private final @Nullable UserFunction[] functions;
+        private final ArrayDeque<Integer> unfilled = new ArrayDeque<>();
+        // The pairs of each run read so far, by the offset of the run.
+        private final Map<Integer, Pair[]> pairRuns = new HashMap<>();
+
+        Reader(Engine engine, ByteBuffer payload) {
+            this.engine = engine;
+            this.payload = payload;
+            int symbolCount = payload.getInt(0);
+            int environmentCount = payload.getInt(4);
+            int functionCount = payload.getInt(8);
+            this.globalCapacity = payload.getInt(12);
+            this.symbolTable = 16;
+            this.environmentTable = symbolTable + 4 * symbolCount;
+            this.functionTable = environmentTable + 4 * environmentCount;
+            this.globalTable = functionTable + 4 * functionCount;
+            this.symbols = new Symbol[symbolCount];
+            this.environments = new Object[environmentCount];
+            this.scopes = new Compiler.Scope[environmentCount];
+            this.functions = new UserFunction[functionCount];
+        }
+
+        @Override
+        public synchronized @Nullable Object get(String name) {
+            int hash = name.hashCode();
+            for (int slot = slot(hash, globalCapacity); ; slot = (slot + 1) & (globalCapacity - 1)) {
+                int offset = payload.getInt(globalTable + 8 * slot + 4);
+                if (offset == 0) {
+                    return null;
+                }
+                if (payload.getInt(globalTable + 8 * slot) == hash) {
+                    FormCodec.Decoder in = decoder(offset);
+                    if (in.readString().equals(name)) {
+                        Object value = readValue(in);
+                        fillEnvironments();
+                        return value;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized Iterable<String> names() {
+            List<String> names = new ArrayList<>();
+            for (int slot = 0; slot < globalCapacity; slot++) {
+                int offset = payload.getInt(globalTable + 8 * slot + 4);
+                if (offset != 0) {
+                    names.add(decoder(offset).readString());
+                }
+            }
+            return names;
+        }
+
+        private FormCodec.Decoder decoder(int offset) {
+            return new FormCodec.Decoder(payload.duplicate().position(offset), this::symbol);
+        }
+
+        // Also called by function bodies being decoded, possibly on several threads; a race only
+        // interns the same symbol twice.
+        private Symbol symbol(int index) {
+            Symbol symbol = symbols[index];
+            if (symbol == null) {
+                symbol = Symbol.of(decoder(payload.getInt(symbolTable + 4 * index)).readString());
+                symbols[index] = symbol;
+            }
+            return symbol;
+        }
+
+        private UserFunction function(int index) {
+            UserFunction fn = functions[index];
+            if (fn != null) {
+                return fn;
+            }
+            ByteBuffer in = payload.duplicate().position(payload.getInt(functionTable + 4 * index));
+            FormCodec.Decoder decoder = new FormCodec.Decoder(in, this::symbol);
+            String name = decoder.readString();
+            List<String> parameters = readNames(decoder);
+            List<String> names = readNames(decoder);
+            boolean memoize = decoder.readTag() != 0;
+            int environment = decoder.readSize() - 1;
+            Supplier<SEXP> body = new DeferredBody(this, in.position());
+
+            MemoCache memo = memoize ? engine.getMemoCache() : null;
+            if (engine.isReferenceMode()) {
+                Eval closureEnv = environment == GLOBAL ? engine.getReferenceEnv() : (Eval) environment(environment);
+                fn = new UserFunction(name, parameters, body, closureEnv, memo);
+            } else {
+                Frame closureFrame = environment == GLOBAL ? engine.getTopLevel() : (Frame) environment(environment);
+                fn = engine.getCompiler().function(name, parameters, body, names, memoize,
+                        environment == GLOBAL ? null : scopes[environment], closureFrame);
+            }
+            functions[index] = fn;
+            return fn;
+        }
+
+        /** Returns the Frame or Eval of an environment, whose values may not be filled in yet. */
+        private Object environment(int index) {
+            Object env = environments[index];
+            if (env != null) {
+                return env;
+            }
+            FormCodec.Decoder in = decoder(payload.getInt(environmentTable + 4 * index));
+            int parent = in.readSize() - 1;
+            List<String> names = readNames(in);
+            Object parentEnv = parent == GLOBAL ? null : environment(parent);
+            if (engine.isReferenceMode()) {
+                env = new Eval(parentEnv != null ? (Eval) parentEnv : engine.getReferenceEnv());
+            } else {
+                scopes[index] = new Compiler.Scope(names, parent == GLOBAL ? null : scopes[parent]);
+                env = new Frame(new Object[names.size()], parentEnv != null ? (Frame) parentEnv : engine.getTopLevel());
+            }
+            environments[index] = env;
+            unfilled.add(index);
+            return env;
+        }
+
+        private void fillEnvironments() {
+            while (!unfilled.isEmpty()) {
+                int index = unfilled.poll();
+                FormCodec.Decoder in = decoder(payload.getInt(environmentTable + 4 * index));
+                in.readSize();
+                List<String> names = readNames(in);
+                Object env = environments[index];
+                for (int i = 0; i < names.size(); i++) {
+                    Object value = readValue(in);
+                    if (env instanceof Frame) {
+                        ((Frame) env).slots[i] = value;
+                    } else if (value != null) {
+                        ((Eval) env).setVariable(names.get(i), value);
+                    }
+                }
+            }
+        }
+
+        private Pair[] readPairs(FormCodec.Decoder in, int start) {
+            Object[] cars = new Object[in.readSize()];
+            for (int i = 0; i < cars.length; i++) {
+                cars[i] = value(readValue(in));
+            }
+            Object rest = value(readValue(in));
+            Pair[] run = new Pair[cars.length];
+            for (int i = cars.length - 1; i >= 0; i--) {
+                rest = run[i] = new Pair(cars[i], rest);
+            }
+            pairRuns.put(start, run);
+            return run;
+        }
+
+        private static Object value(@Nullable Object value) {
+            if (value == null) {
+                throw new IllegalStateException("Unbound value in a pair");
+            }
+            return value;
+        }
+
+        private static List<String> readNames(FormCodec.Decoder in) {
+            int size = in.readSize();
+            List<String> names = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                names.add(in.readString());
+            }
+            return names;
+        }
+
+        private @Nullable Object readValue(FormCodec.Decoder in) {
+            byte tag = in.readTag();
+            switch (tag) {
+                case UNBOUND:
+                    return null;
+                case NIL:
+                    return Eval.NIL;
+                case FUNCTION:
+                    return function(in.readSize());
+                case PAIRS:
+                    return readPairs(in, in.position() - 1)[0];
+                case PAIR_REFERENCE: {
+                    int start = in.position() - 1 - in.readSize();
+                    int index = in.readSize();
+                    Pair[] run = pairRuns.get(start);
+                    if (run == null) {
+                        FormCodec.Decoder runDecoder = decoder(start);
+                        runDecoder.readTag();
+                        run = readPairs(runDecoder, start);
+                    }
+                    return run[index];
+                }
+                case VECTOR: {
+                    long[] elements = new long[in.readSize()];
+                    for (int i = 0; i < elements.length; i++) {
+                        long zigzag = in.readVarLong();
+                        elements[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+                    }
+                    return new CalcVector(elements);
+                }
+                case BUILTIN: {
+                    String name = in.readString();
+                    Builtin builtin = Builtin.of(name);
+                    if (builtin == null) {
+                        throw new IllegalStateException("Unknown builtin " + name);
+                    }
+                    return builtin;
+                }
+                default:
+                    SEXP literal = in.read(tag);
+                    if (literal instanceof NumberLiteral) {
+                        return ((NumberLiteral) literal).getNumber();
+                    } else if (literal instanceof BooleanLiteral) {
+                        return ((BooleanLiteral) literal).getBoolean();
+                    } else if (literal instanceof StringLiteral) {
+                        return ((StringLiteral) literal).getValue();
+                    }
+                    throw new IllegalStateException("Unexpected value " + literal);
+            }
+        }
+    }
+
+    /** Decodes the body of a restored function the first time it is needed. */
+    private static final class DeferredBody implements Supplier<SEXP> {
+        private final Reader reader;
+        private final int offset;
+        private volatile @Nullable SEXP body;
+
+        DeferredBody(Reader reader, int offset) {
+            this.reader = reader;
+            this.offset = offset;
+        }
+
+        @Override
+        public SEXP get() {
+            SEXP result = body;
+            if (result == null) {
+                result = reader.decoder(offset).read();
+                body = result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.fionarex;
+
+final class StringLiteral extends Atom {
+    private final String value;
+
+    StringLiteral(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,80 @@
+package com.fionarex;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import org.checkerframework.checker.nullness.qual.*;
+
+/** A name. Symbols are interned, so two symbols are equal exactly when they are the same object. */
+final class Symbol extends Atom {
+    // Held weakly so that a long-running server doesn't keep every name it has ever read. A symbol
+    // is only dropped once nothing refers to it, so two live symbols never share a name.
+    private static final ConcurrentHashMap<String, Interned> TABLE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Symbol> COLLECTED = new ReferenceQueue<>();
+
+    static final Symbol DEFINE = of("define");
+    static final Symbol DEFINE_MEMO = of("define-memo");
+    static final Symbol IF = of("if");
+    static final Symbol PLUS = of("+");
+    static final Symbol MINUS = of("-");
+    static final Symbol STAR = of("*");
+    static final Symbol SLASH = of("/");
+
+    private final String name;
+
+    private Symbol(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getValue() {
+        return name;
+    }
+
+    static Symbol of(String name) {
+        Interned interned = TABLE.get(name);
+        Symbol symbol = interned != null ? interned.get() : null;
+        return symbol != null ? symbol : intern(name);
+    }
+
+    private static Symbol intern(String name) {
+        for (Reference<? extends Symbol> ref; (ref = COLLECTED.poll()) != null; ) {
+            TABLE.remove(((Interned) ref).name, ref);
+        }
+        Symbol symbol = new Symbol(name);
+        Interned interned = new Interned(symbol);
+        while (true) {
+            Interned existing = TABLE.putIfAbsent(name, interned);
+            if (existing == null) {
+                return symbol;
+            }
+            Symbol other = existing.get();
+            if (other != null) {
+                return other;
+            }
+            if (TABLE.replace(name, existing, interned)) {
+                return symbol;
+            }
+        }
+    }
+
+    private static final class Interned extends WeakReference<Symbol> {
+        final String name;
+
+        Interned(Symbol symbol) {
+            super(symbol, COLLECTED);
+            this.name = symbol.name;
+        }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        return this == obj;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
@@ -15,13 +15,18 @@ public class Token {
     public final @NonNull Type type;
     public final @NonNull String lexeme;
     public final @Nullable Object literal;
-
-
+    /** Where the token starts, as a {@link Position}. */
+    public final int position;
 
     public Token(@NonNull Type type, @NonNull String lexeme, @Nullable Object literal) {
+        this(type, lexeme, literal, Position.UNKNOWN);
+    }
+
+    public Token(@NonNull Type type, @NonNull String lexeme, @Nullable Object literal, int position) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
+        this.position = position;
     }
 
     @Override
@@ -0,0 +1,92 @@
+package com.fionarex;
+
+import java.util.Arrays;
+
+/**
+ * Tokens stored as parallel primitive arrays of kinds and source offsets rather than as
+ * {@link Token} objects. Produced by {@link Lexer#lexCompact()} and read directly by
+ * {@link Parser}, which only builds strings for the lexemes it actually needs. Line and column
+ * positions aren't stored either; they are worked out from the offsets and the line starts the
+ * lexer records.
+ */
+public final class TokenBuffer {
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    final char[] source;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+    // The offset of the start of each line.
+    private int[] lineStarts = new int[16];
+    private int lines = 1;
+    // The line of the last position asked for; the parser asks in order, so it moves forward.
+    private int line;
+
+    TokenBuffer(char[] source, int capacity) {
+        this.source = source;
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+    }
+
+    void add(Token.Type type, int start, int end) {
+        if (size == types.length) {
+            int capacity = Math.max(16, size * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /** Records that a line starts at offset {@code start}, after those recorded before. */
+    void addLine(int start) {
+        if (lines == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+        }
+        lineStarts[lines++] = start;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Token.Type type(int i) {
+        return TYPES[types[i]];
+    }
+
+    /** Offset of the first character of token {@code i}; string tokens exclude their quotes. */
+    public int start(int i) {
+        return starts[i];
+    }
+
+    public int end(int i) {
+        return ends[i];
+    }
+
+    public String lexeme(int i) {
+        return new String(source, starts[i], ends[i] - starts[i]);
+    }
+
+    /** The {@link Position} of token {@code i}; a string token's is that of its opening quote. */
+    public int position(int i) {
+        int[] table = lineStarts;
+        int offset = type(i) == Token.Type.STRING ? starts[i] - 1 : starts[i];
+        int line = this.line;
+        if (offset < table[line]) {
+            line = Arrays.binarySearch(table, 0, line, offset);
+            if (line < 0) {
+                line = -line - 2;
+            }
+        }
+        while (line + 1 < lines && table[line + 1] <= offset) {
+            line++;
+        }
+        this.line = line;
+        return Position.of(line + 1, offset - table[line] + 1);
+    }
+}
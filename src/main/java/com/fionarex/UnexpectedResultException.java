@@ -0,0 +1,13 @@
+package com.fionarex;
+
+/** Carries a result that was not of the primitive type the caller asked for. */
+class UnexpectedResultException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+
+    UnexpectedResultException(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
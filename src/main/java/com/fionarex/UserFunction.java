@@ -1,24 +1,320 @@
 package com.fionarex;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
+
+import org.checkerframework.checker.nullness.qual.*;
 
 public class UserFunction {
+    private final String name;
     private final List<String> parameters;
-    private final SEXP body;
-    private final Eval closureEnv;
+    // Usually just returns the body; functions restored from a Snapshot decode it on first use.
+    private final Supplier<SEXP> body;
+    private final @Nullable Eval closureEnv;
+
+    // Set for functions created by compiled code, which run in an array-backed Frame.
+    private final @Nullable Node compiledBody;
+    private final int frameSize;
+    private final @Nullable Frame closureFrame;
+    // The names of closureFrame's slots, and of its parents'; null for top-level functions.
+    private final Compiler.@Nullable Scope closureScope;
+
+    // Set for functions defined with define-memo.
+    private final @Nullable MemoCache memo;
 
-    public UserFunction(List<String> parameters, SEXP body, Eval closureEnv) {
+    // Tiered compilation: calls are counted until the function is handed to the JIT.
+    // The fields are volatile as functions may be called from several threads by the Scheduler;
+    // a lost update to the count only delays compilation.
+    private volatile @Nullable Jit jit;
+    private int invocations;
+    private volatile Jit.@Nullable Compiled jitted;
+
+    public UserFunction(String name, List<String> parameters, SEXP body, Eval closureEnv) {
+        this(name, parameters, body, closureEnv, null);
+    }
+
+    public UserFunction(String name, List<String> parameters, SEXP body, Eval closureEnv, @Nullable MemoCache memo) {
+        this(name, parameters, () -> body, closureEnv, memo);
+    }
+
+    UserFunction(String name, List<String> parameters, Supplier<SEXP> body, Eval closureEnv, @Nullable MemoCache memo) {
+        this.name = name;
         this.parameters = parameters;
         this.body = body;
         this.closureEnv = closureEnv;
+        this.compiledBody = null;
+        this.frameSize = 0;
+        this.closureFrame = null;
+        this.closureScope = null;
+        this.memo = memo;
+    }
+
+    public UserFunction(String name, List<String> parameters, Supplier<SEXP> body, Node compiledBody, int frameSize,
+                        Frame closureFrame, Compiler.@Nullable Scope closureScope, @Nullable Jit jit,
+                        @Nullable MemoCache memo) {
+        this.name = name;
+        this.parameters = parameters;
+        this.body = body;
+        this.closureEnv = null;
+        this.compiledBody = compiledBody;
+        this.frameSize = frameSize;
+        this.closureFrame = closureFrame;
+        this.closureScope = closureScope;
+        this.jit = jit != null && jit.getThreshold() > 0 ? jit : null;
+        this.memo = memo;
     }
 
     public Object apply(List<Object> args) {
+        if (compiledBody != null || memo != null) {
+            return invoke(args.toArray());
+        }
+        return evalBody(args);
+    }
+
+    /** Runs the body of a reference function, bypassing the memo cache. */
+    private Object evalBody(List<Object> args) {
+        Profiler profiler = Profiler.active;
+        Eval env = bind(args);
+        try {
+            if (profiler != null) {
+                profiler.enter(this);
+                try {
+                    return env.eval(body.get());
+                } finally {
+                    profiler.exit();
+                }
+            }
+            return env.eval(body.get()); // This returns Object
+        } catch (EvalError e) {
+            e.addFrame(name);
+            throw e;
+        }
+    }
+
+    /** A call in tail position, returned by compiled code for {@link #invoke} to carry out. */
+    static final class TailCall {
+        final UserFunction function;
+        final @Nullable Object[] arguments;
+        final int position;
+
+        TailCall(UserFunction function, @Nullable Object[] arguments, int position) {
+            this.function = function;
+            this.arguments = arguments;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Calls the function with already evaluated arguments; {@code args} may become its frame.
+     * Tail calls made by the body are run by this loop rather than on the Java stack.
+     */
+    public Object invoke(@Nullable Object[] args) {
+        ExecutionBudget budget = ExecutionBudget.current();
+        if (budget == null) {
+            return run(this, args, true, null);
+        }
+        int depth = budget.depth();
+        try {
+            return run(this, args, true, budget);
+        } finally {
+            budget.unwind(depth);
+        }
+    }
+
+    private static Object run(UserFunction fn, @Nullable Object[] args, boolean consultMemo,
+                              @Nullable ExecutionBudget budget) {
+        // Each call in the loop replaces the one before it, so they all count at the same depth.
+        int depth = budget != null ? budget.depth() : 0;
+        // The function that made the tail call being run, if any, and where it made it.
+        UserFunction caller = null;
+        int callPosition = Position.UNKNOWN;
+        while (true) {
+            Object result;
+            boolean started = false;
+            try {
+                if (fn.memo != null && consultMemo) {
+                    // As in the interpreter, a memoized function doesn't replace its caller.
+                    return fn.invokeMemoized(fn.memo, args, budget);
+                }
+                consultMemo = true;
+                if (budget != null) {
+                    budget.unwind(depth);
+                    budget.enter();
+                }
+                Node code = fn.compiledBody;
+                if (code == null) {
+                    return fn.evalBody(Arrays.asList(args));
+                }
+                fn.checkArity(args.length);
+                started = true;
+                Profiler profiler = Profiler.active;
+                if (fn.jit != null && profiler == null && (budget == null || !budget.countsCalls())) {
+                    result = fn.invokeJitted(fn.jit, args);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                if (profiler == null) {
+                    result = code.execute(fn.newFrame(args));
+                } else {
+                    // A tail call ends this call, so the next one is not counted as nested in it.
+                    profiler.enter(fn);
+                    try {
+                        result = code.execute(fn.newFrame(args));
+                    } finally {
+                        profiler.exit();
+                    }
+                }
+            } catch (EvalError e) {
+                // Until the function has started, the error belongs to the call that made it.
+                if (started) {
+                    e.addFrame(fn.name);
+                } else if (caller != null) {
+                    e.at(callPosition);
+                    e.addFrame(caller.name);
+                }
+                throw e;
+            }
+            if (!(result instanceof TailCall)) {
+                return result;
+            }
+            TailCall call = (TailCall) result;
+            caller = fn;
+            callPosition = call.position;
+            fn = call.function;
+            args = call.arguments;
+        }
+    }
+
+    /** Looks the call up in the memo cache and only runs the body on a miss. */
+    private Object invokeMemoized(MemoCache cache, @Nullable Object[] args, @Nullable ExecutionBudget budget) {
+        int arity = parameters.size();
+        if (args.length < arity) {
+            return run(this, args, false, budget);
+        }
+        // The arguments array may become the frame, so the key needs its own copy.
+        Object[] key = Arrays.copyOf(args, arity);
+        Object result = cache.get(this, key);
+        if (result == null) {
+            result = run(this, args, false, budget);
+            cache.put(this, key, result);
+        }
+        return result;
+    }
+
+    /** Called with the old value when a binding is redefined, so stale memoized results go. */
+    static void redefined(@Nullable Object old) {
+        if (old instanceof UserFunction) {
+            UserFunction fn = (UserFunction) old;
+            if (fn.memo != null) {
+                fn.memo.invalidate(fn);
+            }
+        }
+    }
+
+    /** Runs the JIT-compiled body, or returns {@code null} if the interpreter has to run it. */
+    private @Nullable Object invokeJitted(Jit compiler, @Nullable Object[] args) {
+        Jit.Compiled code = jitted;
+        if (code == null) {
+            if (++invocations < compiler.getThreshold()) {
+                return null;
+            }
+            code = compiler.compile(this);
+            if (code == null) {
+                jit = null;
+                return null;
+            }
+            jitted = code;
+            // A global the code depends on may have been redefined while it was compiled.
+            if (jit == null) {
+                jitted = null;
+                return null;
+            }
+        }
+        if (!Jit.allLongs(args, parameters.size())) {
+            return null;
+        }
+        try {
+            return code.call(args);
+        } catch (ArithmeticException | Jit.Deopt e) {
+            return null;
+        }
+    }
+
+    /** Drops compiled code after a global it depended on was redefined. */
+    void deoptimize() {
+        // jit first: invokeJitted checks it after installing code, so stale code never survives.
+        jit = null;
+        jitted = null;
+    }
+
+    /** Throws unless {@code count} arguments are enough; any beyond the parameters are ignored. */
+    private void checkArity(int count) {
+        if (count < parameters.size()) {
+            throw new EvalError("Expected " + parameters.size() + " arguments but got " + count);
+        }
+    }
+
+    /** A frame holding {@code args}, which {@link #checkArity} has accepted. */
+    private Frame newFrame(@Nullable Object[] args) {
+        int arity = parameters.size();
+        Object[] slots = args.length == frameSize ? args : Arrays.copyOf(args, frameSize);
+        if (args.length > arity) {
+            Arrays.fill(slots, arity, Math.min(args.length, frameSize), null);
+        }
+        return new Frame(slots, closureFrame);
+    }
+
+    /** Binds {@code args} in a fresh environment for running the body of a reference function. */
+    Eval bind(List<Object> args) {
+        checkArity(args.size());
         Eval localEnv = new Eval(closureEnv); // Create a new local environment
         for (int i = 0; i < parameters.size(); i++) {
             localEnv.setVariable(parameters.get(i), args.get(i));
         }
-        return localEnv.eval(body); // This returns Object
+        return localEnv;
+    }
+
+    List<String> getParameters() {
+        return parameters;
+    }
+
+    SEXP getBody() {
+        return body.get();
+    }
+
+    @Nullable Eval getClosureEnv() {
+        return closureEnv;
+    }
+
+    @Nullable Frame getClosureFrame() {
+        return closureFrame;
+    }
+
+    Compiler.@Nullable Scope getClosureScope() {
+        return closureScope;
+    }
+
+    /** Whether JIT-compiled code is installed, which calls with long arguments run. */
+    boolean isJitted() {
+        return jitted != null;
+    }
+
+    boolean isCompiled() {
+        return compiledBody != null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    boolean isMemoized() {
+        return memo != null;
+    }
+
+    @Nullable MemoCache getMemo() {
+        return memo;
     }
 
     public String toString() {
@@ -0,0 +1,43 @@
+package com.fionarex;
+
+/**
+ * The element-wise loops behind the {@link CalcVector} builtins. Every method throws an
+ * {@link ArithmeticException} when a result overflows a long, and nothing else, so callers can
+ * tell overflow apart from errors such as a division by zero.
+ *
+ * <p>{@link #INSTANCE} uses the incubating {@code jdk.incubator.vector} API when the JVM was
+ * started with {@code --add-modules jdk.incubator.vector}, and plain loops otherwise.
+ */
+interface VectorKernels {
+    VectorKernels INSTANCE = select();
+
+    /**
+     * Sets {@code out[i]} to {@code a[i] operator b[i]} for one of {@code + - * /}.
+     *
+     * @param small whether all elements of both arrays fit in an int
+     */
+    void apply(char operator, long[] a, long[] b, boolean small, long[] out);
+
+    /**
+     * Sets {@code out[i]} to {@code a[i] operator b} for one of {@code + - * /}.
+     *
+     * @param small whether {@code b} and all elements of {@code a} fit in an int
+     */
+    void apply(char operator, long[] a, long b, boolean small, long[] out);
+
+    long sum(long[] a);
+
+    /** @param small whether all elements of both arrays fit in an int */
+    long dot(long[] a, long[] b, boolean small);
+
+    private static VectorKernels select() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return new SimdKernels();
+            } catch (LinkageError e) {
+                // fall back to the scalar loops
+            }
+        }
+        return new ScalarKernels();
+    }
+}
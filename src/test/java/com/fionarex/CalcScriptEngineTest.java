@@ -0,0 +1,137 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.junit.jupiter.api.Test;
+
+class CalcScriptEngineTest {
+    private final ScriptEngine engine = new CalcScriptEngineFactory().getScriptEngine();
+
+    private CompiledScript compile(String script) throws ScriptException {
+        return ((Compilable) engine).compile(script);
+    }
+
+    @Test
+    void isFoundByName() {
+        ScriptEngine found = new ScriptEngineManager().getEngineByName("calc");
+        assertInstanceOf(CalcScriptEngine.class, found);
+    }
+
+    @Test
+    void evalReturnsTheLastValueAndKeepsDefinitions() throws Exception {
+        assertEquals(42L, engine.eval("(define (price qty unit) (* qty unit)) (price 14 3)"));
+        assertEquals(10L, engine.eval("(price 2 5)"));
+        assertEquals(10L, ((Invocable) engine).invokeFunction("price", 2, 5));
+        assertEquals(7L, ((Invocable) engine).invokeFunction("+", 3, 4));
+        assertThrows(NoSuchMethodException.class, () -> ((Invocable) engine).invokeFunction("missing"));
+    }
+
+    @Test
+    void putAndRemoveDefineAndUnbindGlobals() throws Exception {
+        CompiledScript script = compile("(* n 3)");
+        engine.put("n", 14);
+        assertEquals(14L, engine.get("n"));
+        assertEquals(42L, script.eval());
+
+        assertEquals(14L, engine.getBindings(ScriptContext.ENGINE_SCOPE).remove("n"));
+        assertNull(engine.get("n"));
+        assertThrows(ScriptException.class, script::eval);
+
+        engine.put("n", 1);
+        engine.eval("(define m 2)");
+        engine.getBindings(ScriptContext.ENGINE_SCOPE).clear();
+        assertTrue(engine.getBindings(ScriptContext.ENGINE_SCOPE).isEmpty());
+        // Unbound names evaluate to themselves.
+        assertEquals("m", engine.eval("m"));
+    }
+
+    @Test
+    void javaValuesBecomeCalcValues() throws Exception {
+        engine.put("xs", List.of(1, 2, 3));
+        engine.put("v", new long[] {1, 2, 3});
+        engine.put("f", 1.5f);
+        engine.put("nothing", null);
+        assertEquals(1L, engine.eval("(car xs)"));
+        assertEquals(6L, engine.eval("(vector-sum v)"));
+        assertEquals(3.0, engine.eval("(* f 2)"));
+        assertEquals(true, engine.eval("(null? nothing)"));
+    }
+
+    @Test
+    void otherBindingsGetTheGlobalsTheScriptChanged() throws Exception {
+        CompiledScript script = compile("(define total (* n 3)) (define (twice x) (* x 2)) (twice total)");
+        Bindings bindings = new SimpleBindings();
+        bindings.put("n", 2);
+        assertEquals(12L, script.eval(bindings));
+        assertEquals(6L, bindings.get("total"));
+        assertInstanceOf(UserFunction.class, bindings.get("twice"));
+        assertEquals(2, bindings.get("n"));
+        // The engine's own context is untouched.
+        assertNull(engine.get("total"));
+    }
+
+    @Test
+    void otherBindingsKeepTheirEngine() throws Exception {
+        Bindings bindings = new SimpleBindings();
+        engine.eval("(define g 1) (define (f) g)", bindings);
+        assertEquals(1L, engine.eval("(f)", bindings));
+
+        bindings.put("g", 2);
+        assertEquals(2L, engine.eval("(f)", bindings));
+        bindings.remove("g");
+        assertEquals("g", engine.eval("(f)", bindings));
+    }
+
+    @Test
+    void scriptsAreOptimizedAgainstTheBindingsTheyRunWith() throws Exception {
+        CompiledScript script = compile("(+ 1 2)");
+        Bindings bindings = new SimpleBindings();
+        engine.eval("(define (+ a b) 100)", bindings);
+
+        assertEquals(100L, script.eval(bindings));
+        assertEquals(3L, script.eval());
+
+        Bindings own = engine.createBindings();
+        engine.eval("(define (+ a b) 100)", own);
+        assertEquals(100L, script.eval(own));
+        assertEquals(3L, script.eval());
+    }
+
+    @Test
+    void namesNotInTheEngineScopeComeFromTheGlobalScope() throws Exception {
+        Bindings global = new SimpleBindings();
+        global.put("rate", 3);
+        engine.setBindings(global, ScriptContext.GLOBAL_SCOPE);
+        assertEquals(6L, engine.eval("(* rate 2)"));
+
+        engine.put("rate", 4);
+        assertEquals(8L, engine.eval("(* rate 2)"));
+
+        Bindings bindings = new SimpleBindings();
+        assertEquals(6L, engine.eval("(* rate 2)", bindings));
+    }
+
+    @Test
+    void errorsAreScriptExceptionsAtTheFailingForm() {
+        ScriptException e = assertThrows(ScriptException.class,
+                () -> engine.eval("(define (f x)\n  (+ x 1))\n(f \"a\")"));
+        // The innermost form that failed is in the body of f.
+        assertEquals(2, e.getLineNumber());
+        assertEquals(3, e.getColumnNumber());
+        assertInstanceOf(EvalError.class, e.getCause());
+
+        assertThrows(ScriptException.class, () -> compile("(+ 1"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/** Runs the same programs on every engine; each form must print the same, errors included. */
+class EngineConsistencyTest {
+    private static void assertSameOnEveryEngine(String source) {
+        List<String> expected = Programs.results(Programs.engine("reference"), source);
+        for (String mode : Programs.MODES) {
+            assertEquals(expected, Programs.results(Programs.engine(mode), source), mode + ": " + source);
+        }
+    }
+
+    @Test
+    void arithmetic() {
+        assertSameOnEveryEngine("(+ 1 2 3) (- 10) (- 10 4 3) (* 2 3 4) (/ 7 2) (/ 7.0 2) (+ 1 2.5)"
+                + " (* 99999999999 99999999999) (- -9223372036854775807 10) (/ 100000000000000000000 10)"
+                + " (> 3 2) (< 3 2) (> 2.5 2) (< 100000000000000000000 1)");
+    }
+
+    @Test
+    void recursionAndTailCalls() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))",
+                "(fib 1) (fib 2) (fib 20)",
+                "(define (fact n) (if (< n 2) 1 (* n (fact (- n 1)))))",
+                "(fact 10) (fact 30)",
+                "(define (count n acc) (if (< n 1) acc (count (- n 1) (+ acc 1))))",
+                "(count 100000 0)",
+                "(define (ack m n) (if (< m 1) (+ n 1) (if (< n 1) (ack (- m 1) 1) (ack (- m 1) (ack m (- n 1))))))",
+                "(ack 2 3)"));
+    }
+
+    @Test
+    void closuresAndLocalDefines() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(define (make-adder n) (define (add x) (+ x n)) add)",
+                "(define add5 (make-adder 5))",
+                "(add5 1) ((make-adder 10) 1)",
+                "(define (outer a) (define (middle b) (define (inner c) (+ a b c)) inner) middle)",
+                "(((outer 1) 2) 3)",
+                "(define x 1)",
+                "(define (shadow) (define x 2) x)",
+                "(shadow) x"));
+    }
+
+    @Test
+    void memoization() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(define-memo (mfib n) (if (< n 2) n (+ (mfib (- n 1)) (mfib (- n 2)))))",
+                "(mfib 80) (mfib 10)",
+                "(define-memo (pick a b) (if (> a b) a b))",
+                "(pick 1 2) (pick 2 1) (pick 2.5 1)"));
+    }
+
+    @Test
+    void builtinsAreValuesAndCanBeRedefined() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(define (apply-op f a b) (f a b))",
+                "(apply-op * 6 7) (apply-op > 1 2)",
+                "(define (f) (+ 1 2))",
+                "(f)",
+                "(define (+ a b) 100)",
+                "(+ 1 2) (f)"));
+    }
+
+    @Test
+    void lists() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(cons 1 (list 2 3)) (car (list 1 2)) (cdr (list 1 2 3)) (null? (list)) (null? (list 1))",
+                "(define xs (list 1 2 3))",
+                "(define (sum xs) (if (null? xs) 0 (+ (car xs) (sum (cdr xs)))))",
+                "(sum xs) (sum (cons 10 xs)) xs (list 1 \"a\" (list 2.5))",
+                "(car (list)) (cdr 5)"));
+    }
+
+    @Test
+    void vectors() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(vector 1 2 3) (vector-sum (vector-range 10)) (vector-dot (vector 1 2) (vector 3 4))",
+                "(vector-map * (vector 1 2 3) 3) (vector->list (vector-add (vector 1 2) (vector 3 4)))",
+                "(vector-ref (vector-range 100) 42) (make-vector 3 7)",
+                "(vector-ref (vector 1) 5) (vector-add (vector 1) (vector 1 2))"));
+    }
+
+    @Test
+    void errorsAndTheirTraces() {
+        assertSameOnEveryEngine(String.join("\n",
+                "(/ 1 0)",
+                "(+ 1 \"a\")",
+                "undefined-name",
+                "(define (inner x) (+ x \"oops\"))",
+                "(define (middle x) (* 2 (inner x)))",
+                "(middle 1)",
+                "(define (down n) (if (< n 1) (car 5) (+ 1 (down (- n 1)))))",
+                "(down 50)",
+                "(define (two a b) (+ a b))",
+                "(two 1)",
+                "(1 2)"));
+    }
+}
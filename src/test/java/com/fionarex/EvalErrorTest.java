@@ -0,0 +1,111 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class EvalErrorTest {
+    @Test
+    void positionsPackTheLineAndColumn() {
+        int position = Position.of(1234, 56);
+        assertEquals(1234, Position.line(position));
+        assertEquals(56, Position.column(position));
+        assertEquals("1234:56", Position.toString(position));
+        assertEquals("1:1", Position.toString(Position.of(1, 1)));
+        assertEquals("?", Position.toString(Position.UNKNOWN));
+    }
+
+    @Test
+    void positionsTooLargeToFitAreClamped() {
+        int maxLine = (1 << 21) - 1;
+        assertEquals(maxLine + ":2047", Position.toString(Position.of(maxLine + 1, 2048)));
+        assertEquals(maxLine + ":2047", Position.toString(Position.of(Integer.MAX_VALUE, Integer.MAX_VALUE)));
+        assertEquals("7:2047", Position.toString(Position.of(7, 5000)));
+        assertEquals(maxLine + ":3", Position.toString(Position.of(maxLine + 10, 3)));
+    }
+
+    @Test
+    void theMessageJoinsItsDetail() {
+        assertEquals("car expects a pair but got 5", new EvalError("car expects a pair but got ", 5L).getMessage());
+        assertEquals("plain", new EvalError("plain").getMessage());
+    }
+
+    @Test
+    void theInnermostFormGivesThePosition() {
+        EvalError e = new EvalError("boom");
+        e.at(Position.of(3, 5)).at(Position.of(3, 1));
+        e.addFrame("inner");
+        e.at(Position.of(7, 2)).at(Position.of(7, 1));
+        e.addFrame("outer");
+        e.at(Position.of(9, 1));
+
+        assertEquals(Position.of(3, 5), e.getPosition());
+        assertEquals("\tat inner (x.calc:3:5)\n\tat outer (x.calc:7:2)\n\tat top level (x.calc:9:1)\n", e.trace("x.calc"));
+    }
+
+    @Test
+    void framesWithoutAPositionShowAQuestionMark() {
+        EvalError e = new EvalError("boom");
+        e.addFrame("f");
+        assertEquals(Position.UNKNOWN, e.getPosition());
+        assertEquals("\tat f (x.calc:?)\n\tat top level (x.calc:?)\n", e.trace("x.calc"));
+    }
+
+    @Test
+    void repeatedFramesAreFolded() {
+        EvalError e = new EvalError("boom");
+        e.at(Position.of(1, 30));
+        e.addFrame("down");
+        for (int i = 0; i < 5; i++) {
+            e.at(Position.of(1, 43));
+            e.addFrame("down");
+        }
+        e.at(Position.of(2, 1));
+        e.addFrame("up");
+        e.at(Position.of(3, 1));
+        e.addFrame("down");
+        e.at(Position.of(3, 1));
+        e.addFrame("down");
+        e.at(Position.of(4, 1));
+
+        assertEquals(String.join("\n",
+                "\tat down (x.calc:1:30)",
+                "\tat down (x.calc:1:43)",
+                "\t... repeated 4 more times",
+                "\tat up (x.calc:2:1)",
+                "\tat down (x.calc:3:1)",
+                "\t... repeated 1 more time",
+                "\tat top level (x.calc:4:1)",
+                ""), e.trace("x.calc"));
+    }
+
+    @Test
+    void framesBeyondTheCapAreCounted() {
+        EvalError e = new EvalError("boom");
+        for (int line = 1; line <= 100; line++) {
+            e.at(Position.of(line, 1));
+            e.addFrame("f" + line);
+        }
+        String[] lines = e.trace("x.calc").split("\n");
+        assertEquals(66, lines.length);
+        assertEquals("\tat f1 (x.calc:1:1)", lines[0]);
+        assertEquals("\tat f64 (x.calc:64:1)", lines[63]);
+        assertEquals("\t... 36 more", lines[64]);
+        assertEquals("\tat top level (x.calc:?)", lines[65]);
+    }
+
+    @Test
+    void deepRecursionTracesTheSameOnEveryEngine() {
+        String source = "(define (down n) (if (< n 1) (car 5) (+ 1 (down (- n 1)))))\n(down 500)";
+        for (String mode : Programs.MODES) {
+            String result = Programs.results(Programs.engine(mode), source).get(1);
+            assertEquals(String.join("\n",
+                    "car expects a pair but got 5",
+                    "\tat down (test.calc:1:30)",
+                    "\tat down (test.calc:1:43)",
+                    "\t... repeated 499 more times",
+                    "\tat top level (test.calc:2:1)",
+                    ""), result, mode);
+        }
+    }
+}
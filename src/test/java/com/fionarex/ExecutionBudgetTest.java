@@ -0,0 +1,139 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ExecutionBudgetTest {
+    private static final String LOOP = "(define (loop n) (if (< n 1) 0 (loop (- n 1))))";
+    private static final String DEEP = "(define (deep n) (if (< n 1) 0 (+ 1 (deep (- n 1)))))";
+    // Long enough that no test waits for it to finish.
+    private static final String FOREVER = "(loop 1000000000000000)";
+
+    private static ExecutionBudget.Limit exceeded(Engine engine, String form, ExecutionBudget budget) {
+        SEXP expr = Programs.parse(form).get(0);
+        return assertThrows(ExecutionBudget.Exceeded.class, () -> engine.eval(expr, budget)).getLimit();
+    }
+
+    private static Object eval(Engine engine, String form, ExecutionBudget budget) {
+        return engine.eval(Programs.parse(form).get(0), budget);
+    }
+
+    @Test
+    void stepsCountEveryCallIncludingTailCalls() {
+        for (String mode : Programs.MODES) {
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, LOOP);
+            ExecutionBudget budget = new ExecutionBudget(100, 0, 0);
+            assertEquals(0L, eval(engine, "(loop 98)", budget), mode);
+            assertEquals(99, budget.getSteps(), mode);
+            assertEquals(ExecutionBudget.Limit.STEPS, exceeded(engine, "(loop 100)", budget.renew()), mode);
+        }
+    }
+
+    @Test
+    void depthCountsCallsInProgressButNotTailCalls() {
+        // The CEK machine bounds depth with its frame limit instead.
+        for (String mode : List.of("reference", "compiled", "jit")) {
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, LOOP + DEEP);
+            ExecutionBudget budget = new ExecutionBudget(0, 0, 20);
+            assertEquals(0L, eval(engine, "(loop 10000)", budget), mode);
+            assertEquals(19L, eval(engine, "(deep 19)", budget.renew()), mode);
+            assertEquals(ExecutionBudget.Limit.DEPTH, exceeded(engine, "(deep 20)", budget.renew()), mode);
+            // The calls unwound by the error don't count against the next evaluation.
+            assertEquals(19L, eval(engine, "(deep 19)", budget.renew()), mode);
+        }
+    }
+
+    @Test
+    void aTimeLimitStopsEveryEngine() {
+        for (String mode : Programs.MODES) {
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, LOOP + "(loop 3) (loop 3)");
+            long start = System.nanoTime();
+            assertEquals(ExecutionBudget.Limit.TIME, exceeded(engine, FOREVER, new ExecutionBudget(0, 100, 0)), mode);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10), mode);
+        }
+    }
+
+    @Test
+    void aTimeLimitKeepsJitCompiledCodeAndStopsIt() {
+        Engine engine = Programs.engine("jit");
+        Programs.run(engine, LOOP);
+        assertEquals(0L, eval(engine, "(loop 3)", new ExecutionBudget(0, 60_000, 0)));
+        assertEquals(0L, eval(engine, "(loop 3)", new ExecutionBudget(0, 60_000, 0)));
+        UserFunction loop = assertInstanceOf(UserFunction.class, engine.get("loop"));
+        assertTrue(loop.isJitted());
+
+        assertEquals(ExecutionBudget.Limit.TIME, exceeded(engine, FOREVER, new ExecutionBudget(0, 100, 0)));
+        assertTrue(loop.isJitted());
+        assertEquals(0L, Programs.run(engine, "(loop 1000)"));
+    }
+
+    @Test
+    void stepLimitsRunTheInterpreter() {
+        Engine engine = Programs.engine("jit");
+        Programs.run(engine, LOOP);
+        for (int i = 0; i < 3; i++) {
+            eval(engine, "(loop 3)", new ExecutionBudget(1000, 0, 0));
+        }
+        assertFalse(assertInstanceOf(UserFunction.class, engine.get("loop")).isJitted());
+    }
+
+    @Test
+    void cancellingFromAnotherThreadStopsEveryEngine() throws Exception {
+        for (String mode : Programs.MODES) {
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, LOOP + "(loop 3) (loop 3)");
+            ExecutionBudget budget = new ExecutionBudget(0, 0, 0);
+            CompletableFuture<ExecutionBudget.Limit> limit =
+                    CompletableFuture.supplyAsync(() -> exceeded(engine, FOREVER, budget));
+            Thread.sleep(50);
+            budget.cancel();
+            assertEquals(ExecutionBudget.Limit.CANCELLED, limit.get(10, TimeUnit.SECONDS), mode);
+        }
+    }
+
+    @Test
+    void aCancelledBudgetStopsVectorMapWithoutCalls() {
+        Engine engine = Programs.engine("compiled");
+        Programs.run(engine, "(define v (vector-range 1000))");
+        ExecutionBudget budget = new ExecutionBudget(0, 0, 0);
+        budget.cancel();
+        assertEquals(ExecutionBudget.Limit.CANCELLED, exceeded(engine, "(vector-map + v v v)", budget));
+        // Single-pass builtins run to completion.
+        assertEquals(999000L, eval(engine, "(vector-sum (vector-add v v))", budget.renew()));
+    }
+
+    @Test
+    void aTimeLimitStopsParallelWorkers() {
+        for (String mode : Programs.MODES) {
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, LOOP + "(define (spin x) (loop 1000000000000000)) (loop 3) (loop 3)");
+            long start = System.nanoTime();
+            assertEquals(ExecutionBudget.Limit.TIME,
+                    exceeded(engine, "(pmap spin (vector->list (vector-range 64)))", new ExecutionBudget(0, 100, 0)),
+                    mode);
+            assertEquals(ExecutionBudget.Limit.TIME,
+                    exceeded(engine, "(preduce + 0 (pmap spin (list 1 2 3 4)))", new ExecutionBudget(0, 100, 0)),
+                    mode);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20), mode);
+        }
+    }
+
+    @Test
+    void anEngineWithLimitsRenewsThemForEveryForm() {
+        Engine engine = Programs.engine("compiled");
+        engine.setLimits(new ExecutionBudget(50, 0, 0));
+        Programs.run(engine, LOOP);
+        assertEquals(0L, Programs.run(engine, "(loop 40)"));
+        assertEquals(0L, Programs.run(engine, "(loop 40)"));
+        assertThrows(ExecutionBudget.Exceeded.class, () -> Programs.run(engine, "(loop 60)"));
+        assertEquals(0L, Programs.run(engine, "(loop 40)"));
+    }
+}
@@ -0,0 +1,201 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class GlobalEnvTest {
+    /** Runs the collector until {@code ref} is cleared, and returns whether it was. */
+    private static boolean collected(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return ref.get() == null;
+    }
+
+    private static UserFunction function(Engine engine, String name) {
+        return assertInstanceOf(UserFunction.class, engine.get(name));
+    }
+
+    @Test
+    void layersSeeTheParentButKeepTheirDefines() {
+        GlobalEnv parent = new GlobalEnv();
+        parent.define("x", 1L);
+        GlobalEnv first = new GlobalEnv(parent);
+        GlobalEnv second = new GlobalEnv(parent);
+        assertEquals(1L, first.get("x"));
+
+        first.define("x", 2L);
+        assertEquals(2L, first.get("x"));
+        assertEquals(1L, second.get("x"));
+        assertEquals(1L, parent.get("x"));
+
+        parent.define("x", 3L);
+        assertEquals(2L, first.get("x"));
+        assertEquals(3L, second.get("x"));
+
+        assertEquals(2L, first.undefine("x"));
+        assertEquals(3L, first.get("x"));
+        assertNull(second.undefine("x"));
+        assertEquals(3L, second.get("x"));
+    }
+
+    @Test
+    void aNameALayerUsedSeesTheParentDefineItLater() {
+        GlobalEnv parent = new GlobalEnv();
+        GlobalEnv layer = new GlobalEnv(parent);
+        GlobalEnv.Cell cell = layer.cell("later");
+        assertNull(cell.get());
+        assertNull(parent.get("later"));
+
+        parent.define("later", 5L);
+        assertEquals(5L, cell.get());
+        assertEquals(5L, layer.get("later"));
+        assertSame(cell.parent, parent.cell("later"));
+    }
+
+    @Test
+    void theParentOnlyHoldsFallbackCellsWhileALayerUsesThem() throws InterruptedException {
+        GlobalEnv parent = new GlobalEnv();
+        GlobalEnv layer = new GlobalEnv(parent);
+        GlobalEnv.Cell cell = layer.cell("unused-by-parent");
+        WeakReference<GlobalEnv.Cell> fallback = new WeakReference<>(cell.parent);
+        assertNotNull(fallback.get());
+
+        System.gc();
+        assertSame(cell.parent, fallback.get());
+
+        cell = null;
+        layer = null;
+        assertTrue(collected(fallback));
+        // Made again when it is next used.
+        parent.define("unused-by-parent", 1L);
+        assertEquals(1L, new GlobalEnv(parent).get("unused-by-parent"));
+    }
+
+    @Test
+    void theParentDoesNotKeepTheFunctionsItsLayersCompiled() throws InterruptedException {
+        Engine prelude = Programs.engine("jit");
+        Programs.run(prelude, "(define (sq x) (* x x))");
+        Engine session = prelude.layer();
+        Programs.run(session, "(define (f x) (+ (sq x) 1)) (f 1) (f 2) (f 3)");
+        WeakReference<UserFunction> f = new WeakReference<>(function(session, "f"));
+        assertTrue(function(session, "f").isJitted());
+
+        session = null;
+        assertTrue(collected(f));
+        // Its dependent is gone, and redefining sq doesn't need it.
+        assertEquals(0L, Programs.run(prelude, "(define (sq x) 0) (sq 5)"));
+    }
+
+    @Test
+    void symbolsAreInternedWhileTheyAreUsed() throws InterruptedException {
+        Symbol kept = Symbol.of("kept-symbol");
+        System.gc();
+        assertSame(kept, Symbol.of("kept-symbol"));
+        assertSame(kept, Programs.parse("kept-symbol").get(0));
+
+        WeakReference<Symbol> dropped = new WeakReference<>(Symbol.of("dropped-symbol"));
+        assertTrue(collected(dropped));
+        Symbol again = Symbol.of("dropped-symbol");
+        assertEquals("dropped-symbol", again.getValue());
+        assertSame(again, Symbol.of("dropped-symbol"));
+    }
+
+    @Test
+    void redefiningInALayerDeoptimizesOnlyThatLayer() {
+        Engine prelude = Programs.engine("jit");
+        Programs.run(prelude, "(define (sq x) (* x x))");
+        Engine first = prelude.layer();
+        Engine second = prelude.layer();
+        for (Engine session : List.of(first, second)) {
+            Programs.run(session, "(define (f x) (+ (sq x) 1)) (f 1) (f 2) (f 3)");
+            assertTrue(function(session, "f").isJitted());
+        }
+
+        Programs.run(first, "(define (sq x) (+ x x))");
+        assertFalse(function(first, "f").isJitted());
+        assertTrue(function(second, "f").isJitted());
+        assertEquals(9L, Programs.run(first, "(f 4)"));
+        assertEquals(17L, Programs.run(second, "(f 4)"));
+        assertEquals(16L, Programs.run(prelude, "(sq 4)"));
+    }
+
+    @Test
+    void layersMadeConcurrentlyShareTheParentsCells() throws Exception {
+        GlobalEnv parent = new GlobalEnv();
+        int threads = 8;
+        int names = 2000;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<CompletableFuture<GlobalEnv>> layers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            layers.add(CompletableFuture.supplyAsync(() -> {
+                GlobalEnv layer = new GlobalEnv(parent);
+                try {
+                    start.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < names; i++) {
+                    assertNull(layer.cell("name" + i).get());
+                    layer.define("own" + i, (long) id);
+                }
+                return layer;
+            }, pool));
+        }
+        List<GlobalEnv> done = new ArrayList<>();
+        for (CompletableFuture<GlobalEnv> layer : layers) {
+            done.add(layer.get(30, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+
+        for (int i = 0; i < names; i++) {
+            parent.define("name" + i, (long) i);
+        }
+        for (int t = 0; t < threads; t++) {
+            GlobalEnv layer = done.get(t);
+            for (int i = 0; i < names; i++) {
+                assertEquals((long) i, layer.cell("name" + i).get());
+                assertEquals((long) t, layer.get("own" + i));
+            }
+        }
+        assertNull(parent.get("own0"));
+    }
+
+    @Test
+    void readersSeeEveryDefineInOrder() throws Exception {
+        GlobalEnv parent = new GlobalEnv();
+        parent.define("counter", 0L);
+        GlobalEnv layer = new GlobalEnv(parent);
+        long last = 20_000;
+        List<CompletableFuture<Void>> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(CompletableFuture.runAsync(() -> {
+                long seen = 0;
+                while (seen < last) {
+                    long value = assertInstanceOf(Long.class, layer.get("counter"));
+                    assertTrue(value >= seen, value + " after " + seen);
+                    seen = value;
+                }
+            }));
+        }
+        for (long i = 1; i <= last; i++) {
+            parent.define("counter", i);
+        }
+        for (CompletableFuture<Void> reader : readers) {
+            reader.get(30, TimeUnit.SECONDS);
+        }
+    }
+}
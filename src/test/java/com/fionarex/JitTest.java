@@ -0,0 +1,123 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigInteger;
+
+import org.junit.jupiter.api.Test;
+
+class JitTest {
+    private final Engine engine = Programs.engine("jit");
+
+    private static UserFunction function(Engine engine, String name) {
+        return assertInstanceOf(UserFunction.class, engine.get(name));
+    }
+
+    /** Defines {@code definitions} and calls {@code call} until the function is JIT-compiled. */
+    private static void warmUp(Engine engine, String definitions, String call) {
+        Programs.run(engine, definitions);
+        for (int i = 0; i < 3; i++) {
+            Programs.run(engine, call);
+        }
+    }
+
+    @Test
+    void compilesIntegerFunctionsOnceTheyAreCalledEnough() {
+        Programs.run(engine, "(define (sq x) (* x x))");
+        assertEquals(9L, Programs.run(engine, "(sq 3)"));
+        assertFalse(function(engine, "sq").isJitted());
+        assertEquals(16L, Programs.run(engine, "(sq 4)"));
+        assertTrue(function(engine, "sq").isJitted());
+        assertEquals(25L, Programs.run(engine, "(sq 5)"));
+    }
+
+    @Test
+    void redefiningACalleeDeoptimizesItsCallers() {
+        warmUp(engine, "(define (g x) (* x 2)) (define (f x) (+ (g x) 1))", "(f 3)");
+        assertTrue(function(engine, "f").isJitted());
+
+        Programs.run(engine, "(define (g x) (* x 10))");
+        assertFalse(function(engine, "f").isJitted());
+        assertEquals(31L, Programs.run(engine, "(f 3)"));
+    }
+
+    @Test
+    void redefiningAGlobalDeoptimizesTheFunctionsThatReadIt() {
+        warmUp(engine, "(define k 1) (define (f x) (+ x k))", "(f 1)");
+        assertTrue(function(engine, "f").isJitted());
+
+        Programs.run(engine, "(define k 100)");
+        assertEquals(101L, Programs.run(engine, "(f 1)"));
+    }
+
+    @Test
+    void redefiningAnOperatorDeoptimizesTheFunctionsThatUseIt() {
+        warmUp(engine, "(define (f x) (* x 3))", "(f 2)");
+        assertTrue(function(engine, "f").isJitted());
+
+        Programs.run(engine, "(define (* a b) 7)");
+        assertEquals(7L, Programs.run(engine, "(f 2)"));
+    }
+
+    @Test
+    void overflowPromotesToBigIntegers() {
+        warmUp(engine, "(define (sq x) (* x x)) (define (inc x) (+ x 1))", "(+ (sq 3) (inc 3))");
+        assertTrue(function(engine, "sq").isJitted());
+        assertTrue(function(engine, "inc").isJitted());
+
+        assertEquals(new BigInteger("16000000000000000000"), Programs.run(engine, "(sq 4000000000)"));
+        assertEquals(new BigInteger("9223372036854775808"), Programs.run(engine, "(inc 9223372036854775807)"));
+        assertEquals(new BigInteger("-9223372036854775809"), Programs.run(engine, "(- (inc -9223372036854775807) 3)"));
+        // The compiled code stays in place for the calls that fit in a long.
+        assertTrue(function(engine, "sq").isJitted());
+        assertEquals(49L, Programs.run(engine, "(sq 7)"));
+    }
+
+    @Test
+    void recursionThatOverflowsFinishesInTheInterpreter() {
+        warmUp(engine, "(define (fact n) (if (< n 2) 1 (* n (fact (- n 1)))))", "(fact 5)");
+        assertTrue(function(engine, "fact").isJitted());
+        assertEquals(2432902008176640000L, Programs.run(engine, "(fact 20)"));
+        assertEquals(new BigInteger("51090942171709440000"), Programs.run(engine, "(fact 21)"));
+    }
+
+    @Test
+    void argumentsThatAreNotLongsUseTheInterpreter() {
+        warmUp(engine, "(define (sq x) (* x x))", "(sq 3)");
+        assertEquals(6.25, Programs.run(engine, "(sq 2.5)"));
+        assertEquals(new BigInteger("10000000000000000000000000000000000000000"),
+                Programs.run(engine, "(sq 100000000000000000000)"));
+    }
+
+    @Test
+    void divisionByZeroStillFails() {
+        warmUp(engine, "(define (half x) (/ x 2)) (define (inv x) (/ 1 x))", "(+ (half 4) (inv 1))");
+        assertTrue(function(engine, "inv").isJitted());
+        assertThrows(EvalError.class, () -> Programs.run(engine, "(inv 0)"));
+    }
+
+    @Test
+    void anErrorInACalledFunctionKeepsThePositionOfTheCall() {
+        warmUp(engine, "(define (f n) (if (< n 0) (car n) n)) (define (g n) (+ 1 (f n)))", "(g 1)");
+        assertTrue(function(engine, "g").isJitted());
+
+        EvalError e = assertThrows(EvalError.class, () -> Programs.run(engine, "(g -1)"));
+        assertEquals("\tat f (test.calc:1:27)\n\tat g (test.calc:1:58)\n\tat top level (test.calc:1:1)\n",
+                e.trace("test.calc"));
+    }
+
+    @Test
+    void aPreludeRedefinitionDeoptimizesFunctionsOfItsLayers() {
+        Engine prelude = Programs.engine("jit");
+        Programs.run(prelude, "(define (sq x) (* x x)) (define k 0)");
+        Engine session = prelude.layer();
+        warmUp(session, "(define (f x) (+ (sq x) k))", "(f 3)");
+        assertTrue(function(session, "f").isJitted());
+
+        // The prelude only holds its layers' functions weakly; f is still reachable here.
+        System.gc();
+        Programs.run(prelude, "(define k 100) (define (sq x) 1)");
+        assertFalse(function(session, "f").isJitted());
+        assertEquals(101L, Programs.run(session, "(f 3)"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OptimizerTest {
+    private static String optimized(Optimizer optimizer, String program) {
+        return optimizer.optimizeAll(Programs.parse(program)).toString();
+    }
+
+    private static void assertOptimizes(int level, String program, String expected) {
+        assertEquals(Programs.parse(expected).toString(), optimized(new Optimizer(level), program), program);
+    }
+
+    /** Evaluates {@code program} after optimizing it as a whole at {@code level}. */
+    private static Object run(Engine engine, int level, String program) {
+        Object result = Eval.NIL;
+        for (SEXP form : new Optimizer(level, engine::isBound).optimizeAll(Programs.parse(program))) {
+            result = engine.eval(form);
+        }
+        return result;
+    }
+
+    @Test
+    void levelZeroLeavesFormsAlone() {
+        assertOptimizes(0, "(+ 1 2) (if (> 2 1) 3 4)", "(+ 1 2) (if (> 2 1) 3 4)");
+    }
+
+    @Test
+    void foldsTopLevelArithmeticAndComparisons() {
+        assertEquals("[3, 12, 3, 3.5, true, (define x 42)]",
+                optimized(new Optimizer(1), "(+ 1 2) (* 2 (- 10 4)) (/ 7 2) (+ 1 2.5) (> 3 2) (define x (* 6 7))"));
+    }
+
+    @Test
+    void foldsIntoBigIntegersOnOverflow() {
+        assertOptimizes(1, "(* 9223372036854775807 2)", "18446744073709551614");
+    }
+
+    @Test
+    void reducesIfWithALiteralCondition() {
+        assertOptimizes(1, "(if (> 2 1) (+ 1 1) (car 5))", "2");
+        assertOptimizes(1, "(if (< 2 1) (car 5) x)", "x");
+    }
+
+    @Test
+    void leavesFailingFormsForRunTime() {
+        assertOptimizes(2, "(/ 1 0) (+ 1 \"a\") (define (f) (/ 1 0))", "(/ 1 0) (+ 1 \"a\") (define (f) (/ 1 0))");
+    }
+
+    @Test
+    void foldsInsideBodiesOnlyAtLevelTwo() {
+        String program = "(define (f x) (+ x (* 2 3)))";
+        assertOptimizes(1, program, program);
+        assertOptimizes(2, program, "(define (f x) (+ x 6))");
+    }
+
+    @Test
+    void inlinesGlobalsDefinedOnceAtLevelTwo() {
+        assertOptimizes(2, "(define k 5) (define (f x) (* x k)) (+ k 1)", "(define k 5) (define (f x) (* x 5)) 6");
+        assertOptimizes(2, "(define k 5) (define (f x) (* x k)) (define k 6)",
+                "(define k 5) (define (f x) (* x k)) (define k 6)");
+    }
+
+    @Test
+    void functionBodiesSeeLaterRedefinitionsOfOperators() {
+        String program = "(define (f) (+ 1 2)) (define (+ a b) 100) (f)";
+        for (int level = 0; level <= 2; level++) {
+            assertEquals(100L, run(new Engine(), level, program), "-O" + level);
+        }
+    }
+
+    @Test
+    void operatorsReboundInTheProgramAreNotFolded() {
+        assertOptimizes(1, "(define (* a b) 7) (* 6 6)", "(define (* a b) 7) (* 6 6)");
+        assertOptimizes(2, "(* 6 6) (define (* a b) 7)", "(* 6 6) (define (* a b) 7)");
+        assertOptimizes(1, "(define (f *) (* 6 6))", "(define (f *) (* 6 6))");
+    }
+
+    @Test
+    void operatorsReboundBeforeTheProgramAreNotFolded() {
+        List<SEXP> forms = new Optimizer(2, "*"::equals).optimizeAll(Programs.parse("(* 6 6) (+ 6 6)"));
+        assertEquals(Programs.parse("(* 6 6) 12").toString(), forms.toString());
+
+        Engine prelude = new Engine();
+        Programs.run(prelude, "(define (* a b) 7)");
+        for (int level = 0; level <= 2; level++) {
+            assertEquals(7L, run(prelude.layer(), level, "(* 6 6)"), "-O" + level);
+        }
+    }
+
+    @Test
+    void optimizedProgramsGiveTheSameResults() {
+        String program = String.join("\n",
+                "(define k (* 2 21))",
+                "(define (f x) (if (> k 40) (+ x (* 2 3)) 0))",
+                "(define (g) (- k 2))",
+                "(f 1) (g) (if (< 1 2) (g) (f 0))");
+        Object expected = Programs.run(new Engine(), program);
+        for (int level = 0; level <= 2; level++) {
+            assertEquals(expected, run(new Engine(), level, program), "-O" + level);
+        }
+    }
+}
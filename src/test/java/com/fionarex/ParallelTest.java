@@ -0,0 +1,106 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ParallelTest {
+    private static final String HELPERS = String.join("\n",
+            "(define (map1 f xs) (if (null? xs) (list) (cons (f (car xs)) (map1 f (cdr xs)))))",
+            "(define (fold f acc xs) (if (null? xs) acc (fold f (f acc (car xs)) (cdr xs))))",
+            "(define (upto n) (vector->list (vector-range n)))",
+            "(define (sq x) (* x x))",
+            "(define (half x) (/ x 2.0))",
+            // x -> a * x + b as (a b); (then f g) applies f first. Associative, not commutative.
+            "(define (affine x) (list (+ 1 (* x 3)) (- x 7)))",
+            "(define (then f g) (list (* (car f) (car g)) (+ (* (car g) (car (cdr f))) (car (cdr g)))))");
+
+    private static final List<Integer> CUTOFFS = List.of(1, 2, 3, Parallel.DEFAULT_CUTOFF, 1000);
+
+    @AfterEach
+    void resetCutoff() {
+        Parallel.setCutoff(Parallel.DEFAULT_CUTOFF);
+    }
+
+    /** Runs {@code check} on the compiled and reference engines with every cutoff. */
+    private static void forEveryCutoff(Consumer<Engine> check) {
+        for (int cutoff : CUTOFFS) {
+            Parallel.setCutoff(cutoff);
+            for (String mode : List.of("compiled", "reference")) {
+                Engine engine = Programs.engine(mode);
+                Programs.run(engine, HELPERS);
+                check.accept(engine);
+            }
+        }
+    }
+
+    private static String value(Engine engine, String form) {
+        return String.valueOf(Programs.run(engine, form));
+    }
+
+    @Test
+    void pmapMatchesASequentialMap() {
+        forEveryCutoff(engine -> {
+            for (int n : new int[] {0, 1, 2, 5, 17, 200}) {
+                assertEquals(value(engine, "(map1 sq (upto " + n + "))"), value(engine, "(pmap sq (upto " + n + "))"));
+            }
+            assertEquals("()", value(engine, "(pmap sq (list))"));
+            assertEquals("#(0 1 4 9 16)", value(engine, "(pmap sq (vector-range 5))"));
+            assertEquals("#()", value(engine, "(pmap sq (vector-range 0))"));
+            assertEquals("(0.5 1.0)", value(engine, "(pmap half (list 1 2))"));
+        });
+    }
+
+    @Test
+    void preduceMatchesASequentialFold() {
+        forEveryCutoff(engine -> {
+            for (int n : new int[] {0, 1, 2, 5, 17, 200}) {
+                assertEquals(value(engine, "(fold + 10 (upto " + n + "))"),
+                        value(engine, "(preduce + 10 (upto " + n + "))"));
+            }
+            assertEquals("10", value(engine, "(preduce + 10 (list))"));
+            assertEquals("55", value(engine, "(preduce + 10 (vector-range 10))"));
+        });
+    }
+
+    @Test
+    void preduceKeepsTheOrderOfTheElements() {
+        forEveryCutoff(engine -> {
+            for (int n : new int[] {1, 2, 3, 7, 40}) {
+                String maps = "(map1 affine (upto " + n + "))";
+                String sequential = value(engine, "(fold then (list 1 0) " + maps + ")");
+                assertEquals(sequential, value(engine, "(preduce then (list 1 0) " + maps + ")"));
+                assertEquals(sequential, value(engine, "(preduce then (list 1 0) (pmap affine (upto " + n + ")))"));
+            }
+            assertNotEquals(value(engine, "(then (affine 1) (affine 2))"), value(engine, "(then (affine 2) (affine 1))"));
+        });
+    }
+
+    @Test
+    void pmapOverAVectorNeedsIntegerResults() {
+        forEveryCutoff(engine -> {
+            EvalError e = assertThrows(EvalError.class, () -> Programs.run(engine, "(pmap half (vector 2 3))"));
+            assertEquals("pmap over a vector expects integer results but got 1.0", e.getMessage());
+            assertThrows(EvalError.class, () -> Programs.run(engine, "(pmap sq 5)"));
+            assertThrows(EvalError.class, () -> Programs.run(engine, "(pmap 5 (list 1))"));
+        });
+    }
+
+    @Test
+    void aFailingWorkerThrowsTheOriginalError() {
+        forEveryCutoff(engine -> {
+            Programs.run(engine, "(define (check x) (if (> x 99) (if (< x 101) (car x) x) x))");
+            EvalError e = assertThrows(EvalError.class, () -> Programs.run(engine, "(pmap check (upto 300))"));
+            assertSame(EvalError.class, e.getClass());
+            assertEquals("car expects a pair but got 100", e.getMessage());
+            assertTrue(e.trace("test.calc").contains("at check"), e.trace("test.calc"));
+
+            e = assertThrows(EvalError.class, () -> Programs.run(engine, "(preduce (lambda (a b) (car a)) 0 (upto 50))"));
+            assertSame(EvalError.class, e.getClass());
+        });
+    }
+}
@@ -0,0 +1,242 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ParserTest {
+    // Lexer.BUFFER_SIZE: a streaming lexer first reads this many characters.
+    private static final int BUFFER = 8192;
+
+    /** A reader that returns at most {@code chunk} characters per read, as a slow stream might. */
+    private static final class ChunkedReader extends Reader {
+        private final String text;
+        private final int chunk;
+        private int offset;
+
+        ChunkedReader(String text, int chunk) {
+            this.text = text;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] buffer, int start, int length) {
+            if (offset == text.length()) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, chunk), text.length() - offset);
+            text.getChars(offset, offset + count, buffer, start);
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The form as printed, with the position of every list in front of it. Numbers are shown by
+     * value, as compact mode doesn't keep their text.
+     */
+    private static String withPositions(SEXP expr) {
+        if (expr instanceof NumberLiteral) {
+            return ((NumberLiteral) expr).getNumber().toString();
+        } else if (!(expr instanceof SEXPList)) {
+            return expr.toString();
+        }
+        SEXPList list = (SEXPList) expr;
+        List<String> elements = new ArrayList<>();
+        for (SEXP element : list.getElements()) {
+            elements.add(withPositions(element));
+        }
+        return Position.toString(list.getPosition()) + "(" + String.join(" ", elements) + ")";
+    }
+
+    private static String withoutPositions(String form) {
+        return form.replaceAll("[0-9]+:[0-9]+\\(", "(");
+    }
+
+    private static List<String> parsed(Parser parser) {
+        List<String> forms = new ArrayList<>();
+        for (SEXP expr : parser.parseAll()) {
+            forms.add(withPositions(expr));
+        }
+        return forms;
+    }
+
+    /**
+     * The forms of {@code source} parsed from a token list, which compact mode and streaming them
+     * through readers of several chunk sizes must give too.
+     */
+    private static List<String> parseEveryWay(String source) {
+        List<String> expected = parsed(new Parser(new Lexer(source).lex()));
+        assertEquals(expected, parsed(new Parser(new Lexer(source).lexCompact())));
+        for (Reader reader : List.of(new StringReader(source), new ChunkedReader(source, 1),
+                new ChunkedReader(source, 7), new ChunkedReader(source, BUFFER - 1))) {
+            assertEquals(expected, parsed(new Parser(new Lexer(reader))));
+        }
+        return expected;
+    }
+
+    private static List<String> tokens(Lexer lexer) {
+        List<String> tokens = new ArrayList<>();
+        for (Token token : lexer.lex()) {
+            tokens.add(token + " at " + Position.toString(token.position));
+        }
+        return tokens;
+    }
+
+    @Test
+    void listsKeepTheirPositions() {
+        assertEquals(List.of("1:1(define 1:9(f x) 2:3(+ x 1))", "4:2(f 4:5(g a\nb) 5)"),
+                parseEveryWay("(define (f x)\n  (+ x 1))\n\n (f (g \"a\nb\") 5)"));
+        assertEquals(List.of("1:1(a)", "1:5(b)", "2:2(c)"), parseEveryWay("(a) (b)\r\n\t(c)"));
+    }
+
+    @Test
+    void streamingLexesTheSameTokensAtTheSamePositions() {
+        String source = "(define (sq x) (* x x))\n(sq -12) (- 3 -4.5)\n\"two\nlines\" + / sym?";
+        List<String> expected = tokens(new Lexer(source));
+        assertEquals("LPAREN '(' at 1:1", expected.get(0));
+        assertEquals("STRING 'two\nlines' = two\nlines at 3:1", expected.get(expected.size() - 5));
+        assertEquals("EOF '' at 4:16", expected.get(expected.size() - 1));
+        for (int chunk : new int[] {1, 2, 5, BUFFER}) {
+            assertEquals(expected, tokens(new Lexer(new ChunkedReader(source, chunk))), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void tokensCanSpanTheEndOfTheBuffer() {
+        String[] forms = {"(define long-name 12345)", "(list \"a string\" 3.25)", "(f -98765432109876543210)"};
+        String blankLines = (" ".repeat(79) + "\n").repeat(BUFFER / 80 + 1);
+        for (String form : forms) {
+            // Start the form at every offset that puts one of its tokens across the boundary.
+            for (int padding = BUFFER - form.length(); padding <= BUFFER; padding++) {
+                String before = blankLines.substring(0, padding - 1) + "\n";
+                int line = (int) before.chars().filter(c -> c == '\n').count() + 1;
+                List<String> parsed = parseEveryWay(before + form + "\n" + form);
+                assertEquals(2, parsed.size());
+                assertTrue(parsed.get(0).startsWith(line + ":1("), parsed.get(0));
+                assertTrue(parsed.get(1).startsWith((line + 1) + ":1("), parsed.get(1));
+                assertEquals(withoutPositions(parsed.get(1)), withoutPositions(parsed.get(0)));
+            }
+        }
+    }
+
+    @Test
+    void tokensLongerThanTheBufferGrowIt() {
+        String name = "x".repeat(3 * BUFFER);
+        String text = "y\n".repeat(BUFFER);
+        String parsed = parseEveryWay("(" + name + " \"" + text + "\" (z))").get(0);
+        assertEquals("1:1(" + name + " " + text + " " + (BUFFER + 1) + ":3(z))", parsed);
+    }
+
+    @Test
+    void linesAreCountedAcrossRefills() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            source.append("(f ").append(i).append(")\n");
+        }
+        List<String> parsed = parseEveryWay(source.toString());
+        assertEquals(5000, parsed.size());
+        assertEquals("1:1(f 0)", parsed.get(0));
+        assertEquals("4321:1(f 4320)", parsed.get(4320));
+        assertEquals("5000:1(f 4999)", parsed.get(4999));
+    }
+
+    @Test
+    void formsAreParsedOneAtATime() {
+        Parser parser = new Parser(new Lexer(new ChunkedReader("(a 1)\n(b 2)\n  (c", 1)));
+        assertEquals("1:1(a 1)", withPositions(parser.next()));
+        assertEquals("2:1(b 2)", withPositions(parser.next()));
+        EvalError e = assertThrows(EvalError.class, parser::next);
+        assertEquals("Unexpected EOF: missing closing ')'", e.getMessage());
+        assertEquals("3:3", Position.toString(e.getPosition()));
+    }
+
+    @Test
+    void numbersParseToTheSameValueInEveryMode() {
+        String[][] cases = {
+            {"0", "Long 0"},
+            {"007", "Long 7"},
+            {"-42", "Long -42"},
+            {"9223372036854775807", "Long 9223372036854775807"},
+            {"-9223372036854775808", "Long -9223372036854775808"},
+            {"9223372036854775808", "BigInteger 9223372036854775808"},
+            {"-9223372036854775809", "BigInteger -9223372036854775809"},
+            {"123456789012345678901234567890", "BigInteger 123456789012345678901234567890"},
+            {"3.14", "Double 3.14"},
+            {"-0.5", "Double -0.5"},
+            {"2.50", "Double 2.5"},
+            {"1.", "Double 1.0"},
+        };
+        for (String[] c : cases) {
+            List<SEXP> parsed = new ArrayList<>();
+            parsed.add(new Parser(new Lexer(c[0]).lex()).parse());
+            parsed.add(new Parser(new Lexer(c[0]).lexCompact()).parse());
+            parsed.add(new Parser(new Lexer(new ChunkedReader(c[0], 1))).parse());
+            for (SEXP expr : parsed) {
+                Object number = assertInstanceOf(NumberLiteral.class, expr).getNumber();
+                assertEquals(c[1], number.getClass().getSimpleName() + " " + number, c[0]);
+            }
+        }
+        // A minus sign only starts a number if a digit follows it.
+        assertEquals(List.of("1:1(- 5 -5 - x)"), parseEveryWay("(- 5 -5 - x)"));
+    }
+
+    @Test
+    void compactTokensKeepTheirOffsetsAndPositions() {
+        String source = "(define\n  (f x) \"s\ntr\" -7\n\n\t2.5)";
+        TokenBuffer tokens = new Lexer(source).lexCompact();
+        List<String> described = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            described.add(tokens.type(i) + " '" + tokens.lexeme(i) + "' at " + Position.toString(tokens.position(i)));
+        }
+        assertEquals(List.of("LPAREN '(' at 1:1", "SYMBOL 'define' at 1:2", "LPAREN '(' at 2:3", "SYMBOL 'f' at 2:4",
+                "SYMBOL 'x' at 2:6", "RPAREN ')' at 2:7", "STRING 's\ntr' at 2:9", "NUMBER '-7' at 3:5",
+                "NUMBER '2.5' at 5:2", "RPAREN ')' at 5:5", "EOF '' at 5:6"), described);
+        // The string's offsets exclude its quotes.
+        assertEquals(source.indexOf('s'), tokens.start(6));
+        assertEquals(source.indexOf("tr") + 2, tokens.end(6));
+        // Positions can be asked for out of order.
+        assertEquals("2:4", Position.toString(tokens.position(3)));
+        assertEquals("1:2", Position.toString(tokens.position(1)));
+        assertEquals("5:2", Position.toString(tokens.position(8)));
+
+        List<String> lexed = new ArrayList<>();
+        for (Token token : new Lexer(source).lex()) {
+            lexed.add(token.type + " '" + token.lexeme + "' at " + Position.toString(token.position));
+        }
+        assertEquals(lexed, described);
+    }
+
+    @Test
+    void errorsHaveTheirPositionInEveryMode() {
+        String[][] cases = {
+            {"(a\n  \"open", "Unterminated string literal", "2:3"},
+            {"(a b)\n (c # d)", "Unexpected character: #", "2:5"},
+            {"(a)\n\n  )", "Unexpected token: RPAREN ')'", "3:3"},
+            {" 1.2.3", "Invalid number: 1.2.3", "1:2"},
+        };
+        for (String[] c : cases) {
+            List<Parser> parsers = new ArrayList<>();
+            parsers.add(new Parser(new Lexer(new ChunkedReader(c[0], 1))));
+            parsers.add(new Parser(new Lexer(new ChunkedReader(c[0], BUFFER))));
+            for (Parser parser : parsers) {
+                EvalError e = assertThrows(EvalError.class, parser::parseAll);
+                assertEquals(c[1], e.getMessage());
+                assertEquals(c[2], Position.toString(e.getPosition()), c[0]);
+            }
+            // Compact mode finds lexing errors while lexing, and the rest while parsing.
+            EvalError e = assertThrows(EvalError.class, () -> new Parser(new Lexer(c[0]).lexCompact()).parseAll());
+            assertEquals(c[1], e.getMessage());
+            assertEquals(c[2], Position.toString(e.getPosition()), c[0]);
+        }
+    }
+}
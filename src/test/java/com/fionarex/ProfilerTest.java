@@ -0,0 +1,130 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ProfilerTest {
+    private static final String PROGRAM = String.join("\n",
+            "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))",
+            "(fib 10)",
+            "(define (count n acc) (if (< n 1) acc (count (- n 1) (+ acc 1))))",
+            "(count 100 0)",
+            "(define (ping n) (if (< n 1) 0 (pong (- n 1))))",
+            "(define (pong n) (ping n))",
+            "(ping 10)",
+            "(define-memo (mfib n) (if (< n 2) n (+ (mfib (- n 1)) (mfib (- n 2)))))",
+            "(mfib 30) (mfib 30)",
+            "(define (inner n) (if (< n 1) 0 (+ 1 (inner (- n 1)))))",
+            "(define (outer n) (+ (inner n) (inner n)))",
+            "(outer 200) (outer 200)");
+
+    // The report rounds times to a microsecond.
+    private static final double ROUNDING = 0.002;
+
+    /** One row of the report. */
+    private static final class Row {
+        final long calls;
+        final double inclusive;
+        final double exclusive;
+        final int maxDepth;
+
+        Row(String[] columns) {
+            calls = Long.parseLong(columns[1]);
+            inclusive = Double.parseDouble(columns[2]);
+            exclusive = Double.parseDouble(columns[3]);
+            maxDepth = Integer.parseInt(columns[4]);
+        }
+    }
+
+    @AfterEach
+    void uninstall() {
+        Profiler.active = null;
+    }
+
+    private static Map<String, Row> report(Profiler profiler) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\\R");
+        assertEquals("function calls inclusive ms exclusive ms max depth", lines[0].trim().replaceAll(" +", " "));
+        Map<String, Row> rows = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] columns = lines[i].trim().split(" +");
+            rows.put(columns[0], new Row(columns));
+        }
+        return rows;
+    }
+
+    private static Row row(Map<String, Row> report, String function) {
+        Row row = report.get(function);
+        assertNotNull(row, function);
+        return row;
+    }
+
+    @Test
+    void countsCallsAndDepthTheSameOnEveryEngine() {
+        for (String mode : Programs.MODES) {
+            Profiler profiler = Profiler.install();
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, PROGRAM);
+            Map<String, Row> report = report(profiler);
+
+            assertEquals(7, report.size(), mode);
+            assertEquals(177, row(report, "fib").calls, mode);
+            assertEquals(10, row(report, "fib").maxDepth, mode);
+            // Tail calls replace their caller, so they don't nest.
+            assertEquals(101, row(report, "count").calls, mode);
+            assertEquals(1, row(report, "count").maxDepth, mode);
+            assertEquals(11, row(report, "ping").calls, mode);
+            assertEquals(10, row(report, "pong").calls, mode);
+            assertEquals(1, row(report, "ping").maxDepth, mode);
+            // Only calls that miss the memo cache run the body.
+            assertEquals(31, row(report, "mfib").calls, mode);
+            assertEquals(30, row(report, "mfib").maxDepth, mode);
+            assertEquals(804, row(report, "inner").calls, mode);
+            assertEquals(201, row(report, "inner").maxDepth, mode);
+            assertEquals(2, row(report, "outer").calls, mode);
+            assertEquals(1, row(report, "outer").maxDepth, mode);
+        }
+    }
+
+    @Test
+    void attributesTimeToCallersAndCallees() {
+        for (String mode : Programs.MODES) {
+            Profiler profiler = Profiler.install();
+            Engine engine = Programs.engine(mode);
+            Programs.run(engine, PROGRAM);
+            Map<String, Row> report = report(profiler);
+
+            Row outer = row(report, "outer");
+            Row inner = row(report, "inner");
+            assertTrue(outer.inclusive >= inner.inclusive, mode);
+            assertEquals(outer.inclusive, outer.exclusive + inner.inclusive, ROUNDING, mode);
+            // A function's recursive calls are all its own time.
+            for (String recursive : new String[] {"fib", "inner", "mfib"}) {
+                assertEquals(row(report, recursive).inclusive, row(report, recursive).exclusive, ROUNDING, mode);
+            }
+            // A tail call ends the caller's call, so pong's time isn't ping's.
+            assertEquals(row(report, "ping").inclusive, row(report, "ping").exclusive, ROUNDING, mode);
+            for (Row row : report.values()) {
+                assertTrue(row.exclusive >= 0 && row.exclusive <= row.inclusive + ROUNDING, mode);
+            }
+        }
+    }
+
+    @Test
+    void functionsAreNotJitCompiledWhileProfiling() {
+        Profiler profiler = Profiler.install();
+        Engine engine = Programs.engine("jit");
+        Programs.run(engine, "(define (sq x) (* x x)) (sq 1) (sq 2) (sq 3) (sq 4)");
+        assertFalse(assertInstanceOf(UserFunction.class, engine.get("sq")).isJitted());
+        assertEquals(4, row(report(profiler), "sq").calls);
+    }
+}
@@ -0,0 +1,102 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProgramCacheTest {
+    private static final String PROGRAM = String.join("\n",
+            "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))",
+            "(define s \"a \\\"quoted\\\" string\")",
+            "(fib 20) 2.5 -7 123456789012345678901234567890 (> 2 1) (list)",
+            "(vector-map * (vector 1 2 3) 3)");
+
+    private static Path source(Path directory, String program) throws IOException {
+        return Files.writeString(directory.resolve("program.calc"), program);
+    }
+
+    /** Reads the program through the cache, writing it, and returns the forms as parsed. */
+    private static List<SEXP> record(ProgramCache cache, String program) throws IOException {
+        List<SEXP> parsed = Programs.parse(program);
+        List<SEXP> recorded = cache.record(new Parser(new Lexer(program).lexCompact())).readAll();
+        assertEquals(parsed.toString(), recorded.toString());
+        return parsed;
+    }
+
+    @Test
+    void loadsTheFormsItRecorded(@TempDir Path directory) throws IOException {
+        Path source = source(directory, PROGRAM);
+        assertNull(ProgramCache.of(source, null).load());
+
+        List<SEXP> parsed = record(ProgramCache.of(source, null), PROGRAM);
+        assertTrue(Files.isRegularFile(directory.resolve("program.calc.cache")));
+
+        FormSource cached = ProgramCache.of(source, null).load();
+        assertNotNull(cached);
+        assertEquals(parsed.toString(), cached.readAll().toString());
+    }
+
+    @Test
+    void cachedFormsEvaluateLikeParsedOnes(@TempDir Path directory) throws IOException {
+        Path source = source(directory, PROGRAM);
+        record(ProgramCache.of(source, null), PROGRAM);
+        FormSource cached = ProgramCache.of(source, null).load();
+        assertNotNull(cached);
+
+        Engine engine = Programs.engine("compiled");
+        Object last = Eval.NIL;
+        for (SEXP form : cached.readAll()) {
+            last = engine.eval(form);
+        }
+        assertEquals(Programs.run(Programs.engine("compiled"), PROGRAM).toString(), last.toString());
+    }
+
+    @Test
+    void aChangedSourceMissesTheCache(@TempDir Path directory) throws IOException {
+        Path source = source(directory, PROGRAM);
+        record(ProgramCache.of(source, null), PROGRAM);
+
+        source(directory, PROGRAM + " (fib 21)");
+        assertNull(ProgramCache.of(source, null).load());
+    }
+
+    @Test
+    void aDamagedCacheIsIgnored(@TempDir Path directory) throws IOException {
+        Path source = source(directory, PROGRAM);
+        record(ProgramCache.of(source, null), PROGRAM);
+        Path cacheFile = directory.resolve("program.calc.cache");
+        byte[] bytes = Files.readAllBytes(cacheFile);
+
+        byte[] flipped = bytes.clone();
+        flipped[flipped.length - 5] ^= 1;
+        Files.write(cacheFile, flipped);
+        assertNull(ProgramCache.of(source, null).load());
+
+        Files.write(cacheFile, Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(ProgramCache.of(source, null).load());
+
+        Files.write(cacheFile, new byte[3]);
+        assertNull(ProgramCache.of(source, null).load());
+    }
+
+    @Test
+    void aCacheDirectoryKeepsCachesOutOfTheSourceDirectory(@TempDir Path directory, @TempDir Path caches)
+            throws IOException {
+        Path source = source(directory, PROGRAM);
+        Path cacheDirectory = caches.resolve("nested");
+        List<SEXP> parsed = record(ProgramCache.of(source, cacheDirectory), PROGRAM);
+
+        assertFalse(Files.exists(directory.resolve("program.calc.cache")));
+        FormSource cached = ProgramCache.of(source, cacheDirectory).load();
+        assertNotNull(cached);
+        assertEquals(parsed.toString(), cached.readAll().toString());
+        assertNull(ProgramCache.of(source, null).load());
+    }
+}
@@ -0,0 +1,64 @@
+package com.fionarex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Engines and helpers shared by the tests. */
+final class Programs {
+    /** Every way an engine can evaluate forms; see {@link #engine}. */
+    static final List<String> MODES = List.of("reference", "cek", "compiled", "jit");
+
+    private Programs() {
+    }
+
+    /** An engine for {@code mode}. The JIT compiles a function on its second call. */
+    static Engine engine(String mode) {
+        switch (mode) {
+            case "reference":
+                return new Engine(true);
+            case "cek":
+                Engine machine = new Engine(true);
+                machine.useMachine(Machine.DEFAULT_MAX_FRAMES);
+                return machine;
+            case "compiled":
+                Engine engine = new Engine(false);
+                engine.getJit().setThreshold(0);
+                return engine;
+            case "jit":
+                Engine jit = new Engine(false);
+                jit.getJit().setThreshold(2);
+                return jit;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + mode);
+        }
+    }
+
+    static List<SEXP> parse(String source) {
+        return new Parser(new Lexer(source).lexCompact()).parseAll();
+    }
+
+    /** Evaluates every form of {@code source} and returns the value of the last one. */
+    static Object run(Engine engine, String source) {
+        Object result = Eval.NIL;
+        for (SEXP expr : parse(source)) {
+            result = engine.eval(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates every form of {@code source} and returns what each one printed, as the REPL would:
+     * its value, or the error and its trace.
+     */
+    static List<String> results(Engine engine, String source) {
+        List<String> results = new ArrayList<>();
+        for (SEXP expr : parse(source)) {
+            try {
+                results.add(String.valueOf(engine.eval(expr)));
+            } catch (EvalError e) {
+                results.add(e.getMessage() + "\n" + e.trace("test.calc"));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,127 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+class ServerTest {
+    /** A connection to a server, sending one request line at a time. */
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(Server server) throws IOException {
+            socket = new Socket();
+            socket.connect(server.getAddress());
+            socket.setSoTimeout(20_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        String send(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            return String.valueOf(in.readLine());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static Server start(Supplier<Engine> engines) throws IOException {
+        Server server = new Server("0", engines, Optimizer.DEFAULT_LEVEL, 60);
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    @Test
+    void repliesToEachRequestLine() throws IOException {
+        try (Server server = start(Engine::new); Client client = new Client(server)) {
+            assertEquals("ok 49", client.send("(define (sq x) (* x x)) (sq 7)"));
+            assertEquals("ok 64", client.send("(sq 8)\r"));
+            assertEquals("ok (1 2 3)", client.send("(list 1 2 3)"));
+            assertTrue(client.send("(+ 1 \"a\")").startsWith("error "));
+            assertTrue(client.send("(+ 1").startsWith("error "));
+            assertEquals("ok 3", client.send("(+ 1 2)"));
+            assertEquals("null", client.send(":quit"));
+        }
+    }
+
+    @Test
+    void sessionsHaveTheirOwnGlobals() throws IOException {
+        try (Server server = start(Engine::new); Client first = new Client(server); Client second = new Client(server)) {
+            assertEquals("ok 1", first.send("(define x 1)"));
+            assertEquals("ok 2", second.send("(define x 2)"));
+            assertEquals("ok 1", first.send("x"));
+            assertEquals("ok 2", second.send("x"));
+        }
+    }
+
+    @Test
+    void formsRunJitCompiledUnderTheDefaultTimeLimit() throws IOException {
+        List<Engine> engines = new CopyOnWriteArrayList<>();
+        Supplier<Engine> supplier = () -> {
+            Engine engine = Programs.engine("jit");
+            engines.add(engine);
+            return engine;
+        };
+        try (Server server = start(supplier); Client client = new Client(server)) {
+            client.send("(define (sq x) (* x x))");
+            for (int i = 0; i < 3; i++) {
+                assertEquals("ok 81", client.send("(sq 9)"));
+            }
+            assertEquals(1, engines.size());
+            assertTrue(assertInstanceOf(UserFunction.class, engines.get(0).get("sq")).isJitted());
+        }
+    }
+
+    @Test
+    void aFormThatRunsOutOfTimeEndsWithAnErrorReply() throws IOException {
+        Supplier<Engine> engines = () -> {
+            Engine engine = new Engine();
+            engine.setLimits(new ExecutionBudget(0, 200, 0));
+            return engine;
+        };
+        try (Server server = start(engines); Client client = new Client(server)) {
+            client.send("(define (loop n) (if (< n 1) 0 (loop (- n 1))))");
+            String timedOut = "error Evaluation exceeded its time limit of 200 ms";
+            assertEquals(timedOut, client.send("(loop 1000000000000000)"));
+            // The limit is renewed for every form, and the session goes on.
+            assertEquals("ok 0", client.send("(loop 1000)"));
+            assertEquals(timedOut, client.send("(loop 10) (loop 1000000000000000) (loop 10)"));
+            assertEquals("ok 0", client.send("(loop 1000)"));
+        }
+    }
+
+    @Test
+    void anOverlongRequestIsSkipped() throws IOException {
+        try (Server server = start(Engine::new); Client client = new Client(server)) {
+            String request = "(+ 1 " + "1 ".repeat(Server.MAX_REQUEST_LENGTH / 2) + ")";
+            assertEquals("error Request longer than " + Server.MAX_REQUEST_LENGTH + " characters", client.send(request));
+            assertEquals("ok 2", client.send("(+ 1 1)"));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.fionarex;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotTest {
+    private static final String PRELUDE = String.join("\n",
+            "(define (sq x) (* x x))",
+            "(define (make-adder n) (define (add x) (+ x n)) add)",
+            "(define add5 (make-adder 5))",
+            "(define xs (list 1 2.5 \"three\" (list 4)))",
+            "(define shared (cons 0 xs))",
+            "(define v (vector-range 5))",
+            "(define big 123456789012345678901234567890)",
+            "(define mul *)",
+            "(define-memo (mfib n) (if (< n 2) n (+ (mfib (- n 1)) (mfib (- n 2)))))",
+            "(mfib 30)");
+
+    private static final String USES = "(sq 12) (add5 1) ((make-adder 2) 3) xs (car (cdr (cdr shared)))"
+            + " (vector-sum v) (+ big 1) (mul 6 7) (mfib 60) (add5 big)";
+
+    private static Path save(Engine engine, Path directory) throws IOException {
+        Path file = directory.resolve("prelude.snap");
+        Snapshot.save(engine, file);
+        return file;
+    }
+
+    @Test
+    void loadedGlobalsBehaveLikeTheOriginals(@TempDir Path directory) throws IOException {
+        for (String from : Programs.MODES) {
+            Engine original = Programs.engine(from);
+            Programs.run(original, PRELUDE);
+            Path file = save(original, directory);
+
+            for (String to : Programs.MODES) {
+                Engine loaded = Programs.engine(to);
+                Snapshot.load(file, loaded);
+                assertEquals(Programs.results(original, USES), Programs.results(loaded, USES), from + " -> " + to);
+            }
+        }
+    }
+
+    @Test
+    void valuesKeepTheirTypes(@TempDir Path directory) throws IOException {
+        Engine original = Programs.engine("compiled");
+        Programs.run(original, PRELUDE);
+        Engine loaded = Programs.engine("compiled");
+        Snapshot.load(save(original, directory), loaded);
+
+        assertEquals(new BigInteger("123456789012345678901234567890"), loaded.get("big"));
+        assertEquals(144L, Programs.run(loaded, "(sq 12)"));
+        assertInstanceOf(UserFunction.class, loaded.get("add5"));
+    }
+
+    @Test
+    void layersKeepTheirDefinitionsToThemselves(@TempDir Path directory) throws IOException {
+        Engine original = Programs.engine("compiled");
+        Programs.run(original, PRELUDE);
+        Engine base = Programs.engine("compiled");
+        Snapshot.load(save(original, directory), base);
+
+        Engine first = base.layer();
+        Engine second = base.layer();
+        Programs.run(first, "(define (sq x) 0) (define mine 1)");
+        assertEquals(0L, Programs.run(first, "(sq 12)"));
+        assertEquals(144L, Programs.run(second, "(sq 12)"));
+        assertFalse(second.isBound("mine"));
+        assertFalse(base.isBound("mine"));
+    }
+
+    @Test
+    void aDamagedSnapshotIsRejected(@TempDir Path directory) throws IOException {
+        Engine original = Programs.engine("compiled");
+        Programs.run(original, PRELUDE);
+        Path file = save(original, directory);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 3] ^= 1;
+        Files.write(file, bytes);
+
+        assertThrows(IOException.class, () -> Snapshot.load(file, Programs.engine("compiled")));
+    }
+
+    @Test
+    void aFileThatIsNotASnapshotIsRejected(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("prelude.calc");
+        Files.writeString(file, PRELUDE);
+        assertThrows(IOException.class, () -> Snapshot.load(file, Programs.engine("compiled")));
+
+        Path empty = Files.createFile(directory.resolve("empty.snap"));
+        assertThrows(IOException.class, () -> Snapshot.load(empty, Programs.engine("compiled")));
+    }
+}